@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+/**
+ * KerberosCmdAdaptiveLimit
+ *   AIMD concurrency limit driven by the latency and errors of single principal script calls.
+ *   After every round (as many samples as the current limit) the limit goes up by one if calls were queuing
+ *   and the latency stayed near its baseline, or is cut by a quarter if the latency doubled or a call failed
+ *   with an error pointing at the admin server. The baseline is the lowest latency seen, allowed to creep up
+ *   a little every round so a KDC that got slower for good doesn't keep the limit down forever.
+ *   Not thread safe, the limiter calls it under its lock.
+ */
+final class KerberosCmdAdaptiveLimit {
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final double DECREASE_FACTOR = 0.75;
+
+    private static final double BASELINE_DRIFT = 1.05;
+
+    private static final double SMOOTHING = 0.2;
+
+    private final int maxLimit;
+
+    private int limit;
+
+    private double baselineNanos = 0;
+
+    private double smoothedNanos = 0;
+
+    private int roundSamples = 0;
+
+    private int roundErrors = 0;
+
+    private long roundMinNanos = Long.MAX_VALUE;
+
+    private boolean roundSaturated = false;
+
+    KerberosCmdAdaptiveLimit(final int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, this.maxLimit / 2);
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    long getSmoothedLatencyMillis() {
+        return (long) (smoothedNanos / 1_000_000);
+    }
+
+    /**
+     * Calls were waiting for the limit, so a higher limit would have been used.
+     */
+    void markSaturated() {
+        roundSaturated = true;
+    }
+
+    /**
+     * Records one call, returns true if the limit changed.
+     */
+    boolean onSample(final long latencyNanos, final boolean overloaded) {
+        roundSamples++;
+        if (overloaded) {
+            roundErrors++;
+        }
+        smoothedNanos = smoothedNanos == 0 ? latencyNanos : smoothedNanos + SMOOTHING * (latencyNanos - smoothedNanos);
+        roundMinNanos = Math.min(roundMinNanos, latencyNanos);
+
+        if (roundSamples < limit) {
+            return false;
+        }
+
+        baselineNanos = baselineNanos == 0 ? roundMinNanos : Math.min(roundMinNanos, baselineNanos * BASELINE_DRIFT);
+
+        final int previous = limit;
+        if (roundErrors > 0 || smoothedNanos > baselineNanos * LATENCY_TOLERANCE) {
+            limit = Math.max(1, (int) (limit * DECREASE_FACTOR));
+        } else if (roundSaturated) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+
+        roundSamples = 0;
+        roundErrors = 0;
+        roundMinNanos = Long.MAX_VALUE;
+        roundSaturated = false;
+        return limit != previous;
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.identityconnectors.common.Pair;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * KerberosCmdBatchQueue
+ *   Collects the adds, deletes, freezes, thaws and password changes arriving within a short window into one
+ *   script call. The operations are sent as a manifest on stdin, one operation per line with the same tab
+ *   separated fields as a session request, and the script reports "OP <line> <exit code> [message]" for each.
+ *   The first caller of a window waits for the window to close (or the batch to fill up) and runs the batch
+ *   for everyone, the other callers wait for their own result. When the last window collected a single operation
+ *   and no other operation is running, the operation runs on its own right away instead of waiting out a window.
+ *   Each configuration (script, admin principal, keytab and username domain) has its own queue, a batch only holds
+ *   operations for the same KDC and runs with their configuration.
+ */
+public final class KerberosCmdBatchQueue {
+
+    private static final Log LOG = Log.getLog(KerberosCmdBatchQueue.class);
+
+    private static final ConcurrentMap<String, KerberosCmdBatchQueue> BATCH_QUEUES = new ConcurrentHashMap<>();
+
+    public static KerberosCmdBatchQueue getQueue(final KerberosCmdConfiguration configuration) {
+        return BATCH_QUEUES.computeIfAbsent(configuration.scriptIdentity(), it -> new KerberosCmdBatchQueue());
+    }
+
+    private long windowMillis = 0;
+
+    private int maxSize = 0;
+
+    private Batch openBatch = null;
+
+    //operations in execute, batched or running on their own
+    private int inFlight = 0;
+
+    //operations the last window collected, 0 before the first window
+    private int lastBatchSize = 0;
+
+    private KerberosCmdBatchQueue() {
+    }
+
+    public synchronized void configure(final long windowMillis, final int maxSize) {
+        this.windowMillis = windowMillis;
+        this.maxSize = maxSize;
+        this.lastBatchSize = 0;
+    }
+
+    public synchronized boolean isEnabled() {
+        return windowMillis > 0 && maxSize > 1;
+    }
+
+    /**
+     * Runs the operation together with the other operations of the current window.
+     *
+     * @param operation script parameters of the operation, e.g. "-d user"
+     * @param runBatch runs the operations of a batch and returns their statuses in the same order,
+     *                 or null if the script can't run batches
+     * @return the operation's status, or null if it has to run on its own
+     */
+    public Pair<Boolean, String> execute(final List<String> operation,
+                                         final Function<List<List<String>>, List<Pair<Boolean, String>>> runBatch) throws ConnectorException {
+        return execute(operation, runBatch, alone -> null);
+    }
+
+    /**
+     * Same as above, runAlone runs the operation when it has nobody to batch with.
+     */
+    public Pair<Boolean, String> execute(final List<String> operation,
+                                         final Function<List<List<String>>, List<Pair<Boolean, String>>> runBatch,
+                                         final Function<List<String>, Pair<Boolean, String>> runAlone) throws ConnectorException {
+        Batch batch = null;
+        boolean leader = false;
+        int index = 0;
+        long window = 0;
+
+        synchronized (this) {
+            inFlight++;
+            if (openBatch != null || inFlight > 1 || lastBatchSize != 1) { //otherwise the load is sequential, nothing to wait for
+                if (openBatch == null) {
+                    openBatch = new Batch();
+                    leader = true;
+                }
+
+                batch = openBatch;
+                index = batch.operations.size();
+                batch.operations.add(operation);
+                if (batch.operations.size() >= maxSize) {
+                    openBatch = null; //full, the leader sends it right away
+                    batch.full.countDown();
+                }
+                window = windowMillis;
+            }
+        }
+
+        try {
+            if (batch == null) {
+                return runAlone.apply(operation);
+            }
+
+            if (leader) {
+                runBatch(batch, window, runBatch);
+            }
+
+            final List<Pair<Boolean, String>> statuses;
+            try {
+                statuses = batch.statuses.join();
+            } catch (CompletionException e) {
+                throw new ConnectorException("Batch running " + operation.get(0) + " failed", e.getCause());
+            }
+
+            return statuses == null ? runAlone.apply(operation) : statuses.get(index);
+
+        } finally {
+            synchronized (this) {
+                inFlight--;
+            }
+        }
+    }
+
+    /**
+     * One line per operation, fields escaped like a session request.
+     */
+    public static byte[] createManifest(final List<List<String>> operations) {
+        final StringBuilder manifest = new StringBuilder();
+        for (final List<String> operation : operations) {
+            for (int i = 0; i < operation.size(); i++) {
+                if (i > 0) {
+                    manifest.append('\t');
+                }
+                manifest.append(KerberosCmdSession.escapeField(operation.get(i)));
+            }
+            manifest.append('\n');
+        }
+
+        return manifest.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The statuses of a batch's operations from the "OP <line> <exit code> [message]" lines of its output.
+     * Every operation needs exactly one result line, an operation without one fails since the script may or
+     * may not have run it, and running it again could apply it twice.
+     */
+    public static List<Pair<Boolean, String>> createStatuses(final List<String> output, final int operations, final String batchStatus) {
+        final Map<Integer, String> operationResults = new HashMap<>();
+        final List<Integer> repeatedLines = new ArrayList<>();
+        for (final String line : output) {
+            if (line.startsWith(KerberosCmdConfiguration.SCRIPT_BATCH_RESULT_PREFIX)) {
+                final String[] lineAndResult = line.substring(KerberosCmdConfiguration.SCRIPT_BATCH_RESULT_PREFIX.length()).trim().split("\\s+", 2);
+                try {
+                    final int lineNumber = Integer.parseInt(lineAndResult[0]);
+                    if (operationResults.put(lineNumber, lineAndResult.length > 1 ? lineAndResult[1] : "") != null) {
+                        repeatedLines.add(lineNumber);
+                    }
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring batch result for unknown line: {0}", line);
+                }
+            }
+        }
+
+        final List<Pair<Boolean, String>> statuses = new ArrayList<>();
+        for (int i = 1; i <= operations; i++) {
+            final String operationResult = operationResults.get(i);
+            if (operationResult == null) {
+                statuses.add(new Pair<>(false, "no result reported by the batch, the operation may not have run " + batchStatus));
+            } else if (repeatedLines.contains(i)) {
+                statuses.add(new Pair<>(false, "more than one result reported by the batch " + batchStatus));
+            } else {
+                final String[] codeAndMessage = operationResult.split("\\s+", 2);
+                statuses.add("0".equals(codeAndMessage[0]) ? new Pair<>(true, "")
+                        : new Pair<>(false, KerberosCmdConfiguration.describeExitCode(codeAndMessage[0]) + " "
+                                + (codeAndMessage.length > 1 ? codeAndMessage[1] : "")));
+            }
+        }
+
+        return statuses;
+    }
+
+    private void runBatch(final Batch batch, final long window,
+                          final Function<List<List<String>>, List<Pair<Boolean, String>>> runBatch) {
+        try {
+            try {
+                batch.full.await(window, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            final List<List<String>> operations;
+            synchronized (this) {
+                if (openBatch == batch) {
+                    openBatch = null;
+                }
+                operations = Collections.unmodifiableList(new ArrayList<>(batch.operations));
+                lastBatchSize = operations.size();
+            }
+
+            if (operations.size() < 2) {
+                batch.statuses.complete(null); //nobody to batch with, the operation runs on its own
+                return;
+            }
+
+            KerberosCmdMetrics.increment(KerberosCmdMetrics.OPERATION_BATCHES);
+            KerberosCmdMetrics.add(KerberosCmdMetrics.OPERATION_BATCHED_OPERATIONS, operations.size());
+            try {
+                final List<Pair<Boolean, String>> statuses = runBatch.apply(operations);
+                if (statuses != null && statuses.size() != operations.size()) {
+                    throw new ConnectorException("Batch returned " + statuses.size() + " results for " + operations.size() + " operations");
+                }
+                LOG.ok("Batch of {0} operations completed", operations.size());
+                batch.statuses.complete(statuses);
+            } catch (RuntimeException e) {
+                LOG.error(e, "Batch of {0} operations failed", operations.size());
+                batch.statuses.completeExceptionally(e);
+            }
+
+        } finally {
+            if (!batch.statuses.isDone()) { //an Error, the other callers of the batch mustn't wait forever
+                batch.statuses.completeExceptionally(new ConnectorException("Batch didn't complete"));
+            }
+        }
+    }
+
+    private static final class Batch {
+
+        private final List<List<String>> operations = new ArrayList<>();
+
+        private final CountDownLatch full = new CountDownLatch(1);
+
+        private final CompletableFuture<List<Pair<Boolean, String>>> statuses = new CompletableFuture<>();
+    }
+}
@@ -22,7 +22,9 @@ import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.spi.AbstractConfiguration;
 import org.identityconnectors.framework.spi.ConfigurationProperty;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -47,14 +49,43 @@ public class KerberosCmdConfiguration extends AbstractConfiguration {
     public static final String SCRIPT_SHOW_DETAILS_FLAG = "-s";
     public static final String SCRIPT_PASSWORD_FILE_FLAG = "-w";
     public static final String SCRIPT_CHANGE_USERNAME_FLAG = "-r";
+    public static final String SCRIPT_SESSION_FLAG = "-S";
+    public static final String SCRIPT_LIST_EXPRESSION_FLAG = "-e";
+    public static final String SCRIPT_TIMESTAMPS_FLAG = "-T";
+    public static final String SCRIPT_COMBINED_UPDATE_FLAG = "-U";
+    public static final String SCRIPT_BATCH_FLAG = "-M";
+    public static final String SCRIPT_JSON_OUTPUT_FLAG = "-j";
 
     public static final String SCRIPT_PASSWORD_ATTRIBUTE_NAME = "user_password";
     public static final String SCRIPT_USER_NAME_ATTRIBUTE_NAME = "user_name";
     public static final String SCRIPT_USER_LOCKED_ATTRIBUTE_NAME = "user_locked";
     public static final String SCRIPT_USER_FLAGS_ATTRIBUTE_NAME = "user_flags";
+    public static final String SCRIPT_LAST_MODIFIED_ATTRIBUTE_NAME = "last_modified";
+    public static final String SCRIPT_LAST_PASSWORD_CHANGE_ATTRIBUTE_NAME = "last_pwd_change";
+
+    public static final String SYNC_STRATEGY_SNAPSHOT = "snapshot";
+    public static final String SYNC_STRATEGY_TIMESTAMP = "timestamp";
+
+    public static final String LISTING_PARSER_BYTES = "bytes";
+    public static final String LISTING_PARSER_LINES = "lines";
+
+    public static final String SCRIPT_OUTPUT_FORMAT_TEXT = "text";
+    public static final String SCRIPT_OUTPUT_FORMAT_JSON = "json";
+
+    public static final String PASSWORD_CHANNEL_FILE = "file";
+    public static final String PASSWORD_CHANNEL_STDIN = "stdin";
+    public static final String SCRIPT_PASSWORD_STDIN = "-";
 
     public static final String SCRIPT_LOCKED_KERBEROS_FLAG = "KRB5_KDB_DISALLOW_ALL_TIX";
     public static final String SCRIPT_SINGLE_RESULT_HEADER = "Attributes for ";
+    public static final String SCRIPT_SESSION_REPLY_TERMINATOR = "%%END%%";
+    public static final String SCRIPT_UPDATE_STEP_RESULT_PREFIX = "STEP ";
+    public static final String SCRIPT_BATCH_RESULT_PREFIX = "OP ";
+
+    public static final String UPDATE_STEP_PASSWORD = "password";
+    public static final String UPDATE_STEP_LOCK = "lock";
+    public static final String UPDATE_STEP_RENAME = "rename";
+    public static final List<String> DEFAULT_UPDATE_STEP_ORDER = List.of(UPDATE_STEP_PASSWORD, UPDATE_STEP_LOCK, UPDATE_STEP_RENAME);
 
     public static final Map<Integer,String> SCRIPT_EXIT_ERROR_CODES = new HashMap<>();
     //End specific items for script
@@ -92,6 +123,62 @@ public class KerberosCmdConfiguration extends AbstractConfiguration {
 
     private String shouldSetPasswordsAsScriptArgument;
 
+    private String useScriptSession;
+
+    private String pagedSearchSnapshotTtl;
+
+    private String principalCacheTtl;
+
+    private String principalCacheMaxEntries;
+
+    private String lookupBatchWindow;
+
+    private String lookupBatchMaxSize;
+
+    private String coalesceListings;
+
+    private String syncSnapshotPath;
+
+    private String scriptReturnsTimestamps;
+
+    private String syncStrategy;
+
+    private String useCombinedUpdate;
+
+    private String updateStepOrder;
+
+    private String skipUnchangedUpdateSteps;
+
+    private String operationBatchWindow;
+
+    private String operationBatchMaxSize;
+
+    private String maxConcurrentScripts;
+
+    private String maxConcurrentReads;
+
+    private String maxConcurrentWrites;
+
+    private String scriptQueueTimeout;
+
+    private String adaptiveConcurrency;
+
+    private String interactiveReservedScripts;
+
+    private String scriptWriteTimeout;
+
+    private String scriptLookupTimeout;
+
+    private String scriptListingTimeout;
+
+    private String listingParser;
+
+    private String scriptOutputFormat;
+
+    private String passwordChannel;
+
+    private String scriptSessions;
+
 
     public KerberosCmdConfiguration() {
         this(ObjectClass.ACCOUNT, null);
@@ -134,6 +221,34 @@ public class KerberosCmdConfiguration extends AbstractConfiguration {
             setShouldReturnUsernameDomain(getSafeValue(values, shouldReturnUsernameDomain, "false"));
             setPasswordFilePath(getSafeValue(values, getPasswordFilePath(), null));
             setShouldSetPasswordsAsScriptArgument(getSafeValue(values, getShouldSetPasswordsAsScriptArgument(), "true"));
+            setUseScriptSession(getSafeValue(values, "useScriptSession", "false"));
+            setPagedSearchSnapshotTtl(getSafeValue(values, "pagedSearchSnapshotTtl", "300"));
+            setPrincipalCacheTtl(getSafeValue(values, "principalCacheTtl", "0"));
+            setPrincipalCacheMaxEntries(getSafeValue(values, "principalCacheMaxEntries", "50000"));
+            setLookupBatchWindow(getSafeValue(values, "lookupBatchWindow", "0"));
+            setLookupBatchMaxSize(getSafeValue(values, "lookupBatchMaxSize", "50"));
+            setCoalesceListings(getSafeValue(values, "coalesceListings", "false"));
+            setSyncSnapshotPath(getSafeValue(values, "syncSnapshotPath", null));
+            setScriptReturnsTimestamps(getSafeValue(values, "scriptReturnsTimestamps", "false"));
+            setSyncStrategy(getSafeValue(values, "syncStrategy", "snapshot"));
+            setUseCombinedUpdate(getSafeValue(values, "useCombinedUpdate", "false"));
+            setUpdateStepOrder(getSafeValue(values, "updateStepOrder", "password,lock,rename"));
+            setSkipUnchangedUpdateSteps(getSafeValue(values, "skipUnchangedUpdateSteps", "false"));
+            setOperationBatchWindow(getSafeValue(values, "operationBatchWindow", "0"));
+            setOperationBatchMaxSize(getSafeValue(values, "operationBatchMaxSize", "100"));
+            setMaxConcurrentScripts(getSafeValue(values, "maxConcurrentScripts", "0"));
+            setMaxConcurrentReads(getSafeValue(values, "maxConcurrentReads", "0"));
+            setMaxConcurrentWrites(getSafeValue(values, "maxConcurrentWrites", "0"));
+            setScriptQueueTimeout(getSafeValue(values, "scriptQueueTimeout", "60"));
+            setAdaptiveConcurrency(getSafeValue(values, "adaptiveConcurrency", "false"));
+            setInteractiveReservedScripts(getSafeValue(values, "interactiveReservedScripts", "1"));
+            setScriptWriteTimeout(getSafeValue(values, "scriptWriteTimeout", "0"));
+            setScriptLookupTimeout(getSafeValue(values, "scriptLookupTimeout", "0"));
+            setScriptListingTimeout(getSafeValue(values, "scriptListingTimeout", "0"));
+            setListingParser(getSafeValue(values, "listingParser", "bytes"));
+            setScriptOutputFormat(getSafeValue(values, "scriptOutputFormat", "text"));
+            setPasswordChannel(getSafeValue(values, "passwordChannel", "file"));
+            setScriptSessions(getSafeValue(values, "scriptSessions", "1"));
 
         } catch (Exception e) {
             LOG.ok("Error setting configuration values! " + e.getMessage());
@@ -307,6 +422,414 @@ public class KerberosCmdConfiguration extends AbstractConfiguration {
         return convertStringToBoolean(getShouldReturnUsernameDomain());
     }
 
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.useScriptSession.display",
+            helpMessageKey = "kerberosCmd.useScriptSession.help", order = 16)
+    public String getUseScriptSession() {
+        return trimValue(useScriptSession);
+    }
+
+    public void setUseScriptSession(final String useScriptSession) {
+        this.useScriptSession = useScriptSession;
+    }
+
+    public boolean shouldUseScriptSession() {
+        return convertStringToBoolean(getUseScriptSession());
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.pagedSearchSnapshotTtl.display",
+            helpMessageKey = "kerberosCmd.pagedSearchSnapshotTtl.help", order = 17)
+    public String getPagedSearchSnapshotTtl() {
+        return trimValue(pagedSearchSnapshotTtl);
+    }
+
+    public void setPagedSearchSnapshotTtl(final String pagedSearchSnapshotTtl) {
+        this.pagedSearchSnapshotTtl = pagedSearchSnapshotTtl;
+    }
+
+    public int pagedSearchSnapshotTtlSeconds() {
+        return convertStringToInt(getPagedSearchSnapshotTtl(), 300);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.principalCacheTtl.display",
+            helpMessageKey = "kerberosCmd.principalCacheTtl.help", order = 18)
+    public String getPrincipalCacheTtl() {
+        return trimValue(principalCacheTtl);
+    }
+
+    public void setPrincipalCacheTtl(final String principalCacheTtl) {
+        this.principalCacheTtl = principalCacheTtl;
+    }
+
+    public int principalCacheTtlSeconds() {
+        return convertStringToInt(getPrincipalCacheTtl(), 0);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.principalCacheMaxEntries.display",
+            helpMessageKey = "kerberosCmd.principalCacheMaxEntries.help", order = 19)
+    public String getPrincipalCacheMaxEntries() {
+        return trimValue(principalCacheMaxEntries);
+    }
+
+    public void setPrincipalCacheMaxEntries(final String principalCacheMaxEntries) {
+        this.principalCacheMaxEntries = principalCacheMaxEntries;
+    }
+
+    public int principalCacheMaxEntries() {
+        return convertStringToInt(getPrincipalCacheMaxEntries(), 50000);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.lookupBatchWindow.display",
+            helpMessageKey = "kerberosCmd.lookupBatchWindow.help", order = 20)
+    public String getLookupBatchWindow() {
+        return trimValue(lookupBatchWindow);
+    }
+
+    public void setLookupBatchWindow(final String lookupBatchWindow) {
+        this.lookupBatchWindow = lookupBatchWindow;
+    }
+
+    public int lookupBatchWindowMillis() {
+        return convertStringToInt(getLookupBatchWindow(), 0);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.lookupBatchMaxSize.display",
+            helpMessageKey = "kerberosCmd.lookupBatchMaxSize.help", order = 21)
+    public String getLookupBatchMaxSize() {
+        return trimValue(lookupBatchMaxSize);
+    }
+
+    public void setLookupBatchMaxSize(final String lookupBatchMaxSize) {
+        this.lookupBatchMaxSize = lookupBatchMaxSize;
+    }
+
+    public int lookupBatchMaxSize() {
+        return convertStringToInt(getLookupBatchMaxSize(), 50);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.coalesceListings.display",
+            helpMessageKey = "kerberosCmd.coalesceListings.help", order = 22)
+    public String getCoalesceListings() {
+        return trimValue(coalesceListings);
+    }
+
+    public void setCoalesceListings(final String coalesceListings) {
+        this.coalesceListings = coalesceListings;
+    }
+
+    public boolean shouldCoalesceListings() {
+        return convertStringToBoolean(getCoalesceListings());
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.syncSnapshotPath.display",
+            helpMessageKey = "kerberosCmd.syncSnapshotPath.help", order = 23)
+    public String getSyncSnapshotPath() {
+        return trimValue(syncSnapshotPath);
+    }
+
+    public void setSyncSnapshotPath(final String syncSnapshotPath) {
+        this.syncSnapshotPath = syncSnapshotPath;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.scriptReturnsTimestamps.display",
+            helpMessageKey = "kerberosCmd.scriptReturnsTimestamps.help", order = 24)
+    public String getScriptReturnsTimestamps() {
+        return trimValue(scriptReturnsTimestamps);
+    }
+
+    public void setScriptReturnsTimestamps(final String scriptReturnsTimestamps) {
+        this.scriptReturnsTimestamps = scriptReturnsTimestamps;
+    }
+
+    public boolean shouldScriptReturnTimestamps() {
+        return convertStringToBoolean(getScriptReturnsTimestamps()) || shouldSyncOnTimestamps();
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.syncStrategy.display",
+            helpMessageKey = "kerberosCmd.syncStrategy.help", order = 25)
+    public String getSyncStrategy() {
+        return trimValue(syncStrategy);
+    }
+
+    public void setSyncStrategy(final String syncStrategy) {
+        this.syncStrategy = syncStrategy;
+    }
+
+    public boolean shouldSyncOnTimestamps() {
+        return SYNC_STRATEGY_TIMESTAMP.equalsIgnoreCase(getSyncStrategy());
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.useCombinedUpdate.display",
+            helpMessageKey = "kerberosCmd.useCombinedUpdate.help", order = 26)
+    public String getUseCombinedUpdate() {
+        return trimValue(useCombinedUpdate);
+    }
+
+    public void setUseCombinedUpdate(final String useCombinedUpdate) {
+        this.useCombinedUpdate = useCombinedUpdate;
+    }
+
+    public boolean shouldUseCombinedUpdate() {
+        return convertStringToBoolean(getUseCombinedUpdate());
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.updateStepOrder.display",
+            helpMessageKey = "kerberosCmd.updateStepOrder.help", order = 27)
+    public String getUpdateStepOrder() {
+        return trimValue(updateStepOrder);
+    }
+
+    public void setUpdateStepOrder(final String updateStepOrder) {
+        this.updateStepOrder = updateStepOrder;
+    }
+
+    /**
+     * Update steps in the configured order, steps left out follow in the default order.
+     */
+    public List<String> updateStepOrder() {
+        final List<String> steps = new ArrayList<>();
+        if (StringUtil.isNotBlank(getUpdateStepOrder())) {
+            for (final String step : getUpdateStepOrder().split(",")) {
+                final String trimmedStep = step.trim().toLowerCase();
+                if (DEFAULT_UPDATE_STEP_ORDER.contains(trimmedStep) && !steps.contains(trimmedStep)) {
+                    steps.add(trimmedStep);
+                } else if (!trimmedStep.isEmpty()) {
+                    LOG.warn("Ignoring unknown or repeated update step {0}", trimmedStep);
+                }
+            }
+        }
+
+        for (final String step : DEFAULT_UPDATE_STEP_ORDER) {
+            if (!steps.contains(step)) {
+                steps.add(step);
+            }
+        }
+        return steps;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.skipUnchangedUpdateSteps.display",
+            helpMessageKey = "kerberosCmd.skipUnchangedUpdateSteps.help", order = 28)
+    public String getSkipUnchangedUpdateSteps() {
+        return trimValue(skipUnchangedUpdateSteps);
+    }
+
+    public void setSkipUnchangedUpdateSteps(final String skipUnchangedUpdateSteps) {
+        this.skipUnchangedUpdateSteps = skipUnchangedUpdateSteps;
+    }
+
+    public boolean shouldSkipUnchangedUpdateSteps() {
+        return convertStringToBoolean(getSkipUnchangedUpdateSteps());
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.operationBatchWindow.display",
+            helpMessageKey = "kerberosCmd.operationBatchWindow.help", order = 29)
+    public String getOperationBatchWindow() {
+        return trimValue(operationBatchWindow);
+    }
+
+    public void setOperationBatchWindow(final String operationBatchWindow) {
+        this.operationBatchWindow = operationBatchWindow;
+    }
+
+    public int operationBatchWindowMillis() {
+        return convertStringToInt(getOperationBatchWindow(), 0);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.operationBatchMaxSize.display",
+            helpMessageKey = "kerberosCmd.operationBatchMaxSize.help", order = 30)
+    public String getOperationBatchMaxSize() {
+        return trimValue(operationBatchMaxSize);
+    }
+
+    public void setOperationBatchMaxSize(final String operationBatchMaxSize) {
+        this.operationBatchMaxSize = operationBatchMaxSize;
+    }
+
+    public int operationBatchMaxSize() {
+        return convertStringToInt(getOperationBatchMaxSize(), 100);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.maxConcurrentScripts.display",
+            helpMessageKey = "kerberosCmd.maxConcurrentScripts.help", order = 31)
+    public String getMaxConcurrentScripts() {
+        return trimValue(maxConcurrentScripts);
+    }
+
+    public void setMaxConcurrentScripts(final String maxConcurrentScripts) {
+        this.maxConcurrentScripts = maxConcurrentScripts;
+    }
+
+    public int maxConcurrentScripts() {
+        return convertStringToInt(getMaxConcurrentScripts(), 0);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.maxConcurrentReads.display",
+            helpMessageKey = "kerberosCmd.maxConcurrentReads.help", order = 32)
+    public String getMaxConcurrentReads() {
+        return trimValue(maxConcurrentReads);
+    }
+
+    public void setMaxConcurrentReads(final String maxConcurrentReads) {
+        this.maxConcurrentReads = maxConcurrentReads;
+    }
+
+    public int maxConcurrentReads() {
+        return convertStringToInt(getMaxConcurrentReads(), 0);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.maxConcurrentWrites.display",
+            helpMessageKey = "kerberosCmd.maxConcurrentWrites.help", order = 33)
+    public String getMaxConcurrentWrites() {
+        return trimValue(maxConcurrentWrites);
+    }
+
+    public void setMaxConcurrentWrites(final String maxConcurrentWrites) {
+        this.maxConcurrentWrites = maxConcurrentWrites;
+    }
+
+    public int maxConcurrentWrites() {
+        return convertStringToInt(getMaxConcurrentWrites(), 0);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.scriptQueueTimeout.display",
+            helpMessageKey = "kerberosCmd.scriptQueueTimeout.help", order = 34)
+    public String getScriptQueueTimeout() {
+        return trimValue(scriptQueueTimeout);
+    }
+
+    public void setScriptQueueTimeout(final String scriptQueueTimeout) {
+        this.scriptQueueTimeout = scriptQueueTimeout;
+    }
+
+    public int scriptQueueTimeoutSeconds() {
+        return convertStringToInt(getScriptQueueTimeout(), 60);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.adaptiveConcurrency.display",
+            helpMessageKey = "kerberosCmd.adaptiveConcurrency.help", order = 35)
+    public String getAdaptiveConcurrency() {
+        return trimValue(adaptiveConcurrency);
+    }
+
+    public void setAdaptiveConcurrency(final String adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    public boolean shouldAdaptConcurrency() {
+        return convertStringToBoolean(getAdaptiveConcurrency());
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.interactiveReservedScripts.display",
+            helpMessageKey = "kerberosCmd.interactiveReservedScripts.help", order = 36)
+    public String getInteractiveReservedScripts() {
+        return trimValue(interactiveReservedScripts);
+    }
+
+    public void setInteractiveReservedScripts(final String interactiveReservedScripts) {
+        this.interactiveReservedScripts = interactiveReservedScripts;
+    }
+
+    public int interactiveReservedScripts() {
+        return convertStringToInt(getInteractiveReservedScripts(), 1);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.scriptWriteTimeout.display",
+            helpMessageKey = "kerberosCmd.scriptWriteTimeout.help", order = 37)
+    public String getScriptWriteTimeout() {
+        return trimValue(scriptWriteTimeout);
+    }
+
+    public void setScriptWriteTimeout(final String scriptWriteTimeout) {
+        this.scriptWriteTimeout = scriptWriteTimeout;
+    }
+
+    public int scriptWriteTimeoutSeconds() {
+        return convertStringToInt(getScriptWriteTimeout(), 0);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.scriptLookupTimeout.display",
+            helpMessageKey = "kerberosCmd.scriptLookupTimeout.help", order = 38)
+    public String getScriptLookupTimeout() {
+        return trimValue(scriptLookupTimeout);
+    }
+
+    public void setScriptLookupTimeout(final String scriptLookupTimeout) {
+        this.scriptLookupTimeout = scriptLookupTimeout;
+    }
+
+    public int scriptLookupTimeoutSeconds() {
+        return convertStringToInt(getScriptLookupTimeout(), 0);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.scriptListingTimeout.display",
+            helpMessageKey = "kerberosCmd.scriptListingTimeout.help", order = 39)
+    public String getScriptListingTimeout() {
+        return trimValue(scriptListingTimeout);
+    }
+
+    public void setScriptListingTimeout(final String scriptListingTimeout) {
+        this.scriptListingTimeout = scriptListingTimeout;
+    }
+
+    public int scriptListingTimeoutSeconds() {
+        return convertStringToInt(getScriptListingTimeout(), 0);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.listingParser.display",
+            helpMessageKey = "kerberosCmd.listingParser.help", order = 40)
+    public String getListingParser() {
+        return trimValue(listingParser);
+    }
+
+    public void setListingParser(final String listingParser) {
+        this.listingParser = listingParser;
+    }
+
+    public boolean shouldParseListingLines() {
+        return LISTING_PARSER_LINES.equalsIgnoreCase(getListingParser());
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.scriptOutputFormat.display",
+            helpMessageKey = "kerberosCmd.scriptOutputFormat.help", order = 41)
+    public String getScriptOutputFormat() {
+        return trimValue(scriptOutputFormat);
+    }
+
+    public void setScriptOutputFormat(final String scriptOutputFormat) {
+        this.scriptOutputFormat = scriptOutputFormat;
+    }
+
+    public boolean shouldScriptOutputJson() {
+        return SCRIPT_OUTPUT_FORMAT_JSON.equalsIgnoreCase(getScriptOutputFormat());
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.passwordChannel.display",
+            helpMessageKey = "kerberosCmd.passwordChannel.help", order = 42)
+    public String getPasswordChannel() {
+        return trimValue(passwordChannel);
+    }
+
+    public void setPasswordChannel(final String passwordChannel) {
+        this.passwordChannel = passwordChannel;
+    }
+
+    public boolean shouldSendPasswordsOnStdin() {
+        return PASSWORD_CHANNEL_STDIN.equalsIgnoreCase(getPasswordChannel());
+    }
+
+    @ConfigurationProperty(displayMessageKey = "kerberosCmd.scriptSessions.display",
+            helpMessageKey = "kerberosCmd.scriptSessions.help", order = 43)
+    public String getScriptSessions() {
+        return trimValue(scriptSessions);
+    }
+
+    public void setScriptSessions(final String scriptSessions) {
+        this.scriptSessions = scriptSessions;
+    }
+
+    public int scriptSessionCount() {
+        return Math.max(1, convertStringToInt(getScriptSessions(), 1));
+    }
+
     public ObjectClass getObjectClass() {
         return objectClass;
     }
@@ -325,6 +848,26 @@ public class KerberosCmdConfiguration extends AbstractConfiguration {
         }
     }
 
+    /**
+     * What the script runs against: the script and its interpreter, the admin principal, the keytab and how
+     * usernames are formatted. State shared between connector instances is kept per identity.
+     */
+    public String scriptIdentity() {
+        return String.join("\n", String.valueOf(getScriptCmdType()), getScriptCmdPath(), getAdminPrincipal(), getKeytabPath(),
+                String.valueOf(getUsernameDomain()), String.valueOf(shouldReturnUsernameDomain()));
+    }
+
+    /**
+     * The script exit code with its name when it is a known one.
+     */
+    public static String describeExitCode(final String exitCode) {
+        try {
+            return "[" + SCRIPT_EXIT_ERROR_CODES.get(Integer.parseInt(exitCode)) + "] and code " + exitCode;
+        } catch (NumberFormatException e) {
+            return "code " + exitCode;
+        }
+    }
+
     private <T> T getSafeValue(Map<String, Object> map, String key, T defValue) {
             return (T) getSafeValue(map, key, defValue, (Class) String.class);
     }
@@ -361,6 +904,14 @@ public class KerberosCmdConfiguration extends AbstractConfiguration {
         return null;
     }
 
+    private int convertStringToInt(final String stringToParse, final int defaultValue) {
+        try {
+            return Integer.parseInt(stringToParse);
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
     private boolean convertStringToBoolean(final String stringToParse) {
         try {
             return Boolean.parseBoolean(stringToParse);
@@ -16,6 +16,7 @@
 package edu.mines.kerberos.cmd;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import org.identityconnectors.common.Pair;
 import org.identityconnectors.common.logging.Log;
@@ -42,6 +43,14 @@ public class KerberosCmdConnection {
     }
 
     public Process executeScriptCmd(final List<String> command, final List<Pair<String, String>> env) throws ConnectorIOException {
+        return executeScriptCmd(command, env, null);
+    }
+
+    /**
+     * Runs the script with the payload (if any) written to its stdin.
+     */
+    public Process executeScriptCmd(final List<String> command, final List<Pair<String, String>> env,
+                                    final byte[] payload) throws ConnectorIOException {
         LOG.info("KerberosScript executing script: {0}", KerberosCmdConnector.logSanitizePassword(command, env));
 
         final ProcessBuilder builder = new ProcessBuilder(command); //script path and arguments are in the command
@@ -55,7 +64,11 @@ public class KerberosCmdConnection {
 
         try {
             final Process proc = builder.start(); //executes the process
-            proc.getOutputStream().close();
+            try (OutputStream stdin = proc.getOutputStream()) {
+                if (payload != null) {
+                    stdin.write(payload);
+                }
+            }
             LOG.ok("KerberosScript script execution!");
             return proc;
 
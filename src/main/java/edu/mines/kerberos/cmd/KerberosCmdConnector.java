@@ -17,9 +17,12 @@ package edu.mines.kerberos.cmd;
 
 import java.util.*;
 import edu.mines.kerberos.cmd.search.Operand;
+import edu.mines.kerberos.cmd.search.LookupBatcher;
+import edu.mines.kerberos.cmd.search.PrincipalCache;
 import edu.mines.kerberos.cmd.methods.KerberosCmdCreate;
 import edu.mines.kerberos.cmd.methods.KerberosCmdDelete;
 import edu.mines.kerberos.cmd.methods.KerberosCmdExecuteQuery;
+import edu.mines.kerberos.cmd.methods.KerberosCmdSync;
 import edu.mines.kerberos.cmd.methods.KerberosCmdTest;
 import edu.mines.kerberos.cmd.methods.KerberosCmdUpdate;
 import org.identityconnectors.common.Pair;
@@ -27,6 +30,7 @@ import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.objects.*;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
 import org.identityconnectors.framework.spi.Configuration;
@@ -40,7 +44,7 @@ import org.identityconnectors.framework.spi.operations.*;
  *   Main connector class
  */
 @ConnectorClass(configurationClass = KerberosCmdConfiguration.class, displayNameKey = "kerberosCmd.display")
-public class KerberosCmdConnector implements Connector, SchemaOp, CreateOp, UpdateOp, DeleteOp, TestOp, SearchOp<Operand> {
+public class KerberosCmdConnector implements Connector, SchemaOp, CreateOp, UpdateOp, UpdateDeltaOp, UpdateAttributeValuesOp, DeleteOp, TestOp, SearchOp<Operand>, SyncOp {
 
     private static final Log LOG = Log.getLog(KerberosCmdConnector.class);
 
@@ -54,11 +58,21 @@ public class KerberosCmdConnector implements Connector, SchemaOp, CreateOp, Upda
     @Override
     public void init(final Configuration configuration) {
         kerberosCmdConfiguration = (KerberosCmdConfiguration) configuration;
+        PrincipalCache.getCache(kerberosCmdConfiguration).configure(kerberosCmdConfiguration.principalCacheTtlSeconds() * 1000L,
+                kerberosCmdConfiguration.principalCacheMaxEntries());
+        LookupBatcher.getBatcher(kerberosCmdConfiguration).configure(kerberosCmdConfiguration.lookupBatchWindowMillis(),
+                kerberosCmdConfiguration.lookupBatchMaxSize());
+        KerberosCmdBatchQueue.getQueue(kerberosCmdConfiguration).configure(kerberosCmdConfiguration.operationBatchWindowMillis(),
+                kerberosCmdConfiguration.operationBatchMaxSize());
+        KerberosCmdLimiter.getLimiter().configure(kerberosCmdConfiguration.maxConcurrentScripts(),
+                kerberosCmdConfiguration.maxConcurrentReads(), kerberosCmdConfiguration.maxConcurrentWrites(),
+                kerberosCmdConfiguration.interactiveReservedScripts(), kerberosCmdConfiguration.scriptQueueTimeoutSeconds() * 1000L,
+                kerberosCmdConfiguration.shouldAdaptConcurrency());
     }
 
     @Override
     public void dispose() {
-        //NO
+        KerberosCmdMetrics.logMetrics();
     }
 
     @Override
@@ -101,6 +115,37 @@ public class KerberosCmdConnector implements Connector, SchemaOp, CreateOp, Upda
         return new KerberosCmdUpdate(oc, kerberosCmdConfiguration, uid, attributes).execUpdateCmd();
     }
 
+    @Override
+    public Set<AttributeDelta> updateDelta(final ObjectClass oc, final Uid uid, final Set<AttributeDelta> modifications, final OperationOptions oo) {
+        if (LOG.isOk()) {
+            LOG.ok("KerberosScript Update delta parameters:");
+            LOG.ok("KerberosScript ObjectClass {0}", oc.getObjectClassValue());
+            LOG.ok("KerberosScript Uid: {0}", uid.getUidValue());
+            for (AttributeDelta delta : modifications) {
+                LOG.ok("KerberosScript Attribute delta {0}", delta);
+            }
+        }
+
+        return new KerberosCmdUpdate(oc, kerberosCmdConfiguration, uid,
+                KerberosCmdUpdate.createAttributesFromDeltas(modifications)).execUpdateDeltaCmd();
+    }
+
+    @Override
+    public Uid addAttributeValues(final ObjectClass oc, final Uid uid, final Set<Attribute> valuesToAdd, final OperationOptions oo) {
+        return update(oc, uid, valuesToAdd, oo); //single valued attributes, an added value replaces the current one
+    }
+
+    @Override
+    public Uid removeAttributeValues(final ObjectClass oc, final Uid uid, final Set<Attribute> valuesToRemove, final OperationOptions oo) {
+        for (Attribute attr : valuesToRemove) {
+            if (attr.getValue() != null && !attr.getValue().isEmpty()) {
+                throw new InvalidAttributeValueException("Can't remove " + attr.getName() + " values, the script can't remove attribute values");
+            }
+        }
+
+        return uid;
+    }
+
     @Override
     public void delete(final ObjectClass oc, final Uid uid, final OperationOptions oo) {
         if (LOG.isOk()) {
@@ -121,6 +166,7 @@ public class KerberosCmdConnector implements Connector, SchemaOp, CreateOp, Upda
     public void test() {
         LOG.ok("KerberosScript connection test");
         new KerberosCmdTest(kerberosCmdConfiguration).test();
+        KerberosCmdMetrics.logMetrics();
     }
 
     @Override
@@ -142,7 +188,37 @@ public class KerberosCmdConnector implements Connector, SchemaOp, CreateOp, Upda
         }
 
         try {
-            new KerberosCmdExecuteQuery(oc, kerberosCmdConfiguration, operand, rh).execQuery();
+            new KerberosCmdExecuteQuery(oc, kerberosCmdConfiguration, operand, rh, oo).execQuery();
+
+        } catch (ConnectorIOException ex) {
+            LOG.error(ex, "KerberosScript Error! ", ex.getMessage());
+            throw new ConnectorException(ex);
+        }
+    }
+
+    @Override
+    public void sync(final ObjectClass oc, final SyncToken token, final SyncResultsHandler handler, final OperationOptions oo) {
+        if (LOG.isOk()) {
+            LOG.ok("KerberosScript Sync parameters:");
+            LOG.ok("KerberosScript ObjectClass {0}", oc.getObjectClassValue());
+            LOG.ok("KerberosScript Token {0}", token);
+        }
+
+        try {
+            new KerberosCmdSync(oc, kerberosCmdConfiguration).execSync(token, handler);
+
+        } catch (ConnectorIOException ex) {
+            LOG.error(ex, "KerberosScript Error! ", ex.getMessage());
+            throw new ConnectorException(ex);
+        }
+    }
+
+    @Override
+    public SyncToken getLatestSyncToken(final ObjectClass oc) {
+        LOG.ok("KerberosScript latest sync token for ObjectClass {0}", oc.getObjectClassValue());
+
+        try {
+            return new KerberosCmdSync(oc, kerberosCmdConfiguration).execGetLatestSyncToken();
 
         } catch (ConnectorIOException ex) {
             LOG.error(ex, "KerberosScript Error! ", ex.getMessage());
@@ -190,12 +266,34 @@ public class KerberosCmdConnector implements Connector, SchemaOp, CreateOp, Upda
             attrBuilder3.setUpdateable(false);
             attributes.add(attrBuilder3.build());
 
+            final AttributeInfoBuilder attrBuilder4 = new AttributeInfoBuilder();
+            attrBuilder4.setName(KerberosCmdConfiguration.SCRIPT_LAST_MODIFIED_ATTRIBUTE_NAME);
+            attrBuilder4.setRequired(false);
+            attrBuilder4.setType(Long.class);
+            attrBuilder4.setMultiValued(false);
+            attrBuilder4.setCreateable(false);
+            attrBuilder4.setUpdateable(false);
+            attributes.add(attrBuilder4.build());
+
+            final AttributeInfoBuilder attrBuilder5 = new AttributeInfoBuilder();
+            attrBuilder5.setName(KerberosCmdConfiguration.SCRIPT_LAST_PASSWORD_CHANGE_ATTRIBUTE_NAME);
+            attrBuilder5.setRequired(false);
+            attrBuilder5.setType(Long.class);
+            attrBuilder5.setMultiValued(false);
+            attrBuilder5.setCreateable(false);
+            attrBuilder5.setUpdateable(false);
+            attributes.add(attrBuilder5.build());
+
             final ObjectClassInfo ociInfoAccount =
                     new ObjectClassInfoBuilder()
                             .setType(kerberosCmdConfiguration.getObjectClass().getObjectClassValue())
                             .addAllAttributeInfo(attributes).build();
             schemaBuilder.defineObjectClass(ociInfoAccount);
 
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsCookie(), SearchOp.class);
+
         } catch (Exception ex) {
             LOG.error(ex, "Couldn't create schema for Kerberos CMD connector");
             throw new ConnectorException(ex);
@@ -240,8 +338,8 @@ public class KerberosCmdConnector implements Connector, SchemaOp, CreateOp, Upda
                 return logCommands.toString() + envMessage;
 
             } else {
-                if (logCommands.contains(KerberosCmdConfiguration.SCRIPT_CHANGE_PASSWORD_FLAG) || logCommands.contains(KerberosCmdConfiguration.SCRIPT_CREATE_FLAG)) {
-                    logCommands.remove(logCommands.size() - 1);
+                for (final int passwordIndex : getPasswordIndexes(logCommands)) {
+                    logCommands.set(passwordIndex, "********");
                 }
 
                 return logCommands.toString();
@@ -250,4 +348,32 @@ public class KerberosCmdConnector implements Connector, SchemaOp, CreateOp, Upda
 
         return "";
     }
+
+    /**
+     * Where the script arguments hold a password: the one after the user of an add or password change
+     * ("-a user password"), or the one after each password step of a combined update ("-U user -c password -f").
+     * Passwords passed with "-w" are a file or stdin and aren't in the arguments.
+     */
+    private static List<Integer> getPasswordIndexes(final List<String> scriptCommands) {
+        final List<Integer> passwordIndexes = new ArrayList<>();
+        final boolean combinedUpdate = scriptCommands.contains(KerberosCmdConfiguration.SCRIPT_COMBINED_UPDATE_FLAG);
+        for (int i = 0; i < scriptCommands.size(); i++) {
+            final String command = scriptCommands.get(i);
+            if (!KerberosCmdConfiguration.SCRIPT_CHANGE_PASSWORD_FLAG.equals(command)
+                    && (combinedUpdate || !KerberosCmdConfiguration.SCRIPT_CREATE_FLAG.equals(command))) {
+                continue;
+            }
+
+            final int passwordIndex = combinedUpdate ? i + 1 : i + 2;
+            if (passwordIndex < scriptCommands.size()
+                    && !KerberosCmdConfiguration.SCRIPT_PASSWORD_FILE_FLAG.equals(scriptCommands.get(i + 1))) {
+                passwordIndexes.add(passwordIndex);
+            }
+            if (!combinedUpdate) {
+                break; //a single operation
+            }
+        }
+
+        return passwordIndexes;
+    }
 }
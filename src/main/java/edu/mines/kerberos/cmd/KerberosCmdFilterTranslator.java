@@ -33,6 +33,16 @@ import org.identityconnectors.framework.common.objects.filter.StringFilter;
  *   Used by the original CMD connector, possibly not used depending.
  */
 public class KerberosCmdFilterTranslator extends AbstractFilterTranslator<Operand>{
+    @Override
+    protected Operand createAndExpression(final Operand leftExpression, final Operand rightExpression) {
+        return new Operand(Operator.AND, leftExpression, rightExpression);
+    }
+
+    @Override
+    protected Operand createOrExpression(final Operand leftExpression, final Operand rightExpression) {
+        return new Operand(Operator.OR, leftExpression, rightExpression);
+    }
+
     @Override
     protected Operand createEqualsIgnoreCaseExpression(final EqualsIgnoreCaseFilter filter, final boolean not) {
         return createOperand(Operator.EQ, filter, not);
@@ -75,15 +85,10 @@ public class KerberosCmdFilterTranslator extends AbstractFilterTranslator<Operan
         }
         switch (op) {
             case EQ:
-                return new Operand(Operator.EQ, filter.getAttribute().getName(), value, not);
             case SW:
-                return new Operand(Operator.SW, filter.getAttribute().getName(),
-                        value.substring(0, value.length() - 1), not);
             case EW:
-                return new Operand(Operator.EW, filter.getAttribute().getName(), value.substring(1), not);
             case C:
-                return new Operand(Operator.C, filter.getAttribute().getName(),
-                        value.substring(1, value.length() - 1), not);
+                return new Operand(op, filter.getAttribute().getName(), value, not); //ConnId values carry no wildcards
             default:
                 return null;
         }
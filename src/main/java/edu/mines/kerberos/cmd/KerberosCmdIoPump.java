@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * KerberosCmdIoPump
+ *   Shared threads draining the output pipes of the scripts, so stdout and stderr are read at the same time
+ *   and a script never blocks on a full pipe. Threads are reused across script calls; past the pool size a
+ *   drain is rejected and its script fails rather than waiting, since a waiting drain could stall its script.
+ */
+public final class KerberosCmdIoPump {
+
+    private static final Log LOG = Log.getLog(KerberosCmdIoPump.class);
+
+    private static final int MAX_POOL_THREADS = 128;
+
+    private static final long IDLE_THREAD_SECONDS = 60;
+
+    //output left open after the script exited (a child still holding the pipe) fails the call after this
+    private static final long DRAIN_AFTER_EXIT_SECONDS = 5;
+
+    private static final KerberosCmdIoPump IO_PUMP = new KerberosCmdIoPump();
+
+    public static KerberosCmdIoPump getPump() {
+        return IO_PUMP;
+    }
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+
+    private KerberosCmdIoPump() {
+        executor = new ThreadPoolExecutor(0, MAX_POOL_THREADS, IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> createThread(runnable, "kerberos-cmd-io-" + threadCount.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Reads the stream to its end on a pump thread as UTF-8, an error ends the output early.
+     *
+     * @throws ConnectorException when all pump threads are busy
+     */
+    public CompletableFuture<List<String>> drain(final InputStream input) {
+        try {
+            return CompletableFuture.supplyAsync(() -> readLines(input), executor);
+        } catch (RejectedExecutionException e) {
+            LOG.error("All {0} script output threads are busy, failing the script call", MAX_POOL_THREADS);
+            KerberosCmdMetrics.increment(KerberosCmdMetrics.IO_PUMP_REJECTED);
+            throw new ConnectorException("All " + MAX_POOL_THREADS + " script output threads are busy", e);
+        }
+    }
+
+    private static List<String> readLines(final InputStream input) {
+        final List<String> lines = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            LOG.ok(e, "Script output closed after {0} lines", lines.size());
+        }
+        return lines;
+    }
+
+    /**
+     * Completes once the script exited and both its outputs are read, fails with a ConnectorException when an output
+     * is still open some seconds after the script exited.
+     *
+     * @param errorOutput stderr drain started earlier, or null to start it now
+     * @throws ConnectorException when all pump threads are busy, the script is killed then
+     */
+    public CompletableFuture<ScriptOutput> collect(final Process proc, final CompletableFuture<List<String>> errorOutput) {
+        final CompletableFuture<List<String>> stdOutput;
+        final CompletableFuture<List<String>> stdErrorOutput;
+        try {
+            stdOutput = drain(proc.getInputStream());
+            stdErrorOutput = errorOutput != null ? errorOutput : drain(proc.getErrorStream());
+        } catch (ConnectorException e) {
+            proc.destroyForcibly(); //nothing reads its output, it would block on a full pipe
+            throw e;
+        }
+
+        return proc.onExit().thenCompose(exited ->
+                awaitDrained(stdOutput, "output").thenCombine(awaitDrained(stdErrorOutput, "error output"),
+                        (out, err) -> new ScriptOutput(exited.exitValue(), out, err)));
+    }
+
+    private static CompletableFuture<List<String>> awaitDrained(final CompletableFuture<List<String>> output, final String name) {
+        return output.orTimeout(DRAIN_AFTER_EXIT_SECONDS, TimeUnit.SECONDS).exceptionally(e -> {
+            if (e instanceof TimeoutException) {
+                LOG.error("Script {0} still open {1} seconds after the script exited", name, DRAIN_AFTER_EXIT_SECONDS);
+                throw new CompletionException(new ConnectorException("Script " + name + " still open "
+                        + DRAIN_AFTER_EXIT_SECONDS + " seconds after the script exited, a child process may be holding it"));
+            }
+            throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+        });
+    }
+
+    private static Thread createThread(final Runnable runnable, final String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Exit code and output of a finished script.
+     */
+    public static final class ScriptOutput {
+
+        private final int exitCode;
+
+        private final List<String> stdOutput;
+
+        private final List<String> errorOutput;
+
+        private ScriptOutput(final int exitCode, final List<String> stdOutput, final List<String> errorOutput) {
+            this.exitCode = exitCode;
+            this.stdOutput = stdOutput;
+            this.errorOutput = errorOutput;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public List<String> getStdOutput() {
+            return stdOutput;
+        }
+
+        public List<String> getErrorOutput() {
+            return errorOutput;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+/**
+ * KerberosCmdLimiter
+ *   Limits how many script calls run at the same time, overall and separately for reads (listings, shows)
+ *   and writes. Calls over the limit wait in arrival order, a call only lets a later one through when its
+ *   own read or write limit is the one holding it back. A call that can't start within the queue timeout fails.
+ *   With adaptive concurrency the overall limit follows the latency and errors of single principal calls,
+ *   see {@link KerberosCmdAdaptiveLimit}.
+ *   Interactive calls (single principal operations) go ahead of waiting bulk calls (listings, batches), and
+ *   bulk calls leave a number of slots of the overall limit to interactive ones. A bulk call waiting for more than
+ *   a second gets the next free slot while no bulk call runs, so interactive load can't starve the bulk lane.
+ */
+public final class KerberosCmdLimiter {
+
+    private static final Log LOG = Log.getLog(KerberosCmdLimiter.class);
+
+    private static final KerberosCmdLimiter LIMITER = new KerberosCmdLimiter();
+
+    private static final Permit NO_PERMIT = new Permit(null, Lane.INTERACTIVE, false, false);
+
+    //ceiling of the adaptive limit when maxConcurrentScripts is 0, it starts at half of it
+    private static final int DEFAULT_ADAPTIVE_MAX_LIMIT = 64;
+
+    //a bulk call waiting this long goes ahead of interactive ones while no bulk call runs
+    private static final long BULK_PRIORITY_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public static KerberosCmdLimiter getLimiter() {
+        return LIMITER;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Deque<Waiter> interactiveWaiters = new ArrayDeque<>();
+
+    private final Deque<Waiter> bulkWaiters = new ArrayDeque<>();
+
+    private int maxConcurrent = 0;
+
+    private int maxReads = 0;
+
+    private int maxWrites = 0;
+
+    private int interactiveReserve = 0;
+
+    private long queueTimeoutMillis = 0;
+
+    private KerberosCmdAdaptiveLimit adaptiveLimit = null;
+
+    private int running = 0;
+
+    private int runningWrites = 0;
+
+    private int runningBulk = 0;
+
+    private KerberosCmdLimiter() {
+    }
+
+    public void configure(final int maxConcurrent, final int maxReads, final int maxWrites, final int interactiveReserve,
+                          final long queueTimeoutMillis, final boolean adaptive) {
+        lock.lock();
+        try {
+            if (!adaptive) {
+                adaptiveLimit = null;
+            } else if (adaptiveLimit == null || this.maxConcurrent != maxConcurrent) {
+                final int maxLimit = maxConcurrent > 0 ? maxConcurrent : DEFAULT_ADAPTIVE_MAX_LIMIT;
+                adaptiveLimit = new KerberosCmdAdaptiveLimit(maxLimit);
+                LOG.info("Adaptive script concurrency limit starts at {0} and stays between 1 and {1}{2}",
+                        adaptiveLimit.getLimit(), maxLimit, maxConcurrent > 0 ? "" : ", set maxConcurrentScripts for another ceiling");
+                KerberosCmdMetrics.set(KerberosCmdMetrics.SCRIPT_LIMITER_LIMIT, adaptiveLimit.getLimit());
+            }
+            this.maxConcurrent = maxConcurrent;
+            this.maxReads = maxReads;
+            this.maxWrites = maxWrites;
+            this.interactiveReserve = interactiveReserve;
+            this.queueTimeoutMillis = queueTimeoutMillis;
+            grantWaiters(); //limits may have gone up
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEnabled() {
+        lock.lock();
+        try {
+            return overallLimit() > 0 || maxReads > 0 || maxWrites > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a slot to run a script call, the permit has to be released once the call is over.
+     *
+     * @param lane interactive or bulk
+     * @param write whether the call changes principals
+     * @param timed whether the call works on a single principal, only those tell how loaded the admin server is
+     */
+    public Permit acquire(final Lane lane, final boolean write, final boolean timed) throws ConnectorIOException {
+        lock.lock();
+        try {
+            if (!(overallLimit() > 0 || maxReads > 0 || maxWrites > 0)) {
+                return NO_PERMIT;
+            }
+
+            final boolean queueEmpty = lane == Lane.INTERACTIVE ? interactiveWaiters.isEmpty()
+                    : interactiveWaiters.isEmpty() && bulkWaiters.isEmpty();
+            if (queueEmpty && hasCapacity(lane, write)) {
+                return grant(lane, write, timed);
+            }
+
+            if (adaptiveLimit != null) {
+                adaptiveLimit.markSaturated();
+            }
+            final Deque<Waiter> waiters = lane == Lane.INTERACTIVE ? interactiveWaiters : bulkWaiters;
+            final Waiter waiter = new Waiter(lane, write, timed, lock.newCondition());
+            waiters.addLast(waiter);
+            KerberosCmdMetrics.add(KerberosCmdMetrics.SCRIPT_LIMITER_QUEUED, 1);
+            KerberosCmdMetrics.add(lane.metricPrefix + KerberosCmdMetrics.LANE_QUEUED, 1);
+            KerberosCmdMetrics.max(KerberosCmdMetrics.SCRIPT_LIMITER_MAX_QUEUED, interactiveWaiters.size() + bulkWaiters.size());
+
+            final long start = System.nanoTime();
+            long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+            try {
+                while (waiter.permit == null) {
+                    if (remaining <= 0) {
+                        KerberosCmdMetrics.increment(KerberosCmdMetrics.SCRIPT_LIMITER_TIMEOUTS);
+                        throw new ConnectorIOException("No script slot became free within " + queueTimeoutMillis + " ms, "
+                                + running + " script calls running and " + (interactiveWaiters.size() + bulkWaiters.size()) + " waiting");
+                    }
+                    remaining = waiter.condition.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConnectorIOException("Interrupted while waiting for a script slot", e);
+            } finally {
+                if (waiter.permit == null) {
+                    waiters.remove(waiter);
+                    KerberosCmdMetrics.add(KerberosCmdMetrics.SCRIPT_LIMITER_QUEUED, -1);
+                    KerberosCmdMetrics.add(lane.metricPrefix + KerberosCmdMetrics.LANE_QUEUED, -1);
+                }
+            }
+
+            final long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            KerberosCmdMetrics.increment(KerberosCmdMetrics.SCRIPT_LIMITER_WAITS);
+            KerberosCmdMetrics.add(KerberosCmdMetrics.SCRIPT_LIMITER_WAIT_MILLIS, waitMillis);
+            KerberosCmdMetrics.max(KerberosCmdMetrics.SCRIPT_LIMITER_MAX_WAIT_MILLIS, waitMillis);
+            KerberosCmdMetrics.increment(lane.metricPrefix + KerberosCmdMetrics.LANE_WAITS);
+            KerberosCmdMetrics.add(lane.metricPrefix + KerberosCmdMetrics.LANE_WAIT_MILLIS, waitMillis);
+            KerberosCmdMetrics.max(lane.metricPrefix + KerberosCmdMetrics.LANE_MAX_WAIT_MILLIS, waitMillis);
+            LOG.ok("Waited {0} ms for a {1} script slot", waitMillis, lane);
+            return waiter.permit;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(final Permit permit, final boolean sampled, final boolean overloaded) {
+        lock.lock();
+        try {
+            running--;
+            if (permit.write) {
+                runningWrites--;
+            }
+            if (permit.lane == Lane.BULK) {
+                runningBulk--;
+            }
+
+            if (sampled && permit.timed && adaptiveLimit != null) {
+                if (adaptiveLimit.onSample(System.nanoTime() - permit.grantedNanos, overloaded)) {
+                    LOG.info("Script concurrency limit is now {0}, latency {1} ms", adaptiveLimit.getLimit(),
+                            adaptiveLimit.getSmoothedLatencyMillis());
+                    KerberosCmdMetrics.set(KerberosCmdMetrics.SCRIPT_LIMITER_LIMIT, adaptiveLimit.getLimit());
+                }
+                KerberosCmdMetrics.set(KerberosCmdMetrics.SCRIPT_LIMITER_LATENCY_MILLIS, adaptiveLimit.getSmoothedLatencyMillis());
+            }
+            grantWaiters();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets waiting calls start, interactive ones first, each lane in arrival order, skipping the calls held back
+     * only by their own read, write or bulk limit. A bulk call that waited long enough goes first while none is running.
+     */
+    private void grantWaiters() {
+        if (runningBulk == 0 && !bulkWaiters.isEmpty()
+                && System.nanoTime() - bulkWaiters.peekFirst().queuedNanos >= BULK_PRIORITY_WAIT_NANOS) {
+            grantWaiters(bulkWaiters, 1);
+        }
+        grantWaiters(interactiveWaiters, Integer.MAX_VALUE);
+        grantWaiters(bulkWaiters, Integer.MAX_VALUE);
+    }
+
+    private void grantWaiters(final Deque<Waiter> waiters, final int maxGrants) {
+        int grants = 0;
+        final Iterator<Waiter> it = waiters.iterator();
+        while (grants < maxGrants && it.hasNext() && (overallLimit() <= 0 || running < overallLimit())) {
+            final Waiter waiter = it.next();
+            if (hasCapacity(waiter.lane, waiter.write)) {
+                it.remove();
+                KerberosCmdMetrics.add(KerberosCmdMetrics.SCRIPT_LIMITER_QUEUED, -1);
+                KerberosCmdMetrics.add(waiter.lane.metricPrefix + KerberosCmdMetrics.LANE_QUEUED, -1);
+                waiter.permit = grant(waiter.lane, waiter.write, waiter.timed);
+                waiter.condition.signal();
+                grants++;
+            }
+        }
+    }
+
+    private int overallLimit() {
+        return adaptiveLimit != null ? adaptiveLimit.getLimit() : maxConcurrent;
+    }
+
+    private boolean hasCapacity(final Lane lane, final boolean write) {
+        if (overallLimit() > 0 && running >= overallLimit()) {
+            return false;
+        }
+        if (lane == Lane.BULK && overallLimit() > 0 && runningBulk >= Math.max(1, overallLimit() - interactiveReserve)) {
+            return false; //the rest is kept for interactive calls
+        }
+        if (write) {
+            return maxWrites <= 0 || runningWrites < maxWrites;
+        }
+        return maxReads <= 0 || running - runningWrites < maxReads;
+    }
+
+    private Permit grant(final Lane lane, final boolean write, final boolean timed) {
+        running++;
+        if (write) {
+            runningWrites++;
+        }
+        if (lane == Lane.BULK) {
+            runningBulk++;
+        }
+        if (adaptiveLimit != null && running >= adaptiveLimit.getLimit()) {
+            adaptiveLimit.markSaturated();
+        }
+        return new Permit(this, lane, write, timed);
+    }
+
+    /**
+     * A running script call's slot, releasing it more than once has no effect.
+     */
+    public static final class Permit {
+
+        private final KerberosCmdLimiter limiter;
+
+        private final Lane lane;
+
+        private final boolean write;
+
+        private final boolean timed;
+
+        private final long grantedNanos = System.nanoTime();
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(final KerberosCmdLimiter limiter, final Lane lane, final boolean write, final boolean timed) {
+            this.limiter = limiter;
+            this.lane = lane;
+            this.write = write;
+            this.timed = timed;
+        }
+
+        /**
+         * Releases the slot of a call that didn't run.
+         */
+        public void release() {
+            if (limiter != null && released.compareAndSet(false, true)) {
+                limiter.release(this, false, false);
+            }
+        }
+
+        /**
+         * Releases the slot of a finished call, its latency and outcome feed the adaptive limit.
+         *
+         * @param overloaded whether the call failed in a way that points at the admin server
+         */
+        public void release(final boolean overloaded) {
+            if (limiter != null && released.compareAndSet(false, true)) {
+                limiter.release(this, true, overloaded);
+            }
+        }
+    }
+
+    /**
+     * Scheduling class of a script call.
+     */
+    public enum Lane {
+        INTERACTIVE("scriptLimiter.interactive."),
+        BULK("scriptLimiter.bulk.");
+
+        private final String metricPrefix;
+
+        Lane(final String metricPrefix) {
+            this.metricPrefix = metricPrefix;
+        }
+    }
+
+    private static final class Waiter {
+
+        private final Lane lane;
+
+        private final boolean write;
+
+        private final boolean timed;
+
+        private final Condition condition;
+
+        private final long queuedNanos = System.nanoTime();
+
+        private Permit permit = null;
+
+        private Waiter(final Lane lane, final boolean write, final boolean timed, final Condition condition) {
+            this.lane = lane;
+            this.write = write;
+            this.timed = timed;
+            this.condition = condition;
+        }
+    }
+}
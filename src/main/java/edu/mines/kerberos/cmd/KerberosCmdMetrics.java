@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * KerberosCmdMetrics
+ *   Connector wide counters (cache hits, skipped script runs, ...) and gauges (queue depth, ...), logged on test and dispose.
+ */
+public final class KerberosCmdMetrics {
+
+    private static final Log LOG = Log.getLog(KerberosCmdMetrics.class);
+
+    public static final String PRINCIPAL_CACHE_HITS = "principalCache.hits";
+    public static final String PRINCIPAL_CACHE_MISSES = "principalCache.misses";
+    public static final String PRINCIPAL_CACHE_EVICTIONS = "principalCache.evictions";
+    public static final String LOOKUP_BATCHES = "lookupBatch.batches";
+    public static final String LOOKUP_BATCHED_PRINCIPALS = "lookupBatch.principals";
+    public static final String LISTING_FLIGHTS_STARTED = "listingFlight.started";
+    public static final String LISTING_FLIGHTS_JOINED = "listingFlight.joined";
+    public static final String UPDATE_STEPS_SKIPPED = "update.skippedSteps";
+    public static final String OPERATION_BATCHES = "operationBatch.batches";
+    public static final String OPERATION_BATCHED_OPERATIONS = "operationBatch.operations";
+    public static final String SCRIPT_LIMITER_QUEUED = "scriptLimiter.queued";
+    public static final String SCRIPT_LIMITER_MAX_QUEUED = "scriptLimiter.maxQueued";
+    public static final String SCRIPT_LIMITER_WAITS = "scriptLimiter.waits";
+    public static final String SCRIPT_LIMITER_WAIT_MILLIS = "scriptLimiter.waitMillis";
+    public static final String SCRIPT_LIMITER_MAX_WAIT_MILLIS = "scriptLimiter.maxWaitMillis";
+    public static final String SCRIPT_LIMITER_TIMEOUTS = "scriptLimiter.timeouts";
+    public static final String SCRIPT_LIMITER_LIMIT = "scriptLimiter.limit";
+    public static final String SCRIPT_LIMITER_LATENCY_MILLIS = "scriptLimiter.latencyMillis";
+    public static final String SCRIPT_TIMEOUTS = "script.timeouts";
+    public static final String SCRIPT_KILLED_PROCESSES = "script.killedProcesses";
+    public static final String IO_PUMP_REJECTED = "ioPump.rejected";
+    //per lane, after the lane's prefix
+    public static final String LANE_QUEUED = "queued";
+    public static final String LANE_WAITS = "waits";
+    public static final String LANE_WAIT_MILLIS = "waitMillis";
+    public static final String LANE_MAX_WAIT_MILLIS = "maxWaitMillis";
+
+    private static final Map<String, AtomicLong> COUNTERS = new ConcurrentHashMap<>();
+
+    private KerberosCmdMetrics() {
+    }
+
+    public static void increment(final String name) {
+        add(name, 1);
+    }
+
+    public static void add(final String name, final long delta) {
+        COUNTERS.computeIfAbsent(name, it -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public static void set(final String name, final long value) {
+        COUNTERS.computeIfAbsent(name, it -> new AtomicLong()).set(value);
+    }
+
+    /**
+     * Keeps the highest value seen, for high-water marks.
+     */
+    public static void max(final String name, final long value) {
+        COUNTERS.computeIfAbsent(name, it -> new AtomicLong()).accumulateAndGet(value, Math::max);
+    }
+
+    public static long get(final String name) {
+        final AtomicLong counter = COUNTERS.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public static Map<String, Long> snapshot() {
+        final Map<String, Long> snapshot = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> snapshot.put(name, counter.get()));
+        return snapshot;
+    }
+
+    public static void logMetrics() {
+        LOG.info("KerberosScript metrics: {0}", snapshot());
+    }
+}
@@ -0,0 +1,513 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+/**
+ * KerberosCmdSession
+ *   Keeps long-lived script processes (started with the session flag) and sends each of them one request at a time.
+ *   A request waits for an idle session process, the configured number of them run side by side.
+ *   Each script command line (script, admin principal, keytab) gets its own session.
+ *
+ *   The session's error output is only logged: it can't be told apart between requests, so unlike a forked
+ *   script it doesn't fail the request, the exit code on the terminator line does.
+ *
+ *   Request: a single line holding the stdin payload length followed by the usual script parameters
+ *   (-a, -d, -f, -t, -c, -r, -l, -s ...), tab separated, then the payload bytes (if any).
+ *   Reply: the same output the script would print when forked, followed by a line with the
+ *   reply terminator and the exit code, e.g. "%%END%% 0".
+ *
+ *   Each exchange is handed back as a {@link Process} so the methods classes don't need to know
+ *   if they run against a forked script or the session.
+ */
+public class KerberosCmdSession {
+
+    private static final Log LOG = Log.getLog(KerberosCmdSession.class);
+
+    private static final long SESSION_CLOSE_WAIT_SECONDS = 5;
+
+    private static final int REPLY_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] REPLY_TERMINATOR_BYTES =
+            KerberosCmdConfiguration.SCRIPT_SESSION_REPLY_TERMINATOR.getBytes(StandardCharsets.UTF_8);
+
+    private static final Map<List<String>, KerberosCmdSession> SESSIONS = new HashMap<>(); //one per script command line
+
+    private static boolean shutdownHookAdded = false;
+
+    public static synchronized KerberosCmdSession openSession(final List<String> sessionCommand, final int sessionCount) {
+        KerberosCmdSession kerberosCmdSession = SESSIONS.get(sessionCommand);
+        if (kerberosCmdSession == null || kerberosCmdSession.sessionProcesses.size() != sessionCount) {
+            if (kerberosCmdSession != null) {
+                kerberosCmdSession.close(); //session count changed, start over with the new count
+            }
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(KerberosCmdSession::closeSessions));
+                shutdownHookAdded = true;
+            }
+            kerberosCmdSession = new KerberosCmdSession(sessionCommand, sessionCount);
+            SESSIONS.put(kerberosCmdSession.sessionCommand, kerberosCmdSession);
+        }
+        return kerberosCmdSession;
+    }
+
+    public static synchronized void closeSessions() {
+        for (final KerberosCmdSession kerberosCmdSession : SESSIONS.values()) {
+            kerberosCmdSession.close();
+        }
+        SESSIONS.clear();
+    }
+
+    private final List<String> sessionCommand;
+
+    private final List<SessionProcess> sessionProcesses = new ArrayList<>();
+
+    private final Deque<SessionProcess> idleSessionProcesses = new ArrayDeque<>();
+
+    private final Semaphore idlePermits; //one per idle session process, released by the exchange, possibly from another thread
+
+    private volatile boolean closed = false;
+
+    private KerberosCmdSession(final List<String> sessionCommand, final int sessionCount) {
+        this.sessionCommand = new ArrayList<>(sessionCommand);
+        for (int i = 0; i < sessionCount; i++) {
+            sessionProcesses.add(new SessionProcess());
+        }
+        idleSessionProcesses.addAll(sessionProcesses);
+        idlePermits = new Semaphore(sessionCount, true);
+    }
+
+    public Process executeScriptCmd(final List<String> paramsAndArgs, final byte[] payload) throws ConnectorIOException {
+        LOG.info("KerberosScript session request: {0}", KerberosCmdConnector.logSanitizePassword(paramsAndArgs, null));
+
+        try {
+            idlePermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorIOException("Interrupted while waiting for the script session", e);
+        }
+        if (closed) {
+            idlePermits.release();
+            throw new ConnectorIOException("The script session was closed");
+        }
+
+        final SessionProcess sessionProcess;
+        synchronized (idleSessionProcesses) {
+            sessionProcess = idleSessionProcesses.pop(); //the most recently used one, extra processes only start under load
+        }
+
+        try {
+            final byte[] request = createRequest(paramsAndArgs, payload);
+            try {
+                sessionProcess.sendRequest(request);
+            } catch (IOException firstAttempt) {
+                LOG.warn("KerberosScript session failed, restarting it: {0}", firstAttempt.getMessage());
+                sessionProcess.stop();
+                sessionProcess.sendRequest(request); //one retry on a fresh session
+            } finally {
+                if (payload != null) {
+                    Arrays.fill(request, (byte) 0); //the payload may hold a password
+                }
+            }
+
+            return new SessionExchange(this, sessionProcess);
+
+        } catch (IOException io) {
+            endExchange(sessionProcess, true);
+            throw new ConnectorIOException(io);
+        } catch (RuntimeException re) {
+            endExchange(sessionProcess, false);
+            throw re;
+        }
+    }
+
+    /**
+     * Waits for the running exchanges to end, then lets every session process exit.
+     */
+    private void close() {
+        boolean idle = false;
+        try {
+            idle = idlePermits.tryAcquire(sessionProcesses.size(), SESSION_CLOSE_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!idle) {
+            LOG.warn("KerberosScript session requests still running, stopping the sessions anyway");
+        }
+
+        closed = true;
+        for (final SessionProcess sessionProcess : sessionProcesses) {
+            sessionProcess.close();
+        }
+        if (idle) {
+            idlePermits.release(sessionProcesses.size()); //requests still waiting fail on the closed session
+        }
+    }
+
+    private void endExchange(final SessionProcess sessionProcess, final boolean sessionBroken) {
+        if (sessionBroken) {
+            sessionProcess.stop();
+        }
+        synchronized (idleSessionProcesses) {
+            idleSessionProcesses.push(sessionProcess);
+        }
+        idlePermits.release();
+    }
+
+    private static byte[] createRequest(final List<String> paramsAndArgs, final byte[] payload) {
+        final StringBuilder line = new StringBuilder();
+        line.append(payload == null ? 0 : payload.length);
+
+        for (final String it : paramsAndArgs) {
+            line.append('\t').append(escapeField(it));
+        }
+        line.append('\n');
+
+        final byte[] header = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (payload == null || payload.length == 0) {
+            return header;
+        }
+
+        final byte[] request = new byte[header.length + payload.length];
+        System.arraycopy(header, 0, request, 0, header.length);
+        System.arraycopy(payload, 0, request, header.length, payload.length);
+        return request;
+    }
+
+    static String escapeField(final String field) {
+        if (field == null) {
+            return "";
+        }
+        return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static void logErrorOutput(final InputStream errorStream) {
+        try (final BufferedReader br = new BufferedReader(new InputStreamReader(errorStream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                LOG.error("Found error in script session: " + line);
+            }
+        } catch (IOException e) {
+            LOG.ok(e, "Script session error output closed");
+        }
+    }
+
+    /**
+     * One script process of the session, restarted when it dies.
+     */
+    private class SessionProcess {
+
+        private final byte[] replyBuffer = new byte[REPLY_BUFFER_SIZE];
+
+        private Process process;
+
+        private OutputStream requestStream;
+
+        private InputStream replyStream;
+
+        private int replyPosition = 0;
+
+        private int replyLimit = 0;
+
+        private void sendRequest(final byte[] request) throws IOException {
+            if (process == null || !process.isAlive()) {
+                start();
+            }
+            requestStream.write(request);
+            requestStream.flush();
+        }
+
+        private void start() throws IOException {
+            LOG.info("KerberosScript starting script session: {0}", sessionCommand);
+
+            final ProcessBuilder builder = new ProcessBuilder(sessionCommand);
+            builder.redirectErrorStream(KerberosCmdConfiguration.shouldRedirectErrorOutput);
+
+            process = builder.start();
+            requestStream = process.getOutputStream(); //requests are written whole, no buffer keeping a copy of them
+            replyStream = process.getInputStream();
+            replyPosition = 0;
+            replyLimit = 0;
+
+            if (!KerberosCmdConfiguration.shouldRedirectErrorOutput) {
+                final InputStream errorStream = process.getErrorStream();
+                final Thread errorReader = new Thread(() -> logErrorOutput(errorStream), "kerberos-script-session-stderr");
+                errorReader.setDaemon(true);
+                errorReader.start();
+            }
+        }
+
+        private synchronized void stop() {
+            if (process != null) {
+                LOG.info("KerberosScript stopping script session");
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+                process = null;
+            }
+        }
+
+        private void close() {
+            final Process closing = process;
+            if (closing != null) {
+                try {
+                    requestStream.close(); //EOF on stdin lets the script exit on its own
+                    closing.waitFor(SESSION_CLOSE_WAIT_SECONDS, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    //swallow, the process is destroyed below
+                }
+                stop();
+            }
+        }
+
+        /**
+         * Reads the next reply line including its line feed, or null at end of stream.
+         */
+        private byte[] readReplyLine() throws IOException {
+            byte[] line = null;
+            int lineLength = 0;
+
+            while (true) {
+                if (replyPosition == replyLimit) {
+                    replyLimit = replyStream.read(replyBuffer, 0, replyBuffer.length);
+                    replyPosition = 0;
+                    if (replyLimit <= 0) {
+                        replyLimit = 0;
+                        return line == null ? null : Arrays.copyOf(line, lineLength);
+                    }
+                }
+
+                int end = replyPosition;
+                while (end < replyLimit && replyBuffer[end] != '\n') {
+                    end++;
+                }
+                final boolean foundEnd = end < replyLimit;
+                if (foundEnd) {
+                    end++; //keep the line feed
+                }
+
+                final int count = end - replyPosition;
+                if (line == null) {
+                    line = new byte[Math.max(count, 128)];
+                } else if (lineLength + count > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + count));
+                }
+                System.arraycopy(replyBuffer, replyPosition, line, lineLength, count);
+                lineLength += count;
+                replyPosition = end;
+
+                if (foundEnd) {
+                    return Arrays.copyOf(line, lineLength);
+                }
+            }
+        }
+    }
+
+    /**
+     * One request/reply exchange on the session, seen as a finished-when-terminated process.
+     */
+    private static class SessionExchange extends Process {
+
+        private final KerberosCmdSession session;
+
+        private final SessionProcess sessionProcess;
+
+        private final CompletableFuture<Process> exit = new CompletableFuture<>();
+
+        private final InputStream replyInputStream = new ReplyInputStream();
+
+        private volatile int exitCode = -1;
+
+        SessionExchange(final KerberosCmdSession session, final SessionProcess sessionProcess) {
+            this.session = session;
+            this.sessionProcess = sessionProcess;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream(); //payload is sent with the request
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return replyInputStream;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return InputStream.nullInputStream(); //session error output is logged by the session
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            try {
+                exit.get();
+            } catch (ExecutionException e) {
+                //never completed exceptionally
+            }
+            return exitCode;
+        }
+
+        @Override
+        public boolean waitFor(final long timeout, final TimeUnit unit) throws InterruptedException {
+            try {
+                exit.get(timeout, unit);
+                return true;
+            } catch (TimeoutException e) {
+                return false;
+            } catch (ExecutionException e) {
+                return true;
+            }
+        }
+
+        @Override
+        public int exitValue() {
+            if (!exit.isDone()) {
+                throw new IllegalThreadStateException("Script session request has not finished");
+            }
+            return exitCode;
+        }
+
+        @Override
+        public void destroy() {
+            //the rest of the reply would still be on the pipe, so the only clean way out is a new session
+            finish(1, true);
+        }
+
+        @Override
+        public boolean isAlive() {
+            return !exit.isDone();
+        }
+
+        @Override
+        public CompletableFuture<Process> onExit() {
+            return exit;
+        }
+
+        private synchronized void finish(final int code, final boolean sessionBroken) {
+            if (!exit.isDone()) {
+                exitCode = code;
+                session.endExchange(sessionProcess, sessionBroken);
+                exit.complete(this);
+            }
+        }
+
+        /**
+         * Passes the reply through line by line and stops at the terminator line.
+         */
+        private class ReplyInputStream extends InputStream {
+
+            private byte[] line = new byte[0];
+
+            private int position = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (!fill()) {
+                    return -1;
+                }
+                return line[position++] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                final int count = Math.min(len, line.length - position);
+                System.arraycopy(line, position, b, off, count);
+                position += count;
+                return count;
+            }
+
+            private boolean fill() throws IOException {
+                if (position < line.length) {
+                    return true;
+                }
+                if (exit.isDone()) {
+                    return false;
+                }
+
+                final byte[] next;
+                try {
+                    next = sessionProcess.readReplyLine();
+                } catch (IOException e) {
+                    finish(1, true);
+                    throw e;
+                }
+
+                if (next == null) {
+                    LOG.error("Kerberos Script session ended before the reply was complete!");
+                    finish(1, true);
+                    return false;
+                }
+
+                if (isTerminator(next)) {
+                    finish(parseExitCode(new String(next, StandardCharsets.UTF_8)), false);
+                    return false;
+                }
+
+                line = next;
+                position = 0;
+                return true;
+            }
+
+            private boolean isTerminator(final byte[] candidate) {
+                final byte[] terminator = REPLY_TERMINATOR_BYTES;
+                if (candidate.length < terminator.length) {
+                    return false;
+                }
+                for (int i = 0; i < terminator.length; i++) {
+                    if (candidate[i] != terminator[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            private int parseExitCode(final String terminatorLine) {
+                try {
+                    return Integer.parseInt(terminatorLine.substring(KerberosCmdConfiguration.SCRIPT_SESSION_REPLY_TERMINATOR.length()).trim());
+                } catch (NumberFormatException e) {
+                    LOG.error("Kerberos Script session reply without exit code: " + terminatorLine);
+                    return 1;
+                }
+            }
+        }
+    }
+}
@@ -56,7 +56,13 @@ public class KerberosCmdCreate extends KerberosCmdExec {
         final String formattedName = formatUsername(name);
         LOG.info("Executing creation for {0} {1}", name, formattedName);
 
-        Pair<Boolean, String> status = scriptExecuteSuccess(execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), createAddUserParameters(formattedName, gpasswd), null));
+        Pair<Boolean, String> status;
+        try {
+            status = execOperation(createAddUserParameters(formattedName, gpasswd), gpasswd);
+        } finally {
+            deletePasswordFiles();
+        }
+        invalidateCachedPrincipal(formattedName);
 
         if (!status.getKey()) {
             LOG.error("Kerberos add user didn't return success for [{0}]!", formattedName);
@@ -68,7 +74,8 @@ public class KerberosCmdCreate extends KerberosCmdExec {
             updateLockStatusParams.add(KerberosCmdConfiguration.SCRIPT_LOCK_FLAG);
             updateLockStatusParams.add(formattedName);
 
-            status = scriptExecuteSuccess((execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), updateLockStatusParams, null)));
+            status = execOperation(updateLockStatusParams);
+            invalidateCachedPrincipal(formattedName);
 
             if (!status.getKey()) {
                 LOG.error("Kerberos add freeze didn't return success for [{0}]!", formattedName);
@@ -45,7 +45,8 @@ public class KerberosCmdDelete extends KerberosCmdExec {
         final Uid formattedUid = createFormattedUsernameUid(uid.getUidValue());
         LOG.info("Executing deletion for {0}", formattedUid);
 
-        final Pair<Boolean,String> status = scriptExecuteSuccess(execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), createDeleteUserParameters(formattedUid), null));
+        final Pair<Boolean,String> status = execOperation(createDeleteUserParameters(formattedUid));
+        invalidateCachedPrincipal(formattedUid.getUidValue());
         if (!status.getKey()) {
             throw new ConnectorException("Failure while deleting user " + formattedUid.getUidValue() + " with " + status.getValue());
         }
@@ -15,24 +15,36 @@
  */
 package edu.mines.kerberos.cmd.methods;
 
-import java.io.BufferedReader;
-import java.io.FileWriter;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
+import edu.mines.kerberos.cmd.KerberosCmdBatchQueue;
 import edu.mines.kerberos.cmd.KerberosCmdConnection;
 import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
 import edu.mines.kerberos.cmd.KerberosCmdConnector;
+import edu.mines.kerberos.cmd.KerberosCmdIoPump;
+import edu.mines.kerberos.cmd.KerberosCmdLimiter;
+import edu.mines.kerberos.cmd.KerberosCmdMetrics;
+import edu.mines.kerberos.cmd.KerberosCmdSession;
+import edu.mines.kerberos.cmd.search.ListingSnapshotStore;
+import edu.mines.kerberos.cmd.search.PrincipalCache;
 import org.identityconnectors.common.Pair;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.common.security.SecurityUtil;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
 import org.identityconnectors.framework.common.objects.*;
 
 
@@ -45,6 +57,28 @@ public abstract class KerberosCmdExec {
 
     private static final Log LOG = Log.getLog(KerberosCmdExec.class);
 
+    private static final long PROCESS_DESTROY_WAIT_SECONDS = 5;
+
+    //how long after exiting a killed script stays known as expired, well past the drain of its output
+    private static final long EXPIRED_PROCESS_GRACE_SECONDS = 60;
+
+    //script paths supporting the -M batch manifest, a successful probe holds for good
+    private static final Set<String> BATCH_SUPPORTED = ConcurrentHashMap.newKeySet();
+
+    //script paths that failed the probe, until when they run operations one call at a time
+    private static final Map<String, Long> BATCH_UNSUPPORTED_UNTIL = new ConcurrentHashMap<>();
+
+    private static final long BATCH_PROBE_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final ScheduledExecutorService WATCHDOG = createWatchdog();
+
+    //scripts killed by the watchdog, the thread waiting on them turns that into a timeout
+    private final Set<Process> expiredProcesses = ConcurrentHashMap.newKeySet();
+
+    private final Map<Process, CompletableFuture<List<String>>> errorOutputs = new ConcurrentHashMap<>();
+
+    private final List<Path> passwordFiles = new CopyOnWriteArrayList<>();
+
     protected final ObjectClass oc;
     
     protected final KerberosCmdConfiguration kerberosCmdConfiguration;
@@ -60,7 +94,80 @@ public abstract class KerberosCmdExec {
 
     protected Process execScriptCmd(final String scriptToExecute, final List<String> paramsAndArgs,
                                     final List<Pair<String, String>> env) throws ConnectorException {
+        return execScriptCmd(scriptToExecute, paramsAndArgs, env, null);
+    }
+
+    /**
+     * Runs the script with the payload (if any) on its stdin, in the session the payload follows the request line.
+     * The call waits for a slot when script concurrency is limited and holds it until the script exits.
+     */
+    protected Process execScriptCmd(final String scriptToExecute, final List<String> paramsAndArgs,
+                                    final List<Pair<String, String>> env, final byte[] payload) throws ConnectorException {
+        final KerberosCmdLimiter.Permit permit = KerberosCmdLimiter.getLimiter().acquire(
+                isBulkOperation(paramsAndArgs) ? KerberosCmdLimiter.Lane.BULK : KerberosCmdLimiter.Lane.INTERACTIVE,
+                isWriteOperation(paramsAndArgs), isSinglePrincipalOperation(paramsAndArgs));
+        final Process proc;
+        try {
+            proc = startScriptCmd(scriptToExecute, paramsAndArgs, env, payload);
+        } catch (RuntimeException e) {
+            permit.release();
+            throw e;
+        }
+
+        proc.onExit().whenComplete((exited, e) -> permit.release(e != null || isOverloadExitCode(exited.exitValue())));
+        try {
+            errorOutputs.put(proc, KerberosCmdIoPump.getPump().drain(proc.getErrorStream())); //from the start, a full stderr would stall the script
+        } catch (ConnectorException e) {
+            destroyProcessTree(proc);
+            throw e;
+        }
+        startWatchdog(proc, getScriptTimeoutSeconds(paramsAndArgs));
+        return proc;
+    }
+
+    /**
+     * Kills the script and its children if it is still running when its deadline passes.
+     */
+    private void startWatchdog(final Process proc, final int timeoutSeconds) {
+        if (timeoutSeconds <= 0) {
+            return;
+        }
 
+        final ScheduledFuture<?> watchdog = WATCHDOG.schedule(() -> {
+            if (proc.isAlive()) {
+                LOG.warn("Script still running after {0} seconds, killing it", timeoutSeconds);
+                expiredProcesses.add(proc);
+                proc.onExit().whenComplete((exited, e) -> WATCHDOG.schedule(() -> expiredProcesses.remove(proc),
+                        EXPIRED_PROCESS_GRACE_SECONDS, TimeUnit.SECONDS)); //nobody may ever check its status
+                KerberosCmdMetrics.increment(KerberosCmdMetrics.SCRIPT_TIMEOUTS);
+                destroyProcessTree(proc);
+            }
+        }, timeoutSeconds, TimeUnit.SECONDS);
+        proc.onExit().whenComplete((exited, e) -> watchdog.cancel(false));
+    }
+
+    /**
+     * Throws a timeout if the watchdog killed the script.
+     */
+    protected void checkScriptDeadline(final Process proc) throws OperationTimeoutException {
+        if (expiredProcesses.remove(proc)) {
+            throw new OperationTimeoutException("Kerberos script didn't finish before its deadline and was killed");
+        }
+    }
+
+    /**
+     * Kills the script when the waiting thread is interrupted (framework timeout) and reports it as a timeout.
+     */
+    protected OperationTimeoutException interruptScript(final Process proc, final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOG.warn("Interrupted while waiting for the script, killing it");
+        expiredProcesses.remove(proc);
+        destroyProcessTree(proc);
+        return new OperationTimeoutException("Interrupted while waiting for the Kerberos script", e);
+    }
+
+    private Process startScriptCmd(final String scriptToExecute, final List<String> paramsAndArgs,
+                                   final List<Pair<String, String>> env, final byte[] payload) throws ConnectorException {
         final List<String> command = new ArrayList<>();
         LOG.ok("Parameters and arguments passed: " + KerberosCmdConnector.logSanitizePassword(paramsAndArgs, env));
 
@@ -73,63 +180,217 @@ public abstract class KerberosCmdExec {
         command.add(KerberosCmdConfiguration.SCRIPT_KEYTAB_FLAG);
         command.add(kerberosCmdConfiguration.getKeytabPath());
 
+        if (shouldUseScriptSession(scriptToExecute, env)) {
+            command.add(KerberosCmdConfiguration.SCRIPT_SESSION_FLAG);
+            try {
+                return KerberosCmdSession.openSession(command, kerberosCmdConfiguration.scriptSessionCount())
+                        .executeScriptCmd(paramsAndArgs, payload);
+
+            } catch (Exception e) {
+                LOG.error(e, "Error executing script session request: " + KerberosCmdConnector.logSanitizePassword(paramsAndArgs, env));
+                throw new ConnectorException(e);
+            }
+        }
+
         command.addAll(paramsAndArgs);
         LOG.ok("Built Script Command: " + KerberosCmdConnector.logSanitizePassword(command, env));
 
         try {
-            return KerberosCmdConnection.openConnection().executeScriptCmd(command, env);
+            return KerberosCmdConnection.openConnection().executeScriptCmd(command, env, payload);
 
         } catch (Exception e) {
-            LOG.error(e, "Error executing script: " + command);
+            LOG.error(e, "Error executing script: " + KerberosCmdConnector.logSanitizePassword(command, env));
             throw new ConnectorException(e);
         }
     }
 
-    protected boolean setUsernameAndPassword(final String username, final GuardedString password, final List<String> scriptParameters) {
-        if (!kerberosCmdConfiguration.shouldSetPasswordsAsScriptArgument()) {
+    /**
+     * Runs an add, delete, freeze, thaw or password change, in a batch with concurrent ones when operation batching is on.
+     */
+    protected Pair<Boolean,String> execOperation(final List<String> operationParameters) throws ConnectorException {
+        return execOperation(operationParameters, null);
+    }
 
-            final String fileSeparator = FileSystems.getDefault().getSeparator();
-            final String passwordFileName;
-            final String passwordFileFullPath;
-            String passwordFileLocation;
+    /**
+     * Same as above, the password is written to the script's stdin when the parameters ask for it with "-w -".
+     * In a batch the manifest already takes stdin, the password goes in its line the way it would go as script argument.
+     */
+    protected Pair<Boolean,String> execOperation(final List<String> operationParameters, final GuardedString password) throws ConnectorException {
+        final boolean passwordOnStdin = password != null && isPasswordOnStdin(operationParameters);
+
+        final KerberosCmdBatchQueue batchQueue = KerberosCmdBatchQueue.getQueue(kerberosCmdConfiguration);
+        if (batchQueue.isEnabled() && isBatchSupported()) {
+            return batchQueue.execute(passwordOnStdin ? createPasswordArgumentParameters(operationParameters, password) : operationParameters,
+                    this::execBatchCmd, alone -> execAloneCmd(operationParameters, passwordOnStdin ? password : null));
+        }
 
-            if (username.contains("@")) {
-                passwordFileName = username.split("@")[0];
-            } else {
-                passwordFileName = username;
-            }
+        return execAloneCmd(operationParameters, passwordOnStdin ? password : null);
+    }
 
-            if (StringUtil.isNotBlank(kerberosCmdConfiguration.getPasswordFilePath())) {
-                passwordFileLocation = kerberosCmdConfiguration.getPasswordFilePath();
-            } else {
-                try {
-                    passwordFileLocation = (System.getenv("MIDPOINT_HOME") + fileSeparator + "tmp");
-                } catch (Exception e) {
-                    //swallow
-                    passwordFileLocation = fileSeparator + "opt" + fileSeparator + "midpoint" + fileSeparator + "var" + fileSeparator + "tmp";
-                }
-            }
+    private Pair<Boolean,String> execAloneCmd(final List<String> operationParameters, final GuardedString stdinPassword) throws ConnectorException {
+        final byte[] payload = stdinPassword != null ? createPasswordPayload(stdinPassword) : null;
+        try {
+            return scriptExecuteSuccess(execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), operationParameters, null, payload));
+        } finally {
+            clearPasswordPayload(payload);
+        }
+    }
 
-            passwordFileFullPath = passwordFileLocation + fileSeparator + passwordFileName;
-            final boolean fileCreated = createPasswordFile(password, passwordFileFullPath);
+    /**
+     * Whether the script supports the batch manifest, found out by sending it an empty one. A script failing on it
+     * is probed again after a while (the failure may have been the KDC's), a failing batch later on changes nothing.
+     */
+    private boolean isBatchSupported() throws ConnectorException {
+        final String scriptPath = kerberosCmdConfiguration.getScriptCmdPath();
+        if (BATCH_SUPPORTED.contains(scriptPath)) {
+            return true;
+        }
 
-            if (fileCreated) {
-                scriptParameters.add(KerberosCmdConfiguration.SCRIPT_PASSWORD_FILE_FLAG);
-                scriptParameters.add(passwordFileFullPath);
-                scriptParameters.add(username);
+        synchronized (BATCH_UNSUPPORTED_UNTIL) { //one probe at a time
+            if (BATCH_SUPPORTED.contains(scriptPath)) {
                 return true;
+            }
+            final Long unsupportedUntil = BATCH_UNSUPPORTED_UNTIL.get(scriptPath);
+            if (unsupportedUntil != null && System.currentTimeMillis() < unsupportedUntil) {
+                return false;
+            }
 
+            final Pair<Boolean,String> status = scriptExecuteSuccess(execScriptCmd(scriptPath,
+                    Collections.singletonList(KerberosCmdConfiguration.SCRIPT_BATCH_FLAG), null, new byte[0]));
+            if (status.getKey()) {
+                BATCH_SUPPORTED.add(scriptPath);
+                BATCH_UNSUPPORTED_UNTIL.remove(scriptPath);
             } else {
-                //Can add other options here if remove connector exception in createPasswordFile method
+                LOG.warn("Script doesn't support batches ({0}), running operations one call at a time", status.getValue());
+                BATCH_UNSUPPORTED_UNTIL.put(scriptPath, System.currentTimeMillis() + BATCH_PROBE_RETRY_MILLIS);
             }
+            return status.getKey();
+        }
+    }
+
+    /**
+     * Sends the operations to the script as a manifest on stdin and returns their statuses.
+     */
+    private List<Pair<Boolean,String>> execBatchCmd(final List<List<String>> operations) throws ConnectorException {
+        LOG.info("Executing a batch of {0} operations", operations.size());
+
+        final List<String> output = new ArrayList<>();
+        final byte[] manifest = KerberosCmdBatchQueue.createManifest(operations);
+        final Pair<Boolean,String> status;
+        try {
+            status = scriptExecuteSuccess(execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(),
+                    Collections.singletonList(KerberosCmdConfiguration.SCRIPT_BATCH_FLAG), null, manifest), output);
+        } finally {
+            clearPasswordPayload(manifest); //passwords of the operations sent with -w -
+        }
+
+        return KerberosCmdBatchQueue.createStatuses(output, operations.size(), status.getValue());
+    }
+
+    protected boolean setUsernameAndPassword(final String username, final GuardedString password, final List<String> scriptParameters) {
+        if (!kerberosCmdConfiguration.shouldSetPasswordsAsScriptArgument()) {
+            scriptParameters.add(KerberosCmdConfiguration.SCRIPT_PASSWORD_FILE_FLAG);
+            scriptParameters.add(kerberosCmdConfiguration.shouldSendPasswordsOnStdin()
+                    ? KerberosCmdConfiguration.SCRIPT_PASSWORD_STDIN : writePasswordFile(username, password));
+            scriptParameters.add(username);
 
         } else {
             scriptParameters.add(username);
             scriptParameters.add(SecurityUtil.decrypt(password));
-            return true;
         }
 
-        return false;
+        return true;
+    }
+
+    /**
+     * Whether the parameters ask the script to read the password from stdin.
+     */
+    protected static boolean isPasswordOnStdin(final List<String> scriptParameters) {
+        final int passwordFileIndex = scriptParameters.indexOf(KerberosCmdConfiguration.SCRIPT_PASSWORD_FILE_FLAG);
+        return passwordFileIndex >= 0 && passwordFileIndex + 1 < scriptParameters.size()
+                && KerberosCmdConfiguration.SCRIPT_PASSWORD_STDIN.equals(scriptParameters.get(passwordFileIndex + 1));
+    }
+
+    /**
+     * The password and a newline, the way the script reads it from stdin. Clear it once the script has it.
+     */
+    protected static byte[] createPasswordPayload(final GuardedString password) {
+        return encodePassword(password, "\n");
+    }
+
+    /**
+     * The password in UTF-8 followed by the suffix, encoded from the password characters without a String
+     * so the only cleartext copy left is the returned array.
+     */
+    private static byte[] encodePassword(final GuardedString password, final String suffix) {
+        final byte[][] encoded = new byte[1][];
+        password.access(clearChars -> {
+            final CharBuffer chars = CharBuffer.allocate(clearChars.length + suffix.length());
+            chars.put(clearChars).put(suffix).flip();
+            final ByteBuffer bytes = StandardCharsets.UTF_8.encode(chars);
+            encoded[0] = Arrays.copyOfRange(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.arrayOffset() + bytes.limit());
+            Arrays.fill(chars.array(), '\0');
+            Arrays.fill(bytes.array(), (byte) 0);
+        });
+        return encoded[0];
+    }
+
+    protected static void clearPasswordPayload(final byte[] payload) {
+        if (payload != null) {
+            Arrays.fill(payload, (byte) 0);
+        }
+    }
+
+    /**
+     * The "-x -w - user" parameters with the password as script argument instead, "-x user password".
+     */
+    private static List<String> createPasswordArgumentParameters(final List<String> scriptParameters, final GuardedString password) {
+        final List<String> argumentParameters = new ArrayList<>(scriptParameters);
+        final int passwordFileIndex = argumentParameters.indexOf(KerberosCmdConfiguration.SCRIPT_PASSWORD_FILE_FLAG);
+        argumentParameters.subList(passwordFileIndex, passwordFileIndex + 2).clear();
+        argumentParameters.add(SecurityUtil.decrypt(password));
+        return argumentParameters;
+    }
+
+    /**
+     * Writes the password to a new file only the connector user can read, returns its path.
+     * The file gets a unique name so operations on the same user don't overwrite each other's password,
+     * it is deleted by {@link #deletePasswordFiles()} once the script call returns.
+     */
+    protected String writePasswordFile(final String username, final GuardedString password) {
+        final String fileSeparator = FileSystems.getDefault().getSeparator();
+        final String passwordFileName;
+        String passwordFileLocation;
+
+        if (username.contains("@")) {
+            passwordFileName = username.split("@")[0];
+        } else {
+            passwordFileName = username;
+        }
+
+        if (StringUtil.isNotBlank(kerberosCmdConfiguration.getPasswordFilePath())) {
+            passwordFileLocation = kerberosCmdConfiguration.getPasswordFilePath();
+        } else if (System.getenv("MIDPOINT_HOME") != null) {
+            passwordFileLocation = System.getenv("MIDPOINT_HOME") + fileSeparator + "tmp";
+        } else {
+            passwordFileLocation = fileSeparator + "opt" + fileSeparator + "midpoint" + fileSeparator + "var" + fileSeparator + "tmp";
+        }
+
+        return createPasswordFile(password, Paths.get(passwordFileLocation), passwordFileName.replace("/", "_")).toString(); //instances like user/admin
+    }
+
+    /**
+     * Deletes the password files written for this operation's script calls.
+     */
+    protected void deletePasswordFiles() {
+        for (final Path passwordFile : passwordFiles) {
+            try {
+                Files.deleteIfExists(passwordFile);
+            } catch (IOException e) {
+                LOG.warn("Couldn't delete password file {0}: {1}", passwordFile, e.getMessage());
+            }
+            passwordFiles.remove(passwordFile);
+        }
     }
 
     //Not used
@@ -177,59 +438,98 @@ public abstract class KerberosCmdExec {
     }
 
     protected Pair<Boolean,String> scriptExecuteSuccess(final Process proc) {
-        int statusCode = 1;
-        final StringBuilder statusMessage = new StringBuilder();
-        final ExecutorService threadPool = Executors.newSingleThreadExecutor();
+        return scriptExecuteSuccess(proc, null);
+    }
 
+    /**
+     * Waits for the script and checks its status, the standard output lines are added to stdOutputLines when given.
+     */
+    protected Pair<Boolean,String> scriptExecuteSuccess(final Process proc, final List<String> stdOutputLines) {
         try {
-            final ReadProcessOutput stdOutputStreamReader = new ReadProcessOutput(proc.getInputStream());
-            final Future<List<String>> procStdOutput = threadPool.submit(stdOutputStreamReader);
-            final ReadProcessOutput errorOutputStreamReader = new ReadProcessOutput(proc.getErrorStream());
-            final Future<List<String>> procErrorOutput = threadPool.submit(errorOutputStreamReader);
+            return scriptExecuteAsync(proc, stdOutputLines).get();
 
-            proc.waitFor();
-
-            try {
-                final List<String> errorOutput = procErrorOutput.get(5, TimeUnit.SECONDS);
-                if (!errorOutput.isEmpty()) {
-                    LOG.error("Found error in script: " + errorOutput);
-                    statusMessage.append(errorOutput).append(" ");
-                }
-            } catch (Exception ioe) {
-                //swallow
+        } catch (InterruptedException e) {
+            throw interruptScript(proc, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ConnectorException) {
+                throw (ConnectorException) e.getCause(); //script deadline
             }
+            LOG.error(e.getCause(), "Error waiting for process termination or reading output!");
+            return new Pair<>(false, e.getCause().getMessage() + " ");
+        }
+    }
 
-            try {
-                final List<String> stdOutput = procStdOutput.get(5, TimeUnit.SECONDS);
-
-                if (Boolean.parseBoolean(kerberosCmdConfiguration.getRedirectErrorOutput())) {
-                    for (final String it : stdOutput) {
-                        if (it.contains(kerberosCmdConfiguration.getScriptErrorResponse())) {
-                            LOG.error("Found error in script: " + it);
-                            statusMessage.append(it).append(" ");
-                        }
-                    }
-                }
-            } catch (Exception ioe2) {
-                //swallow
-            }
+    /**
+     * Completes with the script's status once it exited and both its outputs were read, no thread waits meanwhile.
+     */
+    protected CompletableFuture<Pair<Boolean,String>> scriptExecuteAsync(final Process proc, final List<String> stdOutputLines) {
+        return KerberosCmdIoPump.getPump().collect(proc, errorOutputs.remove(proc))
+                .thenApply(output -> createScriptStatus(proc, output, stdOutputLines));
+    }
 
-            statusCode = proc.exitValue();
-            KerberosCmdConnector.logScriptStatus(statusCode);
+    private Pair<Boolean,String> createScriptStatus(final Process proc, final KerberosCmdIoPump.ScriptOutput output,
+                                                    final List<String> stdOutputLines) {
+        final StringBuilder statusMessage = new StringBuilder();
+        if (!output.getErrorOutput().isEmpty()) {
+            LOG.error("Found error in script: " + output.getErrorOutput());
+            statusMessage.append(output.getErrorOutput()).append(" ");
+        }
 
-        } catch (Exception e) {
-            LOG.error(e, "Error waiting for process termination or reading output!");
-            statusMessage.append(e.getMessage()).append(" ");
-            statusCode = 1;
-        } finally {
-            threadPool.shutdown();
+        if (stdOutputLines != null) {
+            stdOutputLines.addAll(output.getStdOutput());
         }
 
+        if (Boolean.parseBoolean(kerberosCmdConfiguration.getRedirectErrorOutput())) {
+            for (final String it : output.getStdOutput()) {
+                if (it.contains(kerberosCmdConfiguration.getScriptErrorResponse())) {
+                    LOG.error("Found error in script: " + it);
+                    statusMessage.append(it).append(" ");
+                }
+            }
+        }
+
+        int statusCode = output.getExitCode();
+        KerberosCmdConnector.logScriptStatus(statusCode);
+        checkScriptDeadline(proc);
+
         if (statusCode == 0 && statusMessage.length() > 0) {
             statusCode = 1; //let's force the error code since perhaps the script isn't reporting exit status
         }
 
-        return new Pair(statusCode == 0, statusMessage.toString());
+        return new Pair<>(statusCode == 0, statusMessage.toString());
+    }
+
+    protected void destroyProcessTree(final Process proc) {
+        LOG.info("Stopping script process and its children");
+
+        List<ProcessHandle> children = Collections.emptyList();
+        try {
+            children = proc.descendants().filter(ProcessHandle::isAlive).collect(Collectors.toList()); //kadmin and friends started by the script
+        } catch (UnsupportedOperationException e) {
+            //session requests have no process tree of their own, destroying them restarts the session
+        }
+
+        final boolean alive = proc.isAlive();
+        children.forEach(ProcessHandle::destroyForcibly);
+        proc.destroyForcibly();
+        KerberosCmdMetrics.add(KerberosCmdMetrics.SCRIPT_KILLED_PROCESSES, children.size() + (alive ? 1 : 0));
+
+        final boolean interrupted = Thread.interrupted(); //still reap the processes when killing them because of an interrupt
+        try {
+            if (!proc.waitFor(PROCESS_DESTROY_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                LOG.warn("Script process did not terminate after being destroyed");
+            }
+            CompletableFuture.allOf(children.stream().map(ProcessHandle::onExit).toArray(CompletableFuture[]::new))
+                    .get(PROCESS_DESTROY_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOG.warn("Script child processes did not terminate after being destroyed");
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     protected GuardedString getPasswordFromAttributes(final Set<Attribute> attributes) {
@@ -282,6 +582,20 @@ public abstract class KerberosCmdExec {
         return -1;
     }
 
+    protected String describeExitCode(final String exitCode) {
+        return KerberosCmdConfiguration.describeExitCode(exitCode);
+    }
+
+    /**
+     * Called after a principal is written, drops its cached copy and the paged search snapshots holding it.
+     */
+    protected void invalidateCachedPrincipal(final String username) {
+        if (StringUtil.isNotBlank(username)) {
+            PrincipalCache.getCache(kerberosCmdConfiguration).invalidate(formatUsername(username));
+        }
+        ListingSnapshotStore.getStore(kerberosCmdConfiguration).clear();
+    }
+
     protected Uid createFormattedUsernameUid(final String username) {
         return new Uid(formatUsername(username));
     }
@@ -294,36 +608,116 @@ public abstract class KerberosCmdExec {
         return rawUsernameParam.trim();
     }
 
-    private void setScriptType() {
-        if (kerberosCmdConfiguration != null && StringUtil.isNotBlank(kerberosCmdConfiguration.getScriptCmdType())) {
-            this.scriptType = kerberosCmdConfiguration.getScriptCmdType();
+    /**
+     * Position of the operation flag, after the output option flags (timestamps, JSON output).
+     */
+    private static int getOperationIndex(final List<String> paramsAndArgs) {
+        int operationIndex = 0;
+        while (operationIndex < paramsAndArgs.size()
+                && (KerberosCmdConfiguration.SCRIPT_TIMESTAMPS_FLAG.equals(paramsAndArgs.get(operationIndex))
+                || KerberosCmdConfiguration.SCRIPT_JSON_OUTPUT_FLAG.equals(paramsAndArgs.get(operationIndex)))) {
+            operationIndex++;
         }
+        return operationIndex;
     }
 
-    private boolean createPasswordFile(final GuardedString password, final String fileFullPath) {
-        try (final FileWriter fw = new FileWriter(fileFullPath, StandardCharsets.UTF_8, false)) {
-            fw.write(SecurityUtil.decrypt(password));
-            return true;
+    /**
+     * Listings and shows are reads.
+     */
+    private static boolean isWriteOperation(final List<String> paramsAndArgs) {
+        final int operationIndex = getOperationIndex(paramsAndArgs);
+        return paramsAndArgs.size() > operationIndex
+                && !KerberosCmdConfiguration.SCRIPT_LIST_ALL_USERS_FLAG.equals(paramsAndArgs.get(operationIndex))
+                && !KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG.equals(paramsAndArgs.get(operationIndex));
+    }
 
-        } catch (Exception e) {
-            LOG.warn("Error saving password with " + e.getMessage());
-            throw new ConnectorException("Error saving password file!", e); //Can remove if add other options
+    /**
+     * Listings and batches, they wait behind the single principal operations (lookups included, batched or not).
+     */
+    private static boolean isBulkOperation(final List<String> paramsAndArgs) {
+        final int operationIndex = getOperationIndex(paramsAndArgs);
+        return paramsAndArgs.size() > operationIndex
+                && (KerberosCmdConfiguration.SCRIPT_LIST_ALL_USERS_FLAG.equals(paramsAndArgs.get(operationIndex))
+                || KerberosCmdConfiguration.SCRIPT_BATCH_FLAG.equals(paramsAndArgs.get(operationIndex)));
+    }
+
+    /**
+     * Single principal operations take about the same time each, these are the calls timed by the adaptive limit.
+     * Listings and batches depend on their size, combined updates on how many steps they run.
+     */
+    public static boolean isSinglePrincipalOperation(final List<String> paramsAndArgs) {
+        final int operationIndex = getOperationIndex(paramsAndArgs);
+        if (paramsAndArgs.size() <= operationIndex) {
+            return false;
         }
 
-        //return false;
+        final String operation = paramsAndArgs.get(operationIndex);
+        if (KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG.equals(operation)) {
+            return paramsAndArgs.size() == operationIndex + 2;
+        }
+        return !KerberosCmdConfiguration.SCRIPT_LIST_ALL_USERS_FLAG.equals(operation)
+                && !KerberosCmdConfiguration.SCRIPT_BATCH_FLAG.equals(operation)
+                && !KerberosCmdConfiguration.SCRIPT_COMBINED_UPDATE_FLAG.equals(operation);
+    }
+
+    /**
+     * Failures that aren't about the principal itself (generic errors, spool errors, unknown codes, killed scripts).
+     */
+    private static boolean isOverloadExitCode(final int exitCode) {
+        return exitCode != 0 && (exitCode == 1 || exitCode == 200 || !KerberosCmdConfiguration.SCRIPT_EXIT_ERROR_CODES.containsKey(exitCode));
+    }
+
+    private int getScriptTimeoutSeconds(final List<String> paramsAndArgs) {
+        if (isBulkOperation(paramsAndArgs)) {
+            return kerberosCmdConfiguration.scriptListingTimeoutSeconds();
+        }
+        return isWriteOperation(paramsAndArgs) ? kerberosCmdConfiguration.scriptWriteTimeoutSeconds()
+                : kerberosCmdConfiguration.scriptLookupTimeoutSeconds();
     }
 
-    private static class ReadProcessOutput implements Callable<List<String>> {
+    private static ScheduledExecutorService createWatchdog() {
+        final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "kerberos-cmd-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.setRemoveOnCancelPolicy(true);
+        return watchdog;
+    }
 
-        private final InputStream input;
+    //Only the main script runs in the session, the test script and anything passing environment variables still forks
+    private boolean shouldUseScriptSession(final String scriptToExecute, final List<Pair<String, String>> env) {
+        return kerberosCmdConfiguration.shouldUseScriptSession()
+                && (env == null || env.isEmpty())
+                && scriptToExecute != null
+                && scriptToExecute.equals(kerberosCmdConfiguration.getScriptCmdPath());
+    }
 
-        public ReadProcessOutput(final InputStream processInputStream) {
-            this.input = processInputStream;
+    private void setScriptType() {
+        if (kerberosCmdConfiguration != null && StringUtil.isNotBlank(kerberosCmdConfiguration.getScriptCmdType())) {
+            this.scriptType = kerberosCmdConfiguration.getScriptCmdType();
         }
+    }
+
+    private Path createPasswordFile(final GuardedString password, final Path directory, final String passwordFileName) {
+        final FileAttribute<?>[] ownerOnly = directory.getFileSystem().supportedFileAttributeViews().contains("posix")
+                ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+                : new FileAttribute<?>[0];
+
+        final byte[] passwordBytes = encodePassword(password, "");
+        try {
+            final Path passwordFile = Files.createTempFile(directory, passwordFileName + ".", ".pw", ownerOnly); //created with the permissions, never readable by others
+            passwordFiles.add(passwordFile);
+            Files.write(passwordFile, passwordBytes);
+            return passwordFile;
 
-        @Override
-        public final List<String> call() {
-            return new BufferedReader(new InputStreamReader(input)).lines().collect(Collectors.toList());
+        } catch (Exception e) {
+            LOG.warn("Error saving password with " + e.getMessage());
+            deletePasswordFiles();
+            throw new ConnectorException("Error saving password file!", e);
+
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
         }
     }
 }
@@ -15,18 +15,35 @@
  */
 package edu.mines.kerberos.cmd.methods;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.function.Predicate;
 import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
+import edu.mines.kerberos.cmd.search.ByteListingParser;
+import edu.mines.kerberos.cmd.search.FilterPredicate;
+import edu.mines.kerberos.cmd.search.JsonListingParser;
+import edu.mines.kerberos.cmd.search.LineListingParser;
+import edu.mines.kerberos.cmd.search.ListingFlight;
+import edu.mines.kerberos.cmd.search.ListingFlightStore;
+import edu.mines.kerberos.cmd.search.ListingParser;
+import edu.mines.kerberos.cmd.search.ListingSnapshot;
+import edu.mines.kerberos.cmd.search.ListingSnapshotStore;
+import edu.mines.kerberos.cmd.search.LookupBatcher;
 import edu.mines.kerberos.cmd.search.Operand;
+import edu.mines.kerberos.cmd.search.Operator;
+import edu.mines.kerberos.cmd.search.PrincipalCache;
+import edu.mines.kerberos.cmd.search.SearchPlan;
 import org.identityconnectors.common.Pair;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
 
 
 /**
@@ -37,154 +54,478 @@ public class KerberosCmdExecuteQuery extends KerberosCmdExec {
 
     private static final Log LOG = Log.getLog(KerberosCmdExecuteQuery.class);
 
+    //how long a script that rejected a multi-principal lookup gets single lookups only
+    private static final long LOOKUP_BATCH_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final Pattern GLOB_SPECIAL_CHARACTERS = Pattern.compile("[*?\\[\\]\\\\]");
+
+    private static final Set<String> IDENTIFIER_ATTRIBUTES =
+            Set.of(Uid.NAME, Name.NAME, KerberosCmdConfiguration.SCRIPT_USER_NAME_ATTRIBUTE_NAME);
+
     private final Operand filter;
 
     private final ResultsHandler resultsHandler;
 
+    private final OperationOptions operationOptions;
+
+    private final Set<String> attributesToParse;
+
+    private boolean stoppedByHandler = false;
+
+    private final long cacheGeneration;
+
     public KerberosCmdExecuteQuery(final ObjectClass oc, final KerberosCmdConfiguration kerberosCmdConfiguration, final Operand filter,
-                                   final ResultsHandler rh) {
+                                   final ResultsHandler rh, final OperationOptions oo) {
         super(oc, kerberosCmdConfiguration);
 
         this.filter = filter;
         this.resultsHandler = rh;
+        this.operationOptions = oo;
+        this.attributesToParse = createAttributesToParse();
+        this.cacheGeneration = PrincipalCache.getCache(kerberosCmdConfiguration).getGeneration(); //ahead of any script reading principals
     }
 
-    public void execQuery() throws ConnectorException, ConnectorIOException {
-        final Process proc;
-        proc = execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), createSearchParameters(), null); //execute search
+    /**
+     * Attributes the results need: the requested ones and those the connector filters on, null for all of them.
+     * Every attribute is returned by default, so asking for the defaults as well needs all of them.
+     */
+    private Set<String> createAttributesToParse() {
+        if (operationOptions == null || operationOptions.getAttributesToGet() == null
+                || Boolean.TRUE.equals(operationOptions.getReturnDefaultAttributes())) {
+            return null;
+        }
 
-        if (proc.isAlive()) {
-            final List<ConnectorObject> results = readSearchOutput(proc); //process results
+        final Set<String> attributes = new TreeSet<>(Arrays.asList(operationOptions.getAttributesToGet()));
+        addFilterAttributes(filter, attributes);
+        return attributes;
+    }
 
-            final Pair<Boolean,String> status = scriptExecuteSuccess(proc);
-            if (status.getKey()) { //check exit code
-                results.stream().filter(Objects::nonNull).forEach(resultsHandler::handle); //publish results and exit
-            } else {
-                throw new ConnectorException("Error in search: " + status.getValue());
-            }
+    private void addFilterAttributes(final Operand operand, final Set<String> attributes) {
+        if (operand == null) {
+            return;
+        }
+
+        if (operand.isComposite()) {
+            addFilterAttributes(operand.getFirstOperand(), attributes);
+            addFilterAttributes(operand.getSecondOperand(), attributes);
+        } else if (!operand.isName()) {
+            attributes.add(operand.getAttributeName());
         }
     }
 
-    private List<String> createSearchParameters() {
-        final List<String> createSearchParams = new ArrayList<>();
+    /**
+     * Whether the search only needs principal names, listings then run without -s.
+     */
+    private boolean isIdentifierOnlySearch() {
+        return attributesToParse != null && IDENTIFIER_ATTRIBUTES.containsAll(attributesToParse);
+    }
+
+    /**
+     * Attributes parsed out of the output of the given script call, null for all of them.
+     */
+    private Set<String> getParsedAttributes(final List<String> searchParameters) {
+        if (searchParameters.contains(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG)) {
+            return attributesToParse;
+        }
+        return attributesToParse != null ? attributesToParse : IDENTIFIER_ATTRIBUTES; //names only listing, shared ones have no options
+    }
 
+    public void execQuery() throws ConnectorException, ConnectorIOException {
+        final SearchPlan plan = SearchPlan.create(filter, this::isPushable);
         if (filter != null) {
             LOG.ok("Search with filter {0} ...", filter);
-            LOG.ok("Creating parameters for search with: ");
             LOG.ok(KerberosCmdConfiguration.OBJECT_CLASS + ": {0}", oc.getObjectClassValue());
-            LOG.ok("Query filter {0}= {1}", filter.getAttributeName(), filter.getAttributeValue());
-            createSearchParams.add(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG);
-            createSearchParams.add(formatUsername(filter.getAttributeValue()));
+            LOG.ok("Query runs as {0}", plan);
+        }
 
+        if (isPagedSearch()) {
+            execPagedQuery(plan);
         } else {
-            LOG.ok("Full search (no filter) ...");
-            createSearchParams.add(KerberosCmdConfiguration.SCRIPT_LIST_ALL_USERS_FLAG);
-            createSearchParams.add(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG);
+            runSearchPlan(plan, resultsHandler);
         }
+    }
 
-        return createSearchParams;
+    /**
+     * Runs each pushed operand of the plan (or a full listing) and publishes the principals matching the whole filter.
+     * Returns false if the handler stopped the search early.
+     */
+    private boolean runSearchPlan(final SearchPlan plan, final ResultsHandler handler) throws ConnectorException {
+        final ResultsHandler planHandler = filteringHandler(plan, handler);
+
+        if (plan.isFullListing()) {
+            return runScriptSearch(createSearchParameters(null), planHandler);
+        }
+
+        for (final Operand operand : plan.getPushedOperands()) {
+            final ConnectorObject cached = getCachedResult(operand);
+            final ConnectorObject batched = cached == null ? getBatchedResult(operand) : null;
+            if (cached != null || batched != null) {
+                if (!planHandler.handle(cached != null ? cached : batched)) {
+                    return false;
+                }
+            } else if (!runScriptSearch(createSearchParameters(operand), planHandler)) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
-    //TODO This is hard-coded to the Kerberos perl script to ignore words in front of single result as well add domain to username as well as ignore non-used values
-    private ConnectorObject processSingleResult(final String searchScriptOutput) throws ConnectorIOException {
+    /**
+     * Answers a Uid/Name equality lookup from the principal cache when the entry is fresh.
+     */
+    private ConnectorObject getCachedResult(final Operand operand) {
+        if (!PrincipalCache.getCache(kerberosCmdConfiguration).isEnabled() || !isNameLookup(operand)) {
+            return null;
+        }
+
+        final ConnectorObject cached = PrincipalCache.getCache(kerberosCmdConfiguration).get(formatUsername(operand.getAttributeValue()));
+        if (cached != null) {
+            LOG.ok("Lookup of {0} answered from the principal cache", operand.getAttributeValue());
+        }
+        return cached;
+    }
 
-        if (StringUtil.isNotBlank(searchScriptOutput) &&
-                searchScriptOutput.contains(KerberosCmdConfiguration.SCRIPT_SINGLE_RESULT_HEADER)) {
+    /**
+     * Sends a Uid/Name equality lookup together with the concurrent ones, null if it has to be looked up on its own.
+     */
+    private ConnectorObject getBatchedResult(final Operand operand) {
+        final LookupBatcher batcher = LookupBatcher.getBatcher(kerberosCmdConfiguration);
+        if (!batcher.isEnabled() || !isNameLookup(operand)) {
+            return null;
+        }
 
-            final List<String> singleSearchRawResult =
-                    new ArrayList<>(List.of(searchScriptOutput.replace(KerberosCmdConfiguration.SCRIPT_SINGLE_RESULT_HEADER, "")
-                            .replace(System.lineSeparator(), "").trim().split("\\s+")));
+        return batcher.lookup(formatUsername(operand.getAttributeValue()), this::runBatchLookup);
+    }
 
-            final StringBuilder singleSearchCompiledResult = new StringBuilder(formatSearchResultUsername(singleSearchRawResult.get(0)));
-            singleSearchRawResult.remove(0); //removes username grabbed above
-            singleSearchRawResult.remove(0); //removes the hex value (value right after username)
+    /**
+     * Runs a single multi-principal show for the batch, principals the script doesn't return are left out.
+     * A show failing without any principal for another reason than missing principals means the script only
+     * shows one principal at a time.
+     */
+    private Map<String, ConnectorObject> runBatchLookup(final Set<String> usernames) throws ConnectorException {
+        final List<String> searchParameters = new ArrayList<>();
+        addOutputFlags(searchParameters);
+        searchParameters.add(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG);
+        searchParameters.addAll(usernames);
+
+        final Map<String, ConnectorObject> results = new HashMap<>();
+        final Process proc = execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), searchParameters, null);
+        stoppedByHandler = false;
+        readSearchOutput(proc, true, null, cachingHandler(null, result -> { //parsed in full, other lookups share the results
+            results.put(formatUsername(result.getName().getNameValue()), result);
+            return true;
+        }));
+
+        final Pair<Boolean,String> status = scriptExecuteSuccess(proc);
+        if (!status.getKey()) {
+            LOG.ok("Batched lookup ended with {0}, missing principals are looked up on their own", status.getValue());
+            if (results.isEmpty() && !isUserNotExistExitCode(proc.exitValue())) {
+                LookupBatcher.getBatcher(kerberosCmdConfiguration).markUnsupported(LOOKUP_BATCH_RETRY_MILLIS);
+            }
+        }
+        return results;
+    }
 
-            singleSearchRawResult.forEach(it -> {
-                singleSearchCompiledResult.append(" ").append(it); //adds flags
-            });
+    private static boolean isUserNotExistExitCode(final int exitCode) {
+        return "USER_NOT_EXIST".equals(KerberosCmdConfiguration.SCRIPT_EXIT_ERROR_CODES.get(exitCode));
+    }
 
-            return processSearchResult(singleSearchCompiledResult.toString().trim());
+    private boolean isNameLookup(final Operand operand) {
+        return operand != null && operand.getOperator() == Operator.EQ && !operand.isNot() && operand.isName();
+    }
+
+    private boolean isPushable(final Operand operand) {
+        return isNameLookup(operand) || createGlobExpression(operand) != null;
+    }
+
+    /**
+     * Runs the search script and streams its results into the handler.
+     * Returns false if the handler stopped the search early.
+     */
+    private boolean runScriptSearch(final List<String> searchParameters, final ResultsHandler handler) throws ConnectorException {
+        if (kerberosCmdConfiguration.shouldCoalesceListings() && !isSingleResultSearch(searchParameters)) {
+            final String listingKey = kerberosCmdConfiguration.scriptIdentity() + "\n" + String.join(" ", searchParameters); //same KDC and listing
+            final ListingFlight flight = ListingFlightStore.join(listingKey, it ->
+                    new KerberosCmdExecuteQuery(oc, kerberosCmdConfiguration, null, null, null).produceListing(searchParameters, it));
+            return flight.replay(handler);
+        }
+
+        final Process proc;
+        proc = execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), searchParameters, null); //execute search
+
+        stoppedByHandler = false;
+        final String scriptErrorLine;
+        try {
+            final Set<String> parsedAttributes = getParsedAttributes(searchParameters);
+            scriptErrorLine = readSearchOutput(proc, isSingleResultSearch(searchParameters), parsedAttributes,
+                    cachingHandler(parsedAttributes, handler)); //process and publish results as they are read
+        } catch (RuntimeException e) {
+            destroyProcessTree(proc); //don't leave the script (and its concurrency slot) behind
+            throw e;
+        }
+        if (stoppedByHandler) {
+            destroyProcessTree(proc); //nothing else is wanted from this listing
+            return false;
         }
 
-        return processSearchResult(searchScriptOutput);
+        checkSearchStatus(proc, scriptErrorLine);
+        return true;
     }
 
-    private ConnectorObject processSearchResult(final String searchScriptOutput) throws ConnectorIOException, IllegalStateException {
-        if (searchScriptOutput == null || searchScriptOutput.isEmpty()) {
-            return null;
+    /**
+     * Runs a listing shared by concurrent identical searches, the parsed principals go into the flight.
+     */
+    private void produceListing(final List<String> searchParameters, final ListingFlight flight) throws ConnectorException {
+        final Process proc = execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), searchParameters, null);
+        flight.setCanceller(() -> destroyProcessTree(proc));
+
+        stoppedByHandler = false;
+        final String scriptErrorLine;
+        try {
+            final Set<String> parsedAttributes = getParsedAttributes(searchParameters);
+            scriptErrorLine = readSearchOutput(proc, false, parsedAttributes, cachingHandler(parsedAttributes, flight::publish));
+        } catch (ConnectorIOException e) {
+            if (flight.isCancelled()) {
+                return; //the script was killed while being read
+            }
+            throw e;
         }
 
-        final Properties attrs = StringUtil.toProperties(searchScriptOutput);
+        if (stoppedByHandler || flight.isCancelled()) {
+            destroyProcessTree(proc); //every search left the listing
+            return;
+        }
 
-        final ConnectorObjectBuilder bld = new ConnectorObjectBuilder();
-        for (final Map.Entry<Object, Object> attr : attrs.entrySet()) {
-            final String username = attr.getKey().toString();
-            final String userdata = attr.getValue().toString();
-            boolean isUserLocked = false;
+        checkSearchStatus(proc, scriptErrorLine);
+    }
 
-            if (StringUtil.isNotBlank(username)) {
-                final String fmtdUsername = formatSearchResultUsername(username);
-                bld.setName(fmtdUsername);
-                bld.setUid(fmtdUsername);
-                bld.addAttribute(KerberosCmdConfiguration.SCRIPT_USER_NAME_ATTRIBUTE_NAME, fmtdUsername);
+    private void checkSearchStatus(final Process proc, final String scriptErrorLine) throws ConnectorException {
+        final Pair<Boolean,String> status = scriptExecuteSuccess(proc);
+        if (scriptErrorLine != null) {
+            throw new ConnectorException("Error in search: script failed with error response: " + scriptErrorLine + " " + status.getValue());
+        } else if (!status.getKey()) { //check exit code
+            throw new ConnectorException("Error in search: " + status.getValue());
+        }
+    }
 
-                if (StringUtil.isNotBlank(userdata)) {
-                    bld.addAttribute(KerberosCmdConfiguration.SCRIPT_USER_FLAGS_ATTRIBUTE_NAME, userdata);
+    /**
+     * Keeps the principals in the principal cache when they were parsed with all their attributes.
+     */
+    private ResultsHandler cachingHandler(final Set<String> parsedAttributes, final ResultsHandler handler) {
+        final PrincipalCache cache = PrincipalCache.getCache(kerberosCmdConfiguration);
+        if (!cache.isEnabled() || parsedAttributes != null) {
+            return handler;
+        }
 
-                    if (userdata.contains(KerberosCmdConfiguration.SCRIPT_LOCKED_KERBEROS_FLAG)) {
-                        isUserLocked = true;
-                    }
-                }
+        return result -> {
+            cache.put(formatUsername(result.getName().getNameValue()), result, cacheGeneration);
+            return handler.handle(result);
+        };
+    }
+
+    private boolean isPagedSearch() {
+        return operationOptions != null && operationOptions.getPageSize() != null && operationOptions.getPageSize() > 0;
+    }
+
+    /**
+     * Serves one page out of a sorted snapshot of the search, the snapshot is kept for the following pages.
+     */
+    private void execPagedQuery(final SearchPlan plan) throws ConnectorException {
+        final String listingKey = filter + " " + attributesToParse; //a snapshot only serves searches wanting the same attributes
+        final String cookie = operationOptions.getPagedResultsCookie();
+        final ListingSnapshotStore snapshotStore = ListingSnapshotStore.getStore(kerberosCmdConfiguration);
+        ListingSnapshot snapshot = null;
+        int startIndex = 0;
+        String resumeAfter = null;
+
+        if (StringUtil.isNotBlank(cookie)) {
+            snapshot = snapshotStore.getSnapshot(ListingSnapshot.getIdFromCookie(cookie), listingKey);
+            if (snapshot != null) {
+                startIndex = ListingSnapshot.getIndexFromCookie(cookie);
+            } else {
+                resumeAfter = ListingSnapshot.getLastNameFromCookie(cookie);
+                LOG.warn("Paged search cookie {0} has expired or a principal was written, taking a new listing snapshot", cookie);
+            }
+        } else if (operationOptions.getPagedResultsOffset() != null && operationOptions.getPagedResultsOffset() > 1) {
+            startIndex = operationOptions.getPagedResultsOffset() - 1; //ConnId offsets start at 1
+            snapshot = snapshotStore.getLatestSnapshot(listingKey); //the following pages of a listing taken for the first one
+        }
+
+        if (snapshot == null) { //a first page always gets its own listing
+            final List<ConnectorObject> listing = new ArrayList<>();
+            runSearchPlan(plan, listing::add);
+            snapshot = new ListingSnapshot(listingKey, listing, kerberosCmdConfiguration.pagedSearchSnapshotTtlSeconds() * 1000L);
+            snapshotStore.addSnapshot(snapshot);
+            LOG.ok("Created listing snapshot {0} with {1} results", snapshot.getId(), snapshot.size());
+            if (resumeAfter != null) {
+                startIndex = snapshot.indexAfter(resumeAfter);
+            }
+        }
 
-                bld.addAttribute(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME, isUserLocked);
+        final int endIndex = Math.min(snapshot.size(), startIndex + operationOptions.getPageSize());
+        int index = startIndex;
+        while (index < endIndex) {
+            final boolean keepGoing = resultsHandler.handle(snapshot.get(index++));
+            if (!keepGoing) {
+                break;
             }
         }
 
-        bld.setObjectClass(oc);
+        final int remaining = Math.max(snapshot.size() - index, 0);
+        if (resultsHandler instanceof SearchResultsHandler) {
+            final String nextCookie = remaining > 0 ? snapshot.createCookie(index) : null;
+            ((SearchResultsHandler) resultsHandler).handleResult(new SearchResult(nextCookie, remaining));
+        }
+        LOG.ok("Returned page {0} to {1} of {2} from listing snapshot {3}", startIndex, index, snapshot.size(), snapshot.getId());
+    }
+
+    /**
+     * Script parameters answering a single pushed operand, or a full listing for null.
+     */
+    private List<String> createSearchParameters(final Operand operand) {
+        final List<String> createSearchParams = new ArrayList<>();
+        addOutputFlags(createSearchParams);
+
+        if (isNameLookup(operand)) {
+            createSearchParams.add(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG);
+            createSearchParams.add(formatUsername(operand.getAttributeValue()));
+
+        } else if (createGlobExpression(operand) != null) {
+            LOG.ok("Listing users matching {0} ...", createGlobExpression(operand));
+            createSearchParams.add(KerberosCmdConfiguration.SCRIPT_LIST_ALL_USERS_FLAG);
+            addShowDetailsFlag(createSearchParams);
+            createSearchParams.add(KerberosCmdConfiguration.SCRIPT_LIST_EXPRESSION_FLAG);
+            createSearchParams.add(createGlobExpression(operand));
+
+        } else {
+            LOG.ok("Full search (filter {0} is applied by the connector) ...", filter);
+            createSearchParams.add(KerberosCmdConfiguration.SCRIPT_LIST_ALL_USERS_FLAG);
+            addShowDetailsFlag(createSearchParams);
+        }
+
+        return createSearchParams;
+    }
+
+    /**
+     * listprincs style glob for StartsWith/EndsWith/Contains on the principal name, null if it can't be pushed to the script.
+     */
+    private String createGlobExpression(final Operand operand) {
+        if (operand == null || operand.getOperator() == null || !operand.getOperator().isGlob() || operand.isNot() || !operand.isName()) {
+            return null;
+        }
+
+        final String value = formatUsername(operand.getAttributeValue());
+        if (StringUtil.isBlank(value)) {
+            return null;
+        }
+
+        final String escaped = GLOB_SPECIAL_CHARACTERS.matcher(value).replaceAll("\\\\$0"); //kadmin matches them as they are
+        switch (operand.getOperator()) {
+            case SW:
+                return escaped + "*";
+            case EW:
+                return "*" + escaped;
+            default:
+                return "*" + escaped + "*";
+        }
+    }
+
+    private void addShowDetailsFlag(final List<String> searchParameters) {
+        if (isIdentifierOnlySearch()) {
+            LOG.ok("Only identifiers were requested, listing names only");
+        } else {
+            searchParameters.add(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG);
+        }
+    }
+
+    private void addOutputFlags(final List<String> searchParameters) {
+        if (kerberosCmdConfiguration.shouldScriptReturnTimestamps()) {
+            searchParameters.add(KerberosCmdConfiguration.SCRIPT_TIMESTAMPS_FLAG); //ahead of the operation flags
+        }
+        if (kerberosCmdConfiguration.shouldScriptOutputJson()) {
+            searchParameters.add(KerberosCmdConfiguration.SCRIPT_JSON_OUTPUT_FLAG);
+        }
+    }
+
+    private boolean isSingleResultSearch(final List<String> searchParameters) {
+        return !searchParameters.contains(KerberosCmdConfiguration.SCRIPT_LIST_ALL_USERS_FLAG);
+    }
+
+    /**
+     * Checks script results against the whole filter unless the plan already returns exactly the filtered principals,
+     * principals answered by more than one branch of an OR are only published once.
+     */
+    private ResultsHandler filteringHandler(final SearchPlan plan, final ResultsHandler handler) {
+        final Predicate<ConnectorObject> predicate = plan.isExact(filter) ? null
+                : FilterPredicate.compile(filter, this::formatSearchResultUsername);
+        final Set<String> published = plan.getPushedOperands().size() > 1 ? new HashSet<>() : null;
+
+        if (predicate == null && published == null) {
+            return handler;
+        }
 
-        return bld.build();
+        return result -> {
+            if (predicate != null && !predicate.test(result)) {
+                return true;
+            }
+            if (published != null && !published.add(result.getUid().getUidValue())) {
+                return true;
+            }
+            return handler.handle(result);
+        };
     }
 
-    private List<ConnectorObject> readSearchOutput(final Process proc) throws ConnectorIOException {
+    /**
+     * Streams the script output into the results handler, one principal at a time.
+     * Returns the first line matching the script error response (results after it are skipped), or null.
+     */
+    private String readSearchOutput(final Process proc, final boolean singleResult, final Set<String> parsedAttributes,
+                                    final ResultsHandler handler) throws ConnectorIOException {
         LOG.info("Processing script output ...");
-        final BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-        final StringBuilder buffer = new StringBuilder();
-        final List<ConnectorObject> results = new ArrayList<>();
-        String line;
+        final InputStream output = proc.getInputStream();
+        final String scriptErrorLine;
 
         try {
-            //TODO whitespace/string/newline formatting is built-in/assumed, if it differs code here
-            while ((line = br.readLine()) != null) {
-                LOG.ok("Handle search result item {0}", line);
-                if (Boolean.parseBoolean(kerberosCmdConfiguration.getRedirectErrorOutput())
-                        && kerberosCmdConfiguration.getScriptErrorResponse() != null
-                        && line.contains(kerberosCmdConfiguration.getScriptErrorResponse())) {
-                    throw new ConnectorIOException("Script failed with error response: " + line.toString());
-                } else {
-                    if (filter != null) {
-                        buffer.append(line + " "); //this assumes script single result search has each flag on a newline
-                    } else {
-                        results.add(processSearchResult(line)); //this assumes script list all has each single result per line
-                    }
+            scriptErrorLine = createListingParser(singleResult, parsedAttributes).parse(output, result -> {
+                if (!handler.handle(result)) {
+                    stoppedByHandler = true;
+                    LOG.ok("Results handler stopped the search");
                 }
-            }
-
-            if (filter != null) {
-                results.add(processSingleResult(buffer.toString().trim()));
-            }
+                return !stoppedByHandler;
+            });
+        } catch (InterruptedIOException e) {
+            throw interruptScript(proc, new InterruptedException(e.getMessage()));
         } catch (IOException e) {
+            checkScriptDeadline(proc); //killed by the watchdog while being read
             LOG.error(e, "Error reading result items");
             throw new ConnectorIOException(e);
         }
 
+        if (stoppedByHandler) {
+            return scriptErrorLine; //open until the script is killed, a closed pipe could end it before its children are found
+        }
+
         try {
-            br.close();
+            output.close();
         } catch (IOException e) {
             LOG.ok(e, "Error closing reader"); //swallow since process will be closed
         }
 
-        LOG.ok("Found " + results.size() + " search results!");
-        return results;
+        return scriptErrorLine;
+    }
+
+    private ListingParser createListingParser(final boolean singleResult, final Set<String> parsedAttributes) {
+        final String scriptErrorResponse = Boolean.parseBoolean(kerberosCmdConfiguration.getRedirectErrorOutput())
+                ? kerberosCmdConfiguration.getScriptErrorResponse() : null;
+
+        if (kerberosCmdConfiguration.shouldScriptOutputJson()) {
+            return new JsonListingParser(oc, singleResult, scriptErrorResponse, this::formatSearchResultUsername, parsedAttributes);
+        }
+        if (kerberosCmdConfiguration.shouldParseListingLines()) {
+            return new LineListingParser(oc, singleResult, scriptErrorResponse, this::formatSearchResultUsername, parsedAttributes);
+        }
+        return new ByteListingParser(oc, singleResult, scriptErrorResponse, this::formatSearchResultUsername, parsedAttributes);
     }
 
     private String formatSearchResultUsername(final String username) {
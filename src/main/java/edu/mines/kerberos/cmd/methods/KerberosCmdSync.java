@@ -0,0 +1,372 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.methods;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
+import edu.mines.kerberos.cmd.search.SyncListing;
+import edu.mines.kerberos.cmd.search.SyncSnapshot;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+
+
+/**
+ *  KerberosCmdSync
+ *     Provides live synchronization, either by comparing a new principal listing against the snapshot of the
+ *     previous one (both sorted by Uid and merged as they are read, the sync token is the snapshot generation)
+ *     or by the principal modification timestamps (the sync token is the latest second handed out with the
+ *     principals handed out for it, a principal modified later in that same second is handed out by the next sync).
+ */
+public class KerberosCmdSync extends KerberosCmdExec {
+
+    private static final Log LOG = Log.getLog(KerberosCmdSync.class);
+
+    private static final Object SNAPSHOT_LOCK = new Object();
+
+    private static final AtomicBoolean WARNED_MISSING_TIMESTAMPS = new AtomicBoolean();
+
+    public KerberosCmdSync(final ObjectClass oc, final KerberosCmdConfiguration kerberosCmdConfiguration) {
+        super(oc, kerberosCmdConfiguration);
+    }
+
+    /**
+     * Takes a new snapshot so the following sync only returns changes made from now on.
+     */
+    public SyncToken execGetLatestSyncToken() throws ConnectorException {
+        if (kerberosCmdConfiguration.shouldSyncOnTimestamps()) {
+            final TimestampPosition[] latest = {TimestampPosition.START};
+            new KerberosCmdExecuteQuery(oc, kerberosCmdConfiguration, null, principal -> {
+                latest[0] = latest[0].max(getModificationTimestamp(principal), principal.getUid().getUidValue());
+                return true;
+            }, null).execQuery();
+            return latest[0].toToken();
+        }
+
+        synchronized (SNAPSHOT_LOCK) {
+            final Path snapshotPath = getSnapshotPath();
+            try (SyncListing listing = new SyncListing(snapshotPath, oc, SyncListing.DEFAULT_RUN_SIZE)) {
+                readListing(listing);
+
+                final long generation;
+                try (SyncSnapshot previous = SyncSnapshot.open(snapshotPath)) {
+                    generation = previous.getGeneration() + 1;
+                }
+
+                try (SyncSnapshot.Writer writer = new SyncSnapshot.Writer(snapshotPath, generation)) {
+                    while (listing.getUid() != null) {
+                        writer.write(listing.getUid(), listing.getHash());
+                        listing.next();
+                    }
+                    writer.commit();
+                }
+
+                LOG.info("Sync snapshot generation {0} taken with {1} principals", generation, listing.size());
+                return new SyncToken(generation);
+            } catch (IOException e) {
+                throw new ConnectorIOException("Error writing sync snapshot " + snapshotPath, e);
+            }
+        }
+    }
+
+    /**
+     * Merges a new sorted listing against the sorted snapshot and hands out only what changed.
+     * If the token isn't the snapshot generation every principal is handed out as CREATE_OR_UPDATE.
+     */
+    public void execSync(final SyncToken token, final SyncResultsHandler handler) throws ConnectorException {
+        if (kerberosCmdConfiguration.shouldSyncOnTimestamps()) {
+            execTimestampSync(token, handler);
+            return;
+        }
+
+        synchronized (SNAPSHOT_LOCK) {
+            final Path snapshotPath = getSnapshotPath();
+            try (SyncListing listing = new SyncListing(snapshotPath, oc, SyncListing.DEFAULT_RUN_SIZE);
+                 SyncSnapshot previous = SyncSnapshot.open(snapshotPath)) {
+                readListing(listing);
+                final boolean fullSync = !isSnapshotToken(token, previous.getGeneration());
+                final SyncToken nextToken = new SyncToken(previous.getGeneration() + 1);
+                if (fullSync) {
+                    LOG.info("Sync token {0} doesn't match snapshot generation {1}, synchronizing every principal", token, previous.getGeneration());
+                }
+
+                int changes = 0;
+                boolean stopped = false;
+                try (SyncSnapshot.Writer writer = new SyncSnapshot.Writer(snapshotPath, previous.getGeneration() + 1)) {
+                    while (!stopped && (listing.getUid() != null || previous.getName() != null)) {
+                        final String uid = listing.getUid();
+                        final int order = uid == null ? 1 : previous.getName() == null ? -1 : uid.compareTo(previous.getName());
+
+                        if (order > 0) { //in the snapshot only
+                            stopped = !handler.handle(createDelta(SyncDeltaType.DELETE, new Uid(previous.getName()), null, nextToken));
+                            changes++;
+                            previous.next();
+                            continue;
+                        }
+
+                        final String hash = listing.getHash();
+                        if (order < 0) { //in the listing only
+                            stopped = !handler.handle(createDelta(fullSync ? SyncDeltaType.CREATE_OR_UPDATE : SyncDeltaType.CREATE,
+                                    new Uid(uid), listing.getPrincipal(), nextToken));
+                            changes++;
+                        } else {
+                            if (fullSync || !hash.equals(previous.getHash())) {
+                                stopped = !handler.handle(createDelta(fullSync ? SyncDeltaType.CREATE_OR_UPDATE : SyncDeltaType.UPDATE,
+                                        new Uid(uid), listing.getPrincipal(), nextToken));
+                                changes++;
+                            }
+                            previous.next();
+                        }
+                        writer.write(uid, hash);
+                        listing.next();
+                    }
+
+                    //a stopped sync keeps the previous state of what it didn't reach, the next sync picks it up
+                    while (previous.getName() != null) {
+                        writer.write(previous.getName(), previous.getHash());
+                        previous.next();
+                    }
+
+                    if (changes > 0 || fullSync) {
+                        writer.commit();
+                    }
+                }
+
+                final SyncToken latestToken = changes > 0 || fullSync ? nextToken : new SyncToken(previous.getGeneration());
+                LOG.info("Sync handed out {0} changes{1}, token is now {2}", changes, stopped ? " before being stopped" : "", latestToken.getValue());
+                if (handler instanceof SyncTokenResultsHandler) {
+                    ((SyncTokenResultsHandler) handler).handleResult(latestToken);
+                }
+            } catch (IOException e) {
+                throw new ConnectorIOException("Error synchronizing with sync snapshot " + snapshotPath, e);
+            }
+        }
+    }
+
+    /**
+     * Hands out the principals modified after the token position, oldest first, as CREATE_OR_UPDATE.
+     * Deletions can't be seen this way and still need a reconciliation. A sync without token hands out every
+     * principal as it is listed, its deltas carry a blank token: stopped midway, it can only start over.
+     */
+    private void execTimestampSync(final SyncToken token, final SyncResultsHandler handler) throws ConnectorException {
+        final TimestampPosition from = TimestampPosition.parse(token);
+        final List<ConnectorObject> modified = new ArrayList<>();
+        final TimestampPosition[] latest = {from != null ? from : TimestampPosition.START};
+        final int[] missingTimestamps = {0};
+        final int[] handedOut = {0};
+        final boolean[] stopped = {false};
+
+        new KerberosCmdExecuteQuery(oc, kerberosCmdConfiguration, null, principal -> {
+            final long timestamp = getModificationTimestamp(principal);
+            if (timestamp < 0) {
+                missingTimestamps[0]++;
+            } else if (from == null) {
+                latest[0] = latest[0].max(timestamp, principal.getUid().getUidValue());
+            } else if (from.isBefore(timestamp, principal.getUid().getUidValue())) {
+                modified.add(principal);
+            }
+
+            if (from == null) { //a first sync hands out every principal, no need to sort them
+                handedOut[0]++;
+                stopped[0] = !handler.handle(createDelta(SyncDeltaType.CREATE_OR_UPDATE, principal.getUid(), principal,
+                        new SyncToken(TimestampPosition.FIRST_SYNC_TOKEN)));
+                return !stopped[0];
+            }
+            return true;
+        }, null).execQuery();
+
+        if (missingTimestamps[0] > 0 && WARNED_MISSING_TIMESTAMPS.compareAndSet(false, true)) {
+            LOG.warn("{0} principals have no timestamps, they are only handed out by a sync without token. Does the script support -T?",
+                    missingTimestamps[0]);
+        }
+
+        modified.sort(Comparator.comparingLong(this::getModificationTimestamp).thenComparing(it -> it.getUid().getUidValue()));
+        for (final ConnectorObject principal : modified) {
+            latest[0] = latest[0].max(getModificationTimestamp(principal), principal.getUid().getUidValue());
+            handedOut[0]++;
+            if (!handler.handle(createDelta(SyncDeltaType.CREATE_OR_UPDATE, principal.getUid(), principal, latest[0].toToken()))) {
+                break;
+            }
+        }
+
+        final SyncToken latestToken = stopped[0] ? new SyncToken(TimestampPosition.FIRST_SYNC_TOKEN) : latest[0].toToken();
+        LOG.info("Sync handed out {0} principals modified after {1}, token is now {2}", handedOut[0],
+                token == null ? null : token.getValue(), latestToken.getValue());
+        if (handler instanceof SyncTokenResultsHandler) {
+            ((SyncTokenResultsHandler) handler).handleResult(latestToken);
+        }
+    }
+
+    /**
+     * Latest of the last modification and last password change epoch timestamps, -1 if the script returned neither.
+     */
+    private long getModificationTimestamp(final ConnectorObject principal) {
+        long timestamp = -1;
+        for (final String name : List.of(KerberosCmdConfiguration.SCRIPT_LAST_MODIFIED_ATTRIBUTE_NAME,
+                KerberosCmdConfiguration.SCRIPT_LAST_PASSWORD_CHANGE_ATTRIBUTE_NAME)) {
+            final Attribute attribute = principal.getAttributeByName(name);
+            final Object value = attribute == null ? null : AttributeUtil.getSingleValue(attribute);
+            if (value instanceof Long) {
+                timestamp = Math.max(timestamp, (Long) value);
+            }
+        }
+        return timestamp;
+    }
+
+    /**
+     * Lists every principal into the sync listing, which sorts them by Uid.
+     */
+    private void readListing(final SyncListing listing) throws ConnectorException, IOException {
+        new KerberosCmdExecuteQuery(oc, kerberosCmdConfiguration, null, principal -> {
+            try {
+                listing.add(principal);
+            } catch (IOException e) {
+                throw new ConnectorIOException("Error spilling the sync listing", e);
+            }
+            return true;
+        }, null).execQuery();
+        listing.sort();
+    }
+
+    private Path getSnapshotPath() throws ConfigurationException {
+        if (StringUtil.isBlank(kerberosCmdConfiguration.getSyncSnapshotPath())) {
+            throw new ConfigurationException("Sync snapshot path must not be blank to use live synchronization!");
+        }
+        return Paths.get(kerberosCmdConfiguration.getSyncSnapshotPath());
+    }
+
+    private boolean isSnapshotToken(final SyncToken token, final long generation) {
+        return generation > 0 && parseToken(token) == generation;
+    }
+
+    /**
+     * Snapshot generation or timestamp held by the token, -1 for no token.
+     */
+    private long parseToken(final SyncToken token) {
+        if (token == null || token.getValue() == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(token.getValue().toString());
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring sync token {0} that isn't a number", token.getValue());
+            return -1;
+        }
+    }
+
+    /**
+     * Where a timestamp sync is: every principal modified before the second is handed out, and so are the given
+     * Uids of that second (more principals may be modified later within it). The token holds the second and the
+     * Uids, space separated as listing names have none, or just the second before when there are no Uids.
+     */
+    private static final class TimestampPosition {
+
+        private static final String FIRST_SYNC_TOKEN = "";
+
+        private static final TimestampPosition START = new TimestampPosition(0, Collections.emptySet());
+
+        private final long second;
+
+        private final Set<String> uids;
+
+        private TimestampPosition(final long second, final Set<String> uids) {
+            this.second = second;
+            this.uids = uids;
+        }
+
+        /**
+         * Position held by the token, null for no token (or a blank one, from a stopped first sync).
+         */
+        private static TimestampPosition parse(final SyncToken token) {
+            if (token == null || token.getValue() == null || StringUtil.isBlank(token.getValue().toString())) {
+                return null;
+            }
+
+            final String[] fields = token.getValue().toString().trim().split(" ");
+            try {
+                if (fields.length == 1) {
+                    return new TimestampPosition(Long.parseLong(fields[0]) + 1, Collections.emptySet());
+                }
+                return new TimestampPosition(Long.parseLong(fields[0]), new TreeSet<>(Arrays.asList(fields).subList(1, fields.length)));
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring sync token {0} that isn't a timestamp", token.getValue());
+                return null;
+            }
+        }
+
+        private boolean isBefore(final long timestamp, final String uid) {
+            return timestamp > second || (timestamp == second && !uids.contains(uid));
+        }
+
+        /**
+         * Position once the principal is handed out too.
+         */
+        private TimestampPosition max(final long timestamp, final String uid) {
+            if (timestamp > second) {
+                return new TimestampPosition(timestamp, new TreeSet<>(Set.of(uid)));
+            }
+            if (timestamp == second && !uids.contains(uid)) {
+                final Set<String> handedOut = new TreeSet<>(uids);
+                handedOut.add(uid);
+                return new TimestampPosition(second, handedOut);
+            }
+            return this;
+        }
+
+        private SyncToken toToken() {
+            if (uids.isEmpty()) {
+                return new SyncToken(String.valueOf(second - 1));
+            }
+            return new SyncToken(second + " " + String.join(" ", uids));
+        }
+    }
+
+    private SyncDelta createDelta(final SyncDeltaType type, final Uid uid, final ConnectorObject principal, final SyncToken token) {
+        final SyncDeltaBuilder builder = new SyncDeltaBuilder();
+        builder.setDeltaType(type);
+        builder.setToken(token);
+        builder.setObjectClass(oc);
+        builder.setUid(uid);
+        if (principal != null) {
+            builder.setObject(principal);
+        }
+        return builder.build();
+    }
+}
@@ -16,14 +16,22 @@
 package edu.mines.kerberos.cmd.methods;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
+import edu.mines.kerberos.cmd.KerberosCmdMetrics;
+import edu.mines.kerberos.cmd.search.Operand;
+import edu.mines.kerberos.cmd.search.Operator;
 import org.identityconnectors.common.Pair;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.common.security.SecurityUtil;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.objects.*;
 
 
@@ -50,91 +58,268 @@ public class KerberosCmdUpdate extends KerberosCmdExec {
 
     public Uid execUpdateCmd() throws ConnectorException {
         final Uid formattedUid = createFormattedUsernameUid(uid.getUidValue());
-        Pair<Boolean,String> status;
         LOG.info("Executing the update for {0}", formattedUid);
 
-        status = updateUserPassword(formattedUid);
-        if (!status.getKey()) {
-            throw new ConnectorException("Kerberos update password didn't return success for " + formattedUid.getUidValue() + " with " + status.getValue());
+        final List<String> steps = getRequestedSteps(formattedUid);
+        if (steps.isEmpty()) {
+            LOG.info("Nothing to change for {0}", formattedUid);
+            return uid;
         }
 
-        status = updateUserLockStatus(formattedUid);
-        if (!status.getKey()) {
-            throw new ConnectorException("Kerberos update thaw or freeze didn't return success for " + formattedUid.getUidValue() + " with " + status.getValue());
+        try {
+            execUpdateSteps(formattedUid, steps);
+        } finally {
+            deletePasswordFiles();
+            invalidateCachedPrincipal(formattedUid.getUidValue());
+            invalidateCachedPrincipal(getNameFromAttributes(attrs)); //new name after a rename
         }
 
-        status = updateUserName(formattedUid);
-        if (!status.getKey()) {
-            throw new ConnectorException("Kerberos update username didn't return success for " + formattedUid.getUidValue() + " with " + status.getValue());
+        if (steps.contains(KerberosCmdConfiguration.UPDATE_STEP_RENAME)) {
+            return createFormattedUsernameUid(getNameFromAttributes(attrs)); //same form create returns
+        }
+        return uid;
+    }
 
+    /**
+     * Runs the update and returns the changes it made beyond the requested ones, a rename changes the uid
+     * and the name attributes that weren't part of the request.
+     */
+    public Set<AttributeDelta> execUpdateDeltaCmd() throws ConnectorException {
+        final Uid newUid = execUpdateCmd();
+
+        final Set<AttributeDelta> sideEffects = new HashSet<>();
+        if (!newUid.equals(uid)) {
+            sideEffects.add(AttributeDeltaBuilder.build(Uid.NAME, newUid.getUidValue()));
+            if (AttributeUtil.find(Name.NAME, attrs) == null) {
+                sideEffects.add(AttributeDeltaBuilder.build(Name.NAME, newUid.getUidValue()));
+            }
+            if (AttributeUtil.find(KerberosCmdConfiguration.SCRIPT_USER_NAME_ATTRIBUTE_NAME, attrs) == null) {
+                sideEffects.add(AttributeDeltaBuilder.build(KerberosCmdConfiguration.SCRIPT_USER_NAME_ATTRIBUTE_NAME, newUid.getUidValue()));
+            }
         }
 
-        return uid;
+        LOG.ok("Update side effects for {0}: {1}", uid.getUidValue(), sideEffects);
+        return sideEffects;
     }
 
-    private Pair<Boolean,String> updateUserPassword(final Uid formattedUid) {
-        LOG.ok("Creating parameters for password update with: ");
-        LOG.ok("ObjectClass: {0}", oc.getObjectClassValue());
-        LOG.ok("User {0}: {1}", uid.getName(), formattedUid.getUidValue());
+    /**
+     * Turns the deltas into the attributes to update, every attribute the script changes is single valued
+     * so added values replace the current one. Removing values has no script call behind it and is rejected.
+     */
+    public static Set<Attribute> createAttributesFromDeltas(final Set<AttributeDelta> deltas) {
+        final Set<Attribute> attributes = new HashSet<>();
+        for (final AttributeDelta delta : deltas) {
+            if (delta.getValuesToReplace() != null) {
+                attributes.add(AttributeBuilder.build(delta.getName(), delta.getValuesToReplace()));
+            } else if (delta.getValuesToAdd() != null && !delta.getValuesToAdd().isEmpty()) {
+                attributes.add(AttributeBuilder.build(delta.getName(), delta.getValuesToAdd()));
+            } else if (delta.getValuesToRemove() != null && !delta.getValuesToRemove().isEmpty()) {
+                throw new InvalidAttributeValueException("Can't remove " + delta.getName() + " values, the script can't remove attribute values");
+            }
+        }
+
+        return attributes;
+    }
 
-        final List<String> updatePasswordParameters = new ArrayList<>();
-        final GuardedString gpasswd = getPasswordFromAttributes(attrs);
-        if (gpasswd != null) {
-            updatePasswordParameters.add(KerberosCmdConfiguration.SCRIPT_CHANGE_PASSWORD_FLAG);
-            setUsernameAndPassword(formattedUid.getUidValue(), gpasswd, updatePasswordParameters);
+    private void execUpdateSteps(final Uid formattedUid, final List<String> steps) throws ConnectorException {
+        if (steps.size() > 1 && kerberosCmdConfiguration.shouldUseCombinedUpdate()) {
+            execCombinedUpdate(formattedUid, steps);
+            return;
         }
 
-        if (!updatePasswordParameters.isEmpty()) {
-            return scriptExecuteSuccess((execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), updatePasswordParameters, null)));
-        } else {
-            return new Pair(Boolean.TRUE, "");
+        String username = formattedUid.getUidValue();
+        for (final String step : steps) {
+            final List<String> stepParameters = createStepParameters(step, username);
+            final Pair<Boolean,String> status = KerberosCmdConfiguration.UPDATE_STEP_RENAME.equals(step)
+                    ? scriptExecuteSuccess(execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), stepParameters, null))
+                    : execOperation(stepParameters, getPasswordFromAttributes(attrs)); //renames aren't batched
+            if (!status.getKey()) {
+                throw new ConnectorException("Kerberos update " + getStepDescription(step) + " didn't return success for " + username + " with " + status.getValue());
+            }
+
+            if (KerberosCmdConfiguration.UPDATE_STEP_RENAME.equals(step)) {
+                username = formatUsername(getNameFromAttributes(attrs)); //following steps apply to the new name
+            }
         }
     }
 
-    private Pair<Boolean,String> updateUserLockStatus(final Uid formattedUid) {
-        LOG.ok("Creating parameters for freeze/thaw update with: ");
-        LOG.ok("ObjectClass: {0}", oc.getObjectClassValue());
-        LOG.ok("User {0}: {1}", uid.getName(), formattedUid.getUidValue());
-        final List<String> updateThawFreezeParameters = new ArrayList<>();
+    /**
+     * Runs every step in a single script call, the script reports each step on its own line.
+     * Steps are never run again one call at a time, the script may have run some of them already.
+     */
+    private void execCombinedUpdate(final Uid formattedUid, final List<String> steps) throws ConnectorException {
+        final List<String> combinedUpdateParameters = new ArrayList<>();
+        combinedUpdateParameters.add(KerberosCmdConfiguration.SCRIPT_COMBINED_UPDATE_FLAG);
+        combinedUpdateParameters.add(formattedUid.getUidValue());
+        final List<String> stepFlags = new ArrayList<>();
+        for (final String step : steps) {
+            stepFlags.add(getStepFlag(step));
+            addCombinedStepParameters(step, formattedUid.getUidValue(), combinedUpdateParameters);
+        }
 
-        final int userLocked = isUserLocked(attrs);
-        if (userLocked == 1) {
-            updateThawFreezeParameters.add(KerberosCmdConfiguration.SCRIPT_LOCK_FLAG);
-            updateThawFreezeParameters.add(formattedUid.getUidValue());
+        final byte[] payload = isPasswordOnStdin(combinedUpdateParameters) ? createPasswordPayload(getPasswordFromAttributes(attrs)) : null;
+        final List<String> output = new ArrayList<>();
+        final Pair<Boolean,String> status;
+        try {
+            status = scriptExecuteSuccess(execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(),
+                    combinedUpdateParameters, null, payload), output);
+        } finally {
+            clearPasswordPayload(payload);
+        }
 
-        } else if (userLocked == 0) {
-            updateThawFreezeParameters.add(KerberosCmdConfiguration.SCRIPT_UNLOCK_FLAG);
-            updateThawFreezeParameters.add(formattedUid.getUidValue());
+        checkStepResults(formattedUid.getUidValue(), steps, stepFlags, output, status);
+        LOG.ok("Combined update of {0} completed {1}", formattedUid.getUidValue(), steps);
+    }
 
-        } else {
-            //TODO confirm if unknown or not set do nothing for locked/thaw/freeze
+    /**
+     * Checks the "STEP <flag> <exit code> [message]" lines of a combined update, every step needs exactly one.
+     * The script stops at the first failing step, so the steps after it aren't reported. A step that isn't
+     * reported otherwise fails the update, whether the script succeeded or not, since nothing shows it ran.
+     *
+     * @param steps the steps in the order they were sent
+     * @param stepFlags the script flag of each step
+     */
+    public static void checkStepResults(final String username, final List<String> steps, final List<String> stepFlags,
+                                        final List<String> output, final Pair<Boolean,String> status) throws ConnectorException {
+        final Map<String, String> stepResults = new HashMap<>();
+        for (final String line : output) {
+            if (line.startsWith(KerberosCmdConfiguration.SCRIPT_UPDATE_STEP_RESULT_PREFIX)) {
+                final String[] stepResult = line.substring(KerberosCmdConfiguration.SCRIPT_UPDATE_STEP_RESULT_PREFIX.length()).trim().split("\\s+", 2);
+                if (stepResults.put(stepResult[0], stepResult.length > 1 ? stepResult[1] : "") != null) {
+                    throw new ConnectorException("Kerberos update of " + username + " reported " + stepResult[0] + " more than once with " + status.getValue());
+                }
+            }
         }
 
-        if (!updateThawFreezeParameters.isEmpty()) {
-            return scriptExecuteSuccess((execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), updateThawFreezeParameters, null)));
-        } else {
-            return new Pair(Boolean.TRUE, "");
+        final List<String> completedSteps = new ArrayList<>();
+        for (int i = 0; i < steps.size(); i++) {
+            final String stepResult = stepResults.get(stepFlags.get(i));
+            if (stepResult == null) {
+                throw new ConnectorException("Kerberos update " + getStepDescription(steps.get(i)) + " wasn't reported for " + username
+                        + " after " + completedSteps + ", it may or may not have run, with " + (status.getKey() ? "success" : status.getValue()));
+            }
+
+            final String[] codeAndMessage = stepResult.split("\\s+", 2);
+            if (!"0".equals(codeAndMessage[0])) {
+                throw new ConnectorException("Kerberos update " + getStepDescription(steps.get(i)) + " didn't return success for " + username
+                        + " after " + completedSteps + " with " + KerberosCmdConfiguration.describeExitCode(codeAndMessage[0]) + " "
+                        + (codeAndMessage.length > 1 ? codeAndMessage[1] : ""));
+            }
+            completedSteps.add(steps.get(i));
         }
     }
 
-    private Pair<Boolean,String> updateUserName(final Uid formattedUid) {
-        LOG.ok("Creating parameters for username update with: ");
-        LOG.ok("ObjectClass: {0}", oc.getObjectClassValue());
-        LOG.ok("User {0}: {1}", uid.getName(), formattedUid.getUidValue());
+    /**
+     * Steps this update needs, in the configured order.
+     */
+    private List<String> getRequestedSteps(final Uid formattedUid) {
+        final List<String> steps = new ArrayList<>();
+        for (final String step : kerberosCmdConfiguration.updateStepOrder()) {
+            if (KerberosCmdConfiguration.UPDATE_STEP_PASSWORD.equals(step) && getPasswordFromAttributes(attrs) != null) {
+                steps.add(step);
+            } else if (KerberosCmdConfiguration.UPDATE_STEP_LOCK.equals(step) && isUserLocked(attrs) >= 0) {
+                if (hasRequestedLockStatus(formattedUid)) {
+                    LOG.ok("{0} already has the requested lock status, skipping the freeze or thaw", formattedUid.getUidValue());
+                    KerberosCmdMetrics.increment(KerberosCmdMetrics.UPDATE_STEPS_SKIPPED);
+                } else {
+                    steps.add(step);
+                }
+            } else if (KerberosCmdConfiguration.UPDATE_STEP_RENAME.equals(step) && isRenamed(formattedUid)) {
+                steps.add(step);
+            }
+        }
+
+        LOG.ok("Update steps for {0}: {1}", formattedUid.getUidValue(), steps);
+        return steps;
+    }
 
+    /**
+     * Whether the principal is frozen or thawed already, from the principal cache, a lookup batch or a lookup of its own.
+     * The cache only holds principals read after the last write (see the PrincipalCache generation), and a batch
+     * is only joined before it runs.
+     */
+    private boolean hasRequestedLockStatus(final Uid formattedUid) {
+        if (!kerberosCmdConfiguration.shouldSkipUnchangedUpdateSteps()) {
+            return false;
+        }
+
+        final List<ConnectorObject> principals = new ArrayList<>();
+        try {
+            new KerberosCmdExecuteQuery(oc, kerberosCmdConfiguration, new Operand(Operator.EQ, Uid.NAME, formattedUid.getUidValue(), false),
+                    principals::add, null).execQuery();
+        } catch (ConnectorException e) {
+            LOG.ok(e, "Couldn't look up the lock status of {0}, running the freeze or thaw", formattedUid.getUidValue());
+            return false;
+        }
+
+        final Attribute lockedAttr = principals.isEmpty() ? null
+                : principals.get(0).getAttributeByName(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME);
+        return lockedAttr != null && Boolean.valueOf(isUserLocked(attrs) == 1).equals(AttributeUtil.getSingleValue(lockedAttr));
+    }
+
+    private boolean isRenamed(final Uid formattedUid) {
         final String username = getNameFromAttributes(attrs);
-        if (StringUtil.isNotBlank(username) &&
+        return StringUtil.isNotBlank(username) &&
                 kerberosCmdConfiguration.shouldScriptUpdateUsername() &&
-                !formattedUid.getUidValue().equals(username)) {
+                !formattedUid.getUidValue().equals(username);
+    }
+
+    private List<String> createStepParameters(final String step, final String username) {
+        LOG.ok("Creating parameters for {0} update with: ", step);
+        LOG.ok("ObjectClass: {0}", oc.getObjectClassValue());
+        LOG.ok("User {0}: {1}", uid.getName(), username);
+
+        final List<String> stepParameters = new ArrayList<>();
+        if (KerberosCmdConfiguration.UPDATE_STEP_PASSWORD.equals(step)) {
+            stepParameters.add(KerberosCmdConfiguration.SCRIPT_CHANGE_PASSWORD_FLAG);
+            setUsernameAndPassword(username, getPasswordFromAttributes(attrs), stepParameters);
+
+        } else if (KerberosCmdConfiguration.UPDATE_STEP_LOCK.equals(step)) {
+            stepParameters.add(getStepFlag(step));
+            stepParameters.add(username);
 
-            final List<String> updateUsernameParameters = new ArrayList<>();
-            updateUsernameParameters.add(KerberosCmdConfiguration.SCRIPT_CHANGE_USERNAME_FLAG);
-            updateUsernameParameters.add(formattedUid.getUidValue());
-            updateUsernameParameters.add(formatUsername(username));
+        } else {
+            stepParameters.add(KerberosCmdConfiguration.SCRIPT_CHANGE_USERNAME_FLAG);
+            stepParameters.add(username);
+            stepParameters.add(formatUsername(getNameFromAttributes(attrs)));
+        }
+
+        return stepParameters;
+    }
+
+    private void addCombinedStepParameters(final String step, final String username, final List<String> combinedUpdateParameters) {
+        combinedUpdateParameters.add(getStepFlag(step));
+
+        if (KerberosCmdConfiguration.UPDATE_STEP_PASSWORD.equals(step)) {
+            final GuardedString gpasswd = getPasswordFromAttributes(attrs);
+            if (kerberosCmdConfiguration.shouldSetPasswordsAsScriptArgument()) {
+                combinedUpdateParameters.add(SecurityUtil.decrypt(gpasswd));
+            } else {
+                combinedUpdateParameters.add(KerberosCmdConfiguration.SCRIPT_PASSWORD_FILE_FLAG);
+                combinedUpdateParameters.add(kerberosCmdConfiguration.shouldSendPasswordsOnStdin()
+                        ? KerberosCmdConfiguration.SCRIPT_PASSWORD_STDIN : writePasswordFile(username, gpasswd));
+            }
 
-            return scriptExecuteSuccess((execScriptCmd(kerberosCmdConfiguration.getScriptCmdPath(), updateUsernameParameters, null)));
+        } else if (KerberosCmdConfiguration.UPDATE_STEP_RENAME.equals(step)) {
+            combinedUpdateParameters.add(formatUsername(getNameFromAttributes(attrs)));
         }
+    }
 
-        return new Pair(Boolean.TRUE, "");
+    private String getStepFlag(final String step) {
+        if (KerberosCmdConfiguration.UPDATE_STEP_PASSWORD.equals(step)) {
+            return KerberosCmdConfiguration.SCRIPT_CHANGE_PASSWORD_FLAG;
+        } else if (KerberosCmdConfiguration.UPDATE_STEP_LOCK.equals(step)) {
+            return isUserLocked(attrs) == 1 ? KerberosCmdConfiguration.SCRIPT_LOCK_FLAG : KerberosCmdConfiguration.SCRIPT_UNLOCK_FLAG;
+        }
+        return KerberosCmdConfiguration.SCRIPT_CHANGE_USERNAME_FLAG;
+    }
+
+    private static String getStepDescription(final String step) {
+        if (KerberosCmdConfiguration.UPDATE_STEP_PASSWORD.equals(step)) {
+            return "password";
+        } else if (KerberosCmdConfiguration.UPDATE_STEP_LOCK.equals(step)) {
+            return "thaw or freeze";
+        }
+        return "username";
     }
 }
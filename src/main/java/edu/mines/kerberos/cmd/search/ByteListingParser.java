@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ *  ByteListingParser
+ *    Reads a listing (-l -s) as UTF-8 bytes in large buffers and cuts the principal and its flags out of each line
+ *    in place, without a Properties, regex or intermediate line String per principal.
+ *    Lines the property format would treat specially (comments, escapes, no principal) and the few lines of a
+ *    show (-s) are left to the line parser, so both return the same objects.
+ */
+public class ByteListingParser extends LineListingParser {
+
+    private static final Log LOG = Log.getLog(ByteListingParser.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] scriptErrorBytes;
+
+    private String scriptErrorLine = null;
+
+    private int resultCount = 0;
+
+    public ByteListingParser(final ObjectClass oc, final boolean singleResult, final String scriptErrorResponse,
+                             final UnaryOperator<String> usernameFormatter) {
+        this(oc, singleResult, scriptErrorResponse, usernameFormatter, null);
+    }
+
+    public ByteListingParser(final ObjectClass oc, final boolean singleResult, final String scriptErrorResponse,
+                             final UnaryOperator<String> usernameFormatter, final Set<String> attributesToGet) {
+        super(oc, singleResult, scriptErrorResponse, usernameFormatter, attributesToGet);
+        this.scriptErrorBytes = scriptErrorResponse == null ? null : scriptErrorResponse.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String parse(final InputStream output, final ResultsHandler handler) throws IOException {
+        if (singleResult) {
+            return super.parse(output, handler); //a few lines per principal, nothing to gain
+        }
+        return parseBuffered(output, handler);
+    }
+
+    /**
+     * Cuts the output into lines inside the read buffer and hands each one to parseLine.
+     */
+    protected final String parseBuffered(final InputStream output, final ResultsHandler handler) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int start = 0; //first byte of the current line
+        int scan = 0; //first byte not yet checked for a line end
+        int end = 0; //end of the bytes read
+        boolean skipLineFeed = false;
+
+        while (true) {
+            int lineEnd = scan;
+            while (lineEnd < end && buffer[lineEnd] != '\n' && buffer[lineEnd] != '\r') {
+                lineEnd++;
+            }
+
+            if (lineEnd == end) { //no full line left in the buffer
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Search interrupted");
+                }
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else if (end == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2); //line longer than the buffer
+                }
+                scan = end;
+
+                final int read = output.read(buffer, end, buffer.length - end);
+                if (read < 0) {
+                    if (end > start && scriptErrorLine == null && !publishLine(buffer, start, end, handler)) {
+                        break;
+                    }
+                    if (scriptErrorLine == null) {
+                        publish(finishOutput(), handler);
+                    }
+                    break;
+                }
+                if (skipLineFeed && read > 0 && buffer[end] == '\n') {
+                    System.arraycopy(buffer, end + 1, buffer, end, read - 1); //\r\n split across reads
+                    end--;
+                }
+                skipLineFeed = false;
+                end += read;
+                continue;
+            }
+
+            //past an error line the rest is only drained so the script can exit
+            if (scriptErrorLine == null && !publishLine(buffer, start, lineEnd, handler)) {
+                break;
+            }
+
+            if (buffer[lineEnd] == '\r') {
+                if (lineEnd + 1 == end) {
+                    skipLineFeed = true;
+                } else if (buffer[lineEnd + 1] == '\n') {
+                    lineEnd++;
+                }
+            }
+            start = lineEnd + 1;
+            scan = start;
+        }
+
+        LOG.ok("Published " + resultCount + " search results!");
+        return scriptErrorLine;
+    }
+
+    /**
+     * Publishes the principal on the line or records the script error, returns false if the handler stopped.
+     */
+    private boolean publishLine(final byte[] buffer, final int from, final int to, final ResultsHandler handler) {
+        final String errorLine = findScriptError(buffer, from, to);
+        if (errorLine != null) {
+            LOG.error("Found error in script: " + errorLine);
+            scriptErrorLine = errorLine;
+            return true;
+        }
+        return publish(parseLine(buffer, from, to), handler);
+    }
+
+    private boolean publish(final ConnectorObject result, final ResultsHandler handler) {
+        if (result == null) {
+            return true;
+        }
+        resultCount++;
+        return handler.handle(result);
+    }
+
+    /**
+     * The line (or the error it reports) if it holds the script error response, null otherwise.
+     */
+    protected String findScriptError(final byte[] buffer, final int from, final int to) {
+        if (scriptErrorBytes != null && indexOf(buffer, from, to, scriptErrorBytes) >= 0) {
+            return decode(buffer, from, to);
+        }
+        return null;
+    }
+
+    /**
+     * Principal printed on the line, null when it holds none.
+     */
+    protected ConnectorObject parseLine(final byte[] buffer, final int from, final int to) {
+        if (from == to) {
+            return null;
+        }
+
+        //same cut as a property line "principal flags...": key up to whitespace, '=' or ':', one separator skipped
+        final int keyStart = skipWhitespace(buffer, from, to);
+        int keyEnd = keyStart;
+        while (keyEnd < to && !isWhitespace(buffer[keyEnd]) && buffer[keyEnd] != '=' && buffer[keyEnd] != ':') {
+            keyEnd++;
+        }
+        if (keyEnd == keyStart || buffer[keyStart] == '#' || buffer[keyStart] == '!' || indexOf(buffer, from, to, '\\') >= 0) {
+            return processSearchResult(decode(buffer, from, to));
+        }
+
+        int valueStart = skipWhitespace(buffer, keyEnd, to);
+        if (valueStart < to && (buffer[valueStart] == '=' || buffer[valueStart] == ':')) {
+            valueStart = skipWhitespace(buffer, valueStart + 1, to);
+        }
+
+        final ConnectorObjectBuilder bld = new ConnectorObjectBuilder();
+        addPrincipal(bld, decode(buffer, keyStart, keyEnd), isUserdataRequested() ? decode(buffer, valueStart, to) : "");
+        bld.setObjectClass(oc);
+        return bld.build();
+    }
+
+    /**
+     * Principal still pending once the output ended, null when there is none.
+     */
+    protected ConnectorObject finishOutput() {
+        return null;
+    }
+
+    /**
+     * Same as the line parser without the regex split, the flags are only rebuilt when -T timestamps are present.
+     */
+    @Override
+    protected String processTimestamps(final String userdata, final ConnectorObjectBuilder bld) {
+        if (userdata.indexOf('=') < 0) {
+            return userdata;
+        }
+
+        final StringBuilder flags = new StringBuilder(userdata.length());
+        final int length = userdata.length();
+        int index = 0;
+        while (index < length) {
+            while (index < length && userdata.charAt(index) <= ' ') {
+                index++;
+            }
+            final int tokenStart = index;
+            while (index < length && userdata.charAt(index) > ' ') {
+                index++;
+            }
+
+            if (index > tokenStart && !addTimestamp(userdata, tokenStart, index, KerberosCmdConfiguration.SCRIPT_LAST_MODIFIED_ATTRIBUTE_NAME, bld)
+                    && !addTimestamp(userdata, tokenStart, index, KerberosCmdConfiguration.SCRIPT_LAST_PASSWORD_CHANGE_ATTRIBUTE_NAME, bld)) {
+                flags.append(flags.length() > 0 ? " " : "").append(userdata, tokenStart, index);
+            }
+        }
+        return flags.toString();
+    }
+
+    private boolean addTimestamp(final String userdata, final int from, final int to, final String name, final ConnectorObjectBuilder bld) {
+        final int valueStart = from + name.length() + 1;
+        if (valueStart > to || !userdata.startsWith(name, from) || userdata.charAt(valueStart - 1) != '=') {
+            return false;
+        }
+
+        try {
+            bld.addAttribute(name, Long.parseLong(userdata, valueStart, to, 10));
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring {0} that isn't an epoch timestamp", userdata.substring(from, to));
+        }
+        return true;
+    }
+
+    protected static String decode(final byte[] buffer, final int from, final int to) {
+        return new String(buffer, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    protected static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\f';
+    }
+
+    protected static int skipWhitespace(final byte[] buffer, int index, final int to) {
+        while (index < to && isWhitespace(buffer[index])) {
+            index++;
+        }
+        return index;
+    }
+
+    protected static int indexOf(final byte[] buffer, final int from, final int to, final char b) {
+        for (int index = from; index < to; index++) {
+            if (buffer[index] == b) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    protected static int indexOf(final byte[] buffer, final int from, final int to, final byte[] pattern) {
+        final int last = to - pattern.length;
+        outer:
+        for (int index = from; index <= last; index++) {
+            for (int offset = 0; offset < pattern.length; offset++) {
+                if (buffer[index + offset] != pattern[offset]) {
+                    continue outer;
+                }
+            }
+            return index;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+
+/**
+ *  FilterPredicate
+ *    Compiles an operand tree once into a predicate over parsed principals, so filters the script
+ *    can't evaluate are applied by the connector without walking the tree for every result.
+ */
+public final class FilterPredicate {
+
+    private FilterPredicate() {
+    }
+
+    /**
+     * @param filter operand tree, null matches everything
+     * @param nameValueFormatter formats an equality value on the principal name the way search results name principals
+     */
+    public static Predicate<ConnectorObject> compile(final Operand filter, final UnaryOperator<String> nameValueFormatter) {
+        if (filter == null) {
+            return result -> true;
+        }
+
+        switch (filter.getOperator()) {
+            case AND:
+                return compile(filter.getFirstOperand(), nameValueFormatter).and(compile(filter.getSecondOperand(), nameValueFormatter));
+            case OR:
+                return compile(filter.getFirstOperand(), nameValueFormatter).or(compile(filter.getSecondOperand(), nameValueFormatter));
+            default:
+                final Predicate<ConnectorObject> leaf = compileLeaf(filter, nameValueFormatter);
+                return filter.isNot() ? leaf.negate() : leaf;
+        }
+    }
+
+    private static Predicate<ConnectorObject> compileLeaf(final Operand filter, final UnaryOperator<String> nameValueFormatter) {
+        if (filter.isName()) {
+            final Predicate<String> nameMatches = compileValue(filter.getOperator(), filter.getOperator() == Operator.EQ
+                    ? nameValueFormatter.apply(filter.getAttributeValue()) : filter.getAttributeValue());
+            return result -> nameMatches.test(result.getName().getNameValue());
+        }
+
+        final String attributeName = filter.getAttributeName();
+        final Predicate<String> valueMatches = compileValue(filter.getOperator(), filter.getAttributeValue());
+        return result -> {
+            final Attribute attribute = result.getAttributeByName(attributeName);
+            final List<Object> values = attribute == null ? null : attribute.getValue();
+            if (values == null) {
+                return false;
+            }
+
+            for (final Object value : values) {
+                if (value != null && valueMatches.test(value.toString())) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private static Predicate<String> compileValue(final Operator operator, final String value) {
+        if (value == null) {
+            return candidate -> false;
+        }
+
+        switch (operator) {
+            case EQ:
+                return value::equals;
+            case SW:
+                return candidate -> candidate != null && candidate.startsWith(value);
+            case EW:
+                return candidate -> candidate != null && candidate.endsWith(value);
+            case C:
+                return candidate -> candidate != null && candidate.contains(value);
+            default:
+                return candidate -> false;
+        }
+    }
+}
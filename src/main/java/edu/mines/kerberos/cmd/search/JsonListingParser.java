@@ -0,0 +1,516 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ *  JsonListingParser
+ *    Reads the structured output the script prints with -j: one JSON object per principal and line, e.g.
+ *    {"principal":"alice@EXAMPLE.COM","flags":["KRB5_KDB_REQUIRES_PRE_AUTH"],"last_modified":1700000000,"last_pwd_change":1600000000}
+ *    and {"error":"..."} for a failure. Records are read straight from the byte buffer, flags are matched against the
+ *    KDB flag tokens without building strings and unknown keys are skipped. Lines that aren't JSON objects are
+ *    parsed as the text output, so a script that ignores -j still works.
+ */
+public class JsonListingParser extends ByteListingParser {
+
+    private static final Log LOG = Log.getLog(JsonListingParser.class);
+
+    public static final String PRINCIPAL_KEY = "principal";
+
+    public static final String FLAGS_KEY = "flags";
+
+    public static final String ERROR_KEY = "error";
+
+    private static final int PRINCIPAL = 0;
+
+    private static final int FLAGS = 1;
+
+    private static final int ERROR = 2;
+
+    private static final int LAST_MODIFIED = 3;
+
+    private static final int LAST_PASSWORD_CHANGE = 4;
+
+    private static final byte[][] KEYS = {
+            PRINCIPAL_KEY.getBytes(StandardCharsets.UTF_8),
+            FLAGS_KEY.getBytes(StandardCharsets.UTF_8),
+            ERROR_KEY.getBytes(StandardCharsets.UTF_8),
+            KerberosCmdConfiguration.SCRIPT_LAST_MODIFIED_ATTRIBUTE_NAME.getBytes(StandardCharsets.UTF_8),
+            KerberosCmdConfiguration.SCRIPT_LAST_PASSWORD_CHANGE_ATTRIBUTE_NAME.getBytes(StandardCharsets.UTF_8)
+    };
+
+    private static final byte[] QUOTED_ERROR_KEY = ("\"" + ERROR_KEY + "\"").getBytes(StandardCharsets.UTF_8);
+
+    private static final KdbFlag[] FLAG_VALUES = KdbFlag.values();
+
+    private static final byte[][] FLAG_TOKENS = new byte[FLAG_VALUES.length][];
+
+    static {
+        for (final KdbFlag flag : FLAG_VALUES) {
+            FLAG_TOKENS[flag.ordinal()] = flag.getToken().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private final StringBuilder textShowOutput = new StringBuilder();
+
+    //record being read
+    private byte[] record;
+
+    private int recordStart;
+
+    private int position;
+
+    private int recordEnd;
+
+    public JsonListingParser(final ObjectClass oc, final boolean singleResult, final String scriptErrorResponse,
+                             final UnaryOperator<String> usernameFormatter, final Set<String> attributesToGet) {
+        super(oc, singleResult, scriptErrorResponse, usernameFormatter, attributesToGet);
+    }
+
+    @Override
+    public String parse(final InputStream output, final ResultsHandler handler) throws IOException {
+        return parseBuffered(output, handler); //one record per principal for shows too
+    }
+
+    @Override
+    protected String findScriptError(final byte[] buffer, final int from, final int to) {
+        final String errorLine = super.findScriptError(buffer, from, to);
+        if (errorLine != null || !isRecord(buffer, from, to) || indexOf(buffer, from, to, QUOTED_ERROR_KEY) < 0) {
+            return errorLine;
+        }
+
+        return (String) readRecord(buffer, from, to, true);
+    }
+
+    @Override
+    protected ConnectorObject parseLine(final byte[] buffer, final int from, final int to) {
+        if (isRecord(buffer, from, to)) {
+            return (ConnectorObject) readRecord(buffer, from, to, false);
+        }
+
+        if (!singleResult) {
+            return super.parseLine(buffer, from, to);
+        }
+
+        //text show output, one "Attributes for" block per principal
+        final String line = decode(buffer, from, to);
+        ConnectorObject result = null;
+        if (line.startsWith(KerberosCmdConfiguration.SCRIPT_SINGLE_RESULT_HEADER) && textShowOutput.length() > 0) {
+            result = processSingleResult(textShowOutput.toString().trim());
+            textShowOutput.setLength(0);
+        }
+        textShowOutput.append(line).append(' ');
+        return result;
+    }
+
+    @Override
+    protected ConnectorObject finishOutput() {
+        if (textShowOutput.length() == 0) {
+            return null;
+        }
+        final ConnectorObject result = processSingleResult(textShowOutput.toString().trim());
+        textShowOutput.setLength(0);
+        return result;
+    }
+
+    private static boolean isRecord(final byte[] buffer, final int from, final int to) {
+        int index = from;
+        while (index < to && isJsonWhitespace(buffer[index])) {
+            index++;
+        }
+        return index < to && buffer[index] == '{';
+    }
+
+    /**
+     * Reads the record on the line, returns its error message when errorOnly, otherwise the principal (null if it has none).
+     */
+    private Object readRecord(final byte[] buffer, final int from, final int to, final boolean errorOnly) {
+        record = buffer;
+        recordStart = from;
+        position = from;
+        recordEnd = to;
+
+        String principal = null;
+        String error = null;
+        KdbFlags flags = null;
+        Long lastModified = null;
+        Long lastPasswordChange = null;
+
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() != '}') {
+            while (true) {
+                final int key = readKey();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+
+                if (key == ERROR) {
+                    error = readString();
+                } else if (errorOnly) {
+                    skipValue();
+                } else if (key == PRINCIPAL) {
+                    principal = readString();
+                } else if (key == FLAGS && isFlagsRequested()) {
+                    flags = readFlags();
+                } else if (key == LAST_MODIFIED && isRequested(KerberosCmdConfiguration.SCRIPT_LAST_MODIFIED_ATTRIBUTE_NAME)) {
+                    lastModified = readTimestamp();
+                } else if (key == LAST_PASSWORD_CHANGE && isRequested(KerberosCmdConfiguration.SCRIPT_LAST_PASSWORD_CHANGE_ATTRIBUTE_NAME)) {
+                    lastPasswordChange = readTimestamp();
+                } else {
+                    skipValue();
+                }
+
+                skipWhitespace();
+                if (peek() == ',') {
+                    position++;
+                    skipWhitespace();
+                    continue;
+                }
+                break;
+            }
+        }
+        expect('}');
+
+        if (errorOnly) {
+            return error;
+        }
+        if (principal == null || principal.isEmpty()) {
+            LOG.ok("Skipping script record without a principal: {0}", decode(buffer, from, to));
+            return null;
+        }
+
+        final ConnectorObjectBuilder bld = new ConnectorObjectBuilder();
+        addName(bld, principal);
+        if (lastModified != null) {
+            bld.addAttribute(KerberosCmdConfiguration.SCRIPT_LAST_MODIFIED_ATTRIBUTE_NAME, lastModified);
+        }
+        if (lastPasswordChange != null) {
+            bld.addAttribute(KerberosCmdConfiguration.SCRIPT_LAST_PASSWORD_CHANGE_ATTRIBUTE_NAME, lastPasswordChange);
+        }
+        if (isFlagsRequested()) {
+            addFlags(bld, flags != null ? flags : KdbFlags.of(0, null));
+        }
+        bld.setObjectClass(oc);
+        return bld.build();
+    }
+
+    /**
+     * Index of the known key, -1 for any other.
+     */
+    private int readKey() {
+        if (peek() != '"') {
+            throw malformed("key expected");
+        }
+        final int keyStart = position + 1;
+        final int keyEnd = findStringEnd(keyStart);
+        if (keyEnd < 0) { //escaped key
+            final String key = readString();
+            for (int index = 0; index < KEYS.length; index++) {
+                if (key.equals(new String(KEYS[index], StandardCharsets.UTF_8))) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        position = keyEnd + 1;
+        for (int index = 0; index < KEYS.length; index++) {
+            if (regionEquals(keyStart, keyEnd, KEYS[index])) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Either an array of flag tokens or a string of whitespace separated tokens.
+     */
+    private KdbFlags readFlags() {
+        if (peek() == '"') {
+            return KdbFlags.parse(readString());
+        }
+        if (peek() == 'n') {
+            skipValue(); //null
+            return null;
+        }
+
+        expect('[');
+        int mask = 0;
+        List<String> unknownTokens = null;
+        skipWhitespace();
+        if (peek() != ']') {
+            while (true) {
+                if (peek() != '"') {
+                    throw malformed("flag token expected");
+                }
+                final int tokenStart = position + 1;
+                final int tokenEnd = findStringEnd(tokenStart);
+                KdbFlag flag = null;
+                String token = null;
+                if (tokenEnd < 0) {
+                    token = readString();
+                    flag = KdbFlag.fromToken(token);
+                } else {
+                    position = tokenEnd + 1;
+                    flag = findFlag(tokenStart, tokenEnd);
+                    if (flag == null) {
+                        token = decode(record, tokenStart, tokenEnd);
+                    }
+                }
+
+                if (flag != null) {
+                    mask |= flag.getMask();
+                } else if (!token.isEmpty()) {
+                    if (unknownTokens == null) {
+                        unknownTokens = new ArrayList<>(1);
+                    }
+                    unknownTokens.add(token);
+                }
+
+                skipWhitespace();
+                if (peek() == ',') {
+                    position++;
+                    skipWhitespace();
+                    continue;
+                }
+                break;
+            }
+        }
+        expect(']');
+        return KdbFlags.of(mask, unknownTokens);
+    }
+
+    private KdbFlag findFlag(final int from, final int to) {
+        for (final KdbFlag flag : FLAG_VALUES) {
+            if (regionEquals(from, to, FLAG_TOKENS[flag.ordinal()])) {
+                return flag;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Epoch seconds given as a number (or a string of digits), null when missing or invalid.
+     */
+    private Long readTimestamp() {
+        if (peek() == '"') {
+            final String value = readString();
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring timestamp {0} that isn't an epoch timestamp", value);
+                return null;
+            }
+        }
+
+        final int valueStart = position;
+        final boolean negative = peek() == '-';
+        if (negative) {
+            position++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (position < recordEnd && record[position] >= '0' && record[position] <= '9' && digits < 18) {
+            value = value * 10 + (record[position++] - '0');
+            digits++;
+        }
+        if (digits == 0 || (position < recordEnd && isValueCharacter(record[position]))) {
+            position = valueStart;
+            skipValue();
+            LOG.warn("Ignoring timestamp {0} that isn't an epoch timestamp", decode(record, valueStart, position));
+            return null;
+        }
+        return negative ? -value : value;
+    }
+
+    private String readString() {
+        expect('"');
+        final int stringStart = position;
+        final int stringEnd = findStringEnd(stringStart);
+        if (stringEnd >= 0) {
+            position = stringEnd + 1;
+            return decode(record, stringStart, stringEnd);
+        }
+
+        final StringBuilder value = new StringBuilder();
+        int runStart = position;
+        while (position < recordEnd) {
+            final byte b = record[position];
+            if (b == '"') {
+                value.append(decode(record, runStart, position));
+                position++;
+                return value.toString();
+            }
+            if (b != '\\') {
+                position++;
+                continue;
+            }
+
+            value.append(decode(record, runStart, position));
+            if (position + 1 >= recordEnd) {
+                break;
+            }
+            final byte escaped = record[position + 1];
+            position += 2;
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    value.append((char) escaped);
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > recordEnd) {
+                        throw malformed("truncated unicode escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(decode(record, position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw malformed("invalid unicode escape");
+                    }
+                    position += 4;
+                    break;
+                default:
+                    throw malformed("invalid escape");
+            }
+            runStart = position;
+        }
+        throw malformed("unterminated string");
+    }
+
+    /**
+     * Closing quote of a string without escapes starting at from, -1 if the string has escapes.
+     */
+    private int findStringEnd(final int from) {
+        for (int index = from; index < recordEnd; index++) {
+            if (record[index] == '"') {
+                return index;
+            }
+            if (record[index] == '\\') {
+                return -1;
+            }
+        }
+        throw malformed("unterminated string");
+    }
+
+    private void skipValue() {
+        final byte first = peek();
+        if (first == '"') {
+            readString();
+            return;
+        }
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            while (position < recordEnd) {
+                final byte b = record[position];
+                if (b == '"') {
+                    readString();
+                    continue;
+                }
+                position++;
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if ((b == '}' || b == ']') && --depth == 0) {
+                    return;
+                }
+            }
+            throw malformed("unterminated value");
+        }
+
+        final int valueStart = position;
+        while (position < recordEnd && isValueCharacter(record[position])) {
+            position++;
+        }
+        if (position == valueStart) {
+            throw malformed("value expected");
+        }
+    }
+
+    private boolean regionEquals(final int from, final int to, final byte[] expected) {
+        if (to - from != expected.length) {
+            return false;
+        }
+        for (int index = 0; index < expected.length; index++) {
+            if (record[from + index] != expected[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte peek() {
+        if (position >= recordEnd) {
+            throw malformed("unexpected end of record");
+        }
+        return record[position];
+    }
+
+    private void expect(final char expected) {
+        if (peek() != expected) {
+            throw malformed("'" + expected + "' expected");
+        }
+        position++;
+    }
+
+    private void skipWhitespace() {
+        while (position < recordEnd && isJsonWhitespace(record[position])) {
+            position++;
+        }
+    }
+
+    private static boolean isJsonWhitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static boolean isValueCharacter(final byte b) {
+        return b != ',' && b != '}' && b != ']' && !isJsonWhitespace(b);
+    }
+
+    private ConnectorException malformed(final String reason) {
+        return new ConnectorException("Malformed script record (" + reason + " at " + (position - recordStart) + "): "
+                + decode(record, recordStart, recordEnd));
+    }
+}
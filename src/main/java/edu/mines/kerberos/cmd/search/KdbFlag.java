@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+/**
+ *  KdbFlag
+ *    Principal attributes printed by kadmin as KRB5_KDB_* tokens, with their bit in the KDB attributes mask.
+ */
+public enum KdbFlag {
+
+    DISALLOW_POSTDATED(0x00000001),
+    DISALLOW_FORWARDABLE(0x00000002),
+    DISALLOW_TGT_BASED(0x00000004),
+    DISALLOW_RENEWABLE(0x00000008),
+    DISALLOW_PROXIABLE(0x00000010),
+    DISALLOW_DUP_SKEY(0x00000020),
+    DISALLOW_ALL_TIX(0x00000040),
+    REQUIRES_PRE_AUTH(0x00000080),
+    REQUIRES_HW_AUTH(0x00000100),
+    REQUIRES_PWCHANGE(0x00000200),
+    DISALLOW_SVR(0x00001000),
+    PWCHANGE_SERVICE(0x00002000),
+    SUPPORT_DESMD5(0x00004000),
+    NEW_PRINC(0x00008000),
+    OK_AS_DELEGATE(0x00100000),
+    OK_TO_AUTH_AS_DELEGATE(0x00200000),
+    NO_AUTH_DATA_REQUIRED(0x00400000),
+    LOCKDOWN_KEYS(0x00800000);
+
+    public static final String TOKEN_PREFIX = "KRB5_KDB_";
+
+    private static final KdbFlag[] FLAGS = values();
+
+    private final int mask;
+
+    private final String token;
+
+    KdbFlag(final int mask) {
+        this.mask = mask;
+        this.token = TOKEN_PREFIX + name();
+    }
+
+    public int getMask() {
+        return mask;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public boolean isSet(final int flags) {
+        return (flags & mask) != 0;
+    }
+
+    /**
+     * Flag printed as value[from, to), null for a token outside the known vocabulary.
+     */
+    public static KdbFlag fromToken(final String value, final int from, final int to) {
+        final int length = to - from;
+        if (length <= TOKEN_PREFIX.length() || !value.startsWith(TOKEN_PREFIX, from)) {
+            return null;
+        }
+
+        for (final KdbFlag flag : FLAGS) {
+            if (flag.token.length() == length && value.regionMatches(from, flag.token, 0, length)) {
+                return flag;
+            }
+        }
+        return null;
+    }
+
+    public static KdbFlag fromToken(final String token) {
+        return token == null ? null : fromToken(token, 0, token.length());
+    }
+}
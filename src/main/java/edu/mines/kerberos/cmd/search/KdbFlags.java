@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  KdbFlags
+ *    Flags of one principal as a bitmask over the known KDB flags, tokens outside the vocabulary are kept as they are.
+ */
+public final class KdbFlags {
+
+    private final int mask;
+
+    private final List<String> unknownTokens;
+
+    private KdbFlags(final int mask, final List<String> unknownTokens) {
+        this.mask = mask;
+        this.unknownTokens = unknownTokens;
+    }
+
+    /**
+     * Flags already split into the known mask and the other tokens.
+     */
+    public static KdbFlags of(final int mask, final List<String> unknownTokens) {
+        return new KdbFlags(mask, unknownTokens == null ? Collections.emptyList() : unknownTokens);
+    }
+
+    /**
+     * Parses the whitespace separated flag tokens printed for a principal.
+     */
+    public static KdbFlags parse(final String flags) {
+        int mask = 0;
+        List<String> unknownTokens = Collections.emptyList();
+
+        final int length = flags == null ? 0 : flags.length();
+        int index = 0;
+        while (index < length) {
+            while (index < length && flags.charAt(index) <= ' ') {
+                index++;
+            }
+            final int tokenStart = index;
+            while (index < length && flags.charAt(index) > ' ') {
+                index++;
+            }
+            if (index == tokenStart) {
+                continue;
+            }
+
+            final KdbFlag flag = KdbFlag.fromToken(flags, tokenStart, index);
+            if (flag != null) {
+                mask |= flag.getMask();
+            } else {
+                if (unknownTokens.isEmpty()) {
+                    unknownTokens = new ArrayList<>(1);
+                }
+                unknownTokens.add(flags.substring(tokenStart, index));
+            }
+        }
+
+        return new KdbFlags(mask, unknownTokens);
+    }
+
+    public int getMask() {
+        return mask;
+    }
+
+    public boolean isSet(final KdbFlag flag) {
+        return flag.isSet(mask);
+    }
+
+    public boolean isEmpty() {
+        return mask == 0 && unknownTokens.isEmpty();
+    }
+
+    /**
+     * user_flags values, the known flags in bit order followed by the unknown tokens.
+     */
+    public List<Object> getValues() {
+        final List<Object> values = new ArrayList<>(Integer.bitCount(mask) + unknownTokens.size());
+        for (final KdbFlag flag : KdbFlag.values()) {
+            if (flag.isSet(mask)) {
+                values.add(flag.getToken());
+            }
+        }
+        values.addAll(unknownTokens);
+        return values;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ *  LineListingParser
+ *    Reads the script output line by line, each listing line is loaded as a property (principal = flags).
+ *    Kept as the reference implementation of the listing format.
+ */
+public class LineListingParser implements ListingParser {
+
+    private static final Log LOG = Log.getLog(LineListingParser.class);
+
+    protected final ObjectClass oc;
+
+    protected final boolean singleResult;
+
+    protected final String scriptErrorResponse;
+
+    protected final UnaryOperator<String> usernameFormatter;
+
+    protected final Set<String> attributesToGet;
+
+    public LineListingParser(final ObjectClass oc, final boolean singleResult, final String scriptErrorResponse,
+                             final UnaryOperator<String> usernameFormatter) {
+        this(oc, singleResult, scriptErrorResponse, usernameFormatter, null);
+    }
+
+    /**
+     * @param singleResult output of a show (-s), one "Attributes for" block per principal, otherwise one principal per line
+     * @param scriptErrorResponse text marking an error line in the output, null when errors aren't redirected there
+     * @param usernameFormatter adds or removes the username domain of the returned principals
+     * @param attributesToGet attributes to parse besides the Uid and Name, null for all of them
+     */
+    public LineListingParser(final ObjectClass oc, final boolean singleResult, final String scriptErrorResponse,
+                             final UnaryOperator<String> usernameFormatter, final Set<String> attributesToGet) {
+        this.oc = oc;
+        this.singleResult = singleResult;
+        this.scriptErrorResponse = scriptErrorResponse;
+        this.usernameFormatter = usernameFormatter;
+        this.attributesToGet = attributesToGet;
+    }
+
+    @Override
+    public String parse(final InputStream output, final ResultsHandler handler) throws IOException {
+        final BufferedReader br = new BufferedReader(new InputStreamReader(output, StandardCharsets.UTF_8));
+        final StringBuilder buffer = new StringBuilder();
+        String scriptErrorLine = null;
+        int resultCount = 0;
+        boolean stopped = false;
+        String line;
+
+        //TODO whitespace/string/newline formatting is built-in/assumed, if it differs code here
+        while ((line = br.readLine()) != null) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Search interrupted");
+            }
+            LOG.ok("Handle search result item {0}", line);
+            if (scriptErrorLine != null) {
+                continue; //drain the rest of the output so the script can exit
+            }
+
+            if (isScriptErrorLine(line)) {
+                LOG.error("Found error in script: " + line);
+                scriptErrorLine = line;
+            } else {
+                ConnectorObject result = null;
+                if (singleResult) {
+                    if (line.startsWith(KerberosCmdConfiguration.SCRIPT_SINGLE_RESULT_HEADER) && buffer.length() > 0) { //multi-principal show, one header per principal
+                        result = processSingleResult(buffer.toString().trim());
+                        buffer.setLength(0);
+                    }
+                    buffer.append(line + " "); //this assumes script single result search has each flag on a newline
+                } else {
+                    result = processSearchResult(line); //this assumes script list all has each single result per line
+                }
+
+                if (result != null) {
+                    resultCount++;
+                    if (!handler.handle(result)) {
+                        stopped = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (singleResult && scriptErrorLine == null && !stopped) {
+            final ConnectorObject result = processSingleResult(buffer.toString().trim());
+            if (result != null) {
+                resultCount++;
+                handler.handle(result);
+            }
+        }
+
+        LOG.ok("Published " + resultCount + " search results!");
+        return scriptErrorLine;
+    }
+
+    protected boolean isScriptErrorLine(final String line) {
+        return scriptErrorResponse != null && line.contains(scriptErrorResponse);
+    }
+
+    //TODO This is hard-coded to the Kerberos perl script to ignore words in front of single result as well add domain to username as well as ignore non-used values
+    protected ConnectorObject processSingleResult(final String searchScriptOutput) {
+
+        if (StringUtil.isNotBlank(searchScriptOutput) &&
+                searchScriptOutput.contains(KerberosCmdConfiguration.SCRIPT_SINGLE_RESULT_HEADER)) {
+
+            final List<String> singleSearchRawResult =
+                    new ArrayList<>(List.of(searchScriptOutput.replace(KerberosCmdConfiguration.SCRIPT_SINGLE_RESULT_HEADER, "")
+                            .replace(System.lineSeparator(), "").trim().split("\\s+")));
+
+            final StringBuilder singleSearchCompiledResult = new StringBuilder(usernameFormatter.apply(singleSearchRawResult.get(0)));
+            singleSearchRawResult.remove(0); //removes username grabbed above
+            singleSearchRawResult.remove(0); //removes the hex value (value right after username)
+
+            singleSearchRawResult.forEach(it -> {
+                singleSearchCompiledResult.append(" ").append(it); //adds flags
+            });
+
+            return processSearchResult(singleSearchCompiledResult.toString().trim());
+        }
+
+        return processSearchResult(searchScriptOutput);
+    }
+
+    protected ConnectorObject processSearchResult(final String searchScriptOutput) {
+        if (searchScriptOutput == null || searchScriptOutput.isEmpty()) {
+            return null;
+        }
+
+        final Properties attrs = StringUtil.toProperties(searchScriptOutput);
+
+        final ConnectorObjectBuilder bld = new ConnectorObjectBuilder();
+        for (final Map.Entry<Object, Object> attr : attrs.entrySet()) {
+            addPrincipal(bld, attr.getKey().toString(), attr.getValue().toString());
+        }
+
+        bld.setObjectClass(oc);
+
+        return bld.build();
+    }
+
+    /**
+     * Sets the name, flags, lock status and timestamps of one principal.
+     */
+    protected void addPrincipal(final ConnectorObjectBuilder bld, final String username, final String userdata) {
+        if (StringUtil.isNotBlank(username)) {
+            addName(bld, username);
+
+            if (!isUserdataRequested()) {
+                return; //identifiers only, flags aren't even parsed
+            }
+
+            final String flagTokens = processTimestamps(userdata, bld);
+            if (isFlagsRequested()) {
+                addFlags(bld, KdbFlags.parse(flagTokens));
+            }
+        }
+    }
+
+    protected void addName(final ConnectorObjectBuilder bld, final String username) {
+        final String fmtdUsername = usernameFormatter.apply(username);
+        bld.setName(fmtdUsername);
+        bld.setUid(fmtdUsername);
+        if (isRequested(KerberosCmdConfiguration.SCRIPT_USER_NAME_ATTRIBUTE_NAME)) {
+            bld.addAttribute(KerberosCmdConfiguration.SCRIPT_USER_NAME_ATTRIBUTE_NAME, fmtdUsername);
+        }
+    }
+
+    /**
+     * Sets user_flags (one value per flag) and user_locked when requested.
+     */
+    protected void addFlags(final ConnectorObjectBuilder bld, final KdbFlags flags) {
+        if (!flags.isEmpty() && isRequested(KerberosCmdConfiguration.SCRIPT_USER_FLAGS_ATTRIBUTE_NAME)) {
+            bld.addAttribute(KerberosCmdConfiguration.SCRIPT_USER_FLAGS_ATTRIBUTE_NAME, flags.getValues());
+        }
+        if (isRequested(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME)) {
+            bld.addAttribute(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME, flags.isSet(KdbFlag.DISALLOW_ALL_TIX));
+        }
+    }
+
+    protected boolean isRequested(final String attributeName) {
+        return attributesToGet == null || attributesToGet.contains(attributeName);
+    }
+
+    protected boolean isFlagsRequested() {
+        return isRequested(KerberosCmdConfiguration.SCRIPT_USER_FLAGS_ATTRIBUTE_NAME)
+                || isRequested(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME);
+    }
+
+    /**
+     * Whether any attribute printed after the principal name (flags, lock status, timestamps) is wanted.
+     */
+    protected boolean isUserdataRequested() {
+        return isFlagsRequested()
+                || isRequested(KerberosCmdConfiguration.SCRIPT_LAST_MODIFIED_ATTRIBUTE_NAME)
+                || isRequested(KerberosCmdConfiguration.SCRIPT_LAST_PASSWORD_CHANGE_ATTRIBUTE_NAME);
+    }
+
+    /**
+     * Moves the last_modified=/last_pwd_change= epoch tokens returned with -T into their attributes, returns the remaining flags.
+     */
+    protected String processTimestamps(final String userdata, final ConnectorObjectBuilder bld) {
+        if (StringUtil.isBlank(userdata) || userdata.indexOf('=') < 0) {
+            return userdata;
+        }
+
+        final StringBuilder flags = new StringBuilder();
+        for (final String token : userdata.trim().split("\\s+")) {
+            final int separator = token.indexOf('=');
+            final String name = separator < 0 ? null : token.substring(0, separator);
+            if (KerberosCmdConfiguration.SCRIPT_LAST_MODIFIED_ATTRIBUTE_NAME.equals(name)
+                    || KerberosCmdConfiguration.SCRIPT_LAST_PASSWORD_CHANGE_ATTRIBUTE_NAME.equals(name)) {
+                try {
+                    bld.addAttribute(name, Long.parseLong(token.substring(separator + 1)));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring {0} that isn't an epoch timestamp", token);
+                }
+            } else {
+                flags.append(flags.length() > 0 ? " " : "").append(token);
+            }
+        }
+        return flags.toString();
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ *  ListingFlight
+ *    A running listing shared by every search that asked for it while it runs.
+ *    Parsed principals go through a ring of RING_SIZE results: the listing waits for the slowest search
+ *    once it is a full ring ahead, so a shared listing holds no more than that in memory. Searches can
+ *    join while the first principal is still in the ring, each reads at its own pace and can stop on its own.
+ *    The listing is cancelled once no search wants it anymore.
+ */
+public final class ListingFlight {
+
+    public static final int RING_SIZE = 1024;
+
+    private final String listingKey;
+
+    private final ConnectorObject[] ring = new ConnectorObject[RING_SIZE];
+
+    private long published = 0;
+
+    //how many searches are at each position, the first one is the slowest
+    private final TreeMap<Long, Integer> positions = new TreeMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private int subscribers = 0;
+
+    private boolean done = false;
+
+    private boolean cancelled = false;
+
+    private RuntimeException failure = null;
+
+    private Runnable canceller = null;
+
+    ListingFlight(final String listingKey) {
+        this.listingKey = listingKey;
+    }
+
+    public String getListingKey() {
+        return listingKey;
+    }
+
+    /**
+     * Joins the listing from its start, false if it already finished, was cancelled or moved past its first
+     * principal, a new one has to be started then.
+     */
+    boolean subscribe() {
+        lock.lock();
+        try {
+            if (done || cancelled || published > RING_SIZE) {
+                return false;
+            }
+            subscribers++;
+            positions.merge(0L, 1, Integer::sum);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets what stops the listing (typically killing the script) when the last search leaves it early.
+     */
+    public void setCanceller(final Runnable canceller) {
+        final boolean cancelNow;
+        lock.lock();
+        try {
+            this.canceller = canceller;
+            cancelNow = cancelled;
+        } finally {
+            lock.unlock();
+        }
+
+        if (cancelNow) {
+            canceller.run();
+        }
+    }
+
+    public boolean isCancelled() {
+        lock.lock();
+        try {
+            return cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a parsed principal, waiting while the slowest search is a full ring behind.
+     * Returns false once no search wants the listing anymore.
+     */
+    public boolean publish(final ConnectorObject result) {
+        lock.lock();
+        try {
+            while (!cancelled && !positions.isEmpty() && published - positions.firstKey() >= RING_SIZE) {
+                changed.await();
+            }
+            if (cancelled) {
+                return false;
+            }
+            ring[(int) (published++ % RING_SIZE)] = result;
+            changed.signalAll();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for the searches of listing " + listingKey, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void complete(final RuntimeException failure) {
+        lock.lock();
+        try {
+            this.failure = failure;
+            done = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands every principal of the listing to the handler, from the start, as they become available.
+     * Returns false if the handler stopped early, throws if the listing failed.
+     */
+    public boolean replay(final ResultsHandler handler) throws ConnectorException {
+        long position = 0;
+        long index = 0;
+        try {
+            while (true) {
+                final List<ConnectorObject> available = new ArrayList<>();
+                lock.lock();
+                try {
+                    moveTo(position, index);
+                    position = index;
+                    while (index >= published && !done) {
+                        changed.await();
+                    }
+
+                    if (index >= published) {
+                        if (failure instanceof OperationTimeoutException) {
+                            throw new OperationTimeoutException(failure.getMessage(), failure); //keep it a timeout for every search
+                        } else if (failure != null) {
+                            throw new ConnectorException(failure.getMessage(), failure);
+                        }
+                        return true;
+                    }
+                    for (long next = index; next < published; next++) {
+                        available.add(ring[(int) (next % RING_SIZE)]);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                for (final ConnectorObject result : available) {
+                    index++;
+                    if (!handler.handle(result)) {
+                        return false;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for listing " + listingKey, e);
+        } finally {
+            unsubscribe(position);
+        }
+    }
+
+    /**
+     * Moves a search along the ring, letting the listing go on once the slowest search moved. Called with the lock held.
+     */
+    private void moveTo(final long from, final long to) {
+        if (from == to) {
+            return;
+        }
+        leavePosition(from);
+        positions.merge(to, 1, Integer::sum);
+        changed.signalAll();
+    }
+
+    private void leavePosition(final long position) {
+        positions.merge(position, -1, (count, change) -> count + change == 0 ? null : count + change);
+    }
+
+    private void unsubscribe(final long position) {
+        final Runnable cancelNow;
+        lock.lock();
+        try {
+            leavePosition(position);
+            changed.signalAll();
+            subscribers--;
+            if (subscribers > 0 || done) {
+                return;
+            }
+            cancelled = true;
+            cancelNow = canceller;
+        } finally {
+            lock.unlock();
+        }
+
+        if (cancelNow != null) {
+            cancelNow.run();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import edu.mines.kerberos.cmd.KerberosCmdMetrics;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ *  ListingFlightStore
+ *    Keeps the listings currently running, so identical concurrent searches share one script run.
+ *    Listing keys hold the script identity of the configuration, searches of another resource never join.
+ */
+public final class ListingFlightStore {
+
+    private static final Log LOG = Log.getLog(ListingFlightStore.class);
+
+    private static final Map<String, ListingFlight> FLIGHTS = new HashMap<>();
+
+    //one thread per running listing, idle threads go away after a minute
+    private static final ExecutorService PRODUCERS = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "kerberos-cmd-listing");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ListingFlightStore() {
+    }
+
+    /**
+     * Joins the running listing for the key, or starts one with the producer on a listing thread.
+     * The producer publishes every parsed principal into the flight and throws if the listing fails.
+     */
+    public static ListingFlight join(final String listingKey, final Consumer<ListingFlight> producer) {
+        final ListingFlight flight;
+        synchronized (FLIGHTS) {
+            final ListingFlight running = FLIGHTS.get(listingKey);
+            if (running != null && running.subscribe()) {
+                LOG.ok("Joined running listing {0}", listingKey);
+                KerberosCmdMetrics.increment(KerberosCmdMetrics.LISTING_FLIGHTS_JOINED);
+                return running;
+            }
+
+            flight = new ListingFlight(listingKey);
+            flight.subscribe();
+            FLIGHTS.put(listingKey, flight);
+        }
+
+        KerberosCmdMetrics.increment(KerberosCmdMetrics.LISTING_FLIGHTS_STARTED);
+        PRODUCERS.execute(() -> produce(flight, producer));
+        return flight;
+    }
+
+    private static void produce(final ListingFlight flight, final Consumer<ListingFlight> producer) {
+        RuntimeException failure = null;
+        try {
+            producer.accept(flight);
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            synchronized (FLIGHTS) {
+                FLIGHTS.remove(flight.getListingKey(), flight);
+            }
+            flight.complete(failure);
+        }
+    }
+}
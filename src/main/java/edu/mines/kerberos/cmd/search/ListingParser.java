@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ *  ListingParser
+ *    Turns the output of a search script call into one ConnectorObject per principal.
+ */
+public interface ListingParser {
+
+    /**
+     * Reads the output to its end, or until the handler returns false, publishing the principals as they are read.
+     * Returns the first line holding the script error response (nothing is published after it), or null.
+     *
+     * @throws java.io.InterruptedIOException when the reading thread is interrupted
+     */
+    String parse(InputStream output, ResultsHandler handler) throws IOException;
+}
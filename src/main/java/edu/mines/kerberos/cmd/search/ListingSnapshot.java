@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+
+/**
+ *  ListingSnapshot
+ *    Sorted copy of a listing, used to serve the pages of a paged search.
+ *    Cookies carry the last name returned, so a search can go on in a new listing when the snapshot is gone.
+ */
+public class ListingSnapshot {
+
+    private static final String COOKIE_SEPARATOR = ":";
+
+    private static final Comparator<String> NAME_ORDER = Comparator.naturalOrder();
+
+    private final String id;
+
+    private final String listingKey;
+
+    private final List<ConnectorObject> results;
+
+    private final long expiresAt;
+
+    public ListingSnapshot(final String listingKey, final List<ConnectorObject> results, final long ttlMillis) {
+        this.id = UUID.randomUUID().toString();
+        this.listingKey = listingKey;
+        this.results = new ArrayList<>(results);
+        this.results.sort(Comparator.comparing(it -> it.getName().getNameValue(), NAME_ORDER));
+        this.expiresAt = System.currentTimeMillis() + ttlMillis;
+    }
+
+    public final String getId() {
+        return id;
+    }
+
+    public final String getListingKey() {
+        return listingKey;
+    }
+
+    public final int size() {
+        return results.size();
+    }
+
+    public final ConnectorObject get(final int index) {
+        return results.get(index);
+    }
+
+    public final boolean isExpired() {
+        return System.currentTimeMillis() > expiresAt;
+    }
+
+    /**
+     * Index of the first result sorted after the given name.
+     */
+    public final int indexAfter(final String name) {
+        int low = 0;
+        int high = results.size();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (NAME_ORDER.compare(results.get(middle).getName().getNameValue(), name) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public final String createCookie(final int nextIndex) {
+        return id + COOKIE_SEPARATOR + nextIndex + COOKIE_SEPARATOR + results.get(nextIndex - 1).getName().getNameValue();
+    }
+
+    public static String getIdFromCookie(final String cookie) {
+        final int separator = cookie.indexOf(COOKIE_SEPARATOR);
+        return separator < 0 ? cookie : cookie.substring(0, separator);
+    }
+
+    public static int getIndexFromCookie(final String cookie) {
+        final int separator = cookie.indexOf(COOKIE_SEPARATOR);
+        final int nameSeparator = cookie.indexOf(COOKIE_SEPARATOR, separator + 1);
+        try {
+            return Math.max(Integer.parseInt(cookie.substring(separator + 1, nameSeparator < 0 ? cookie.length() : nameSeparator)), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Name of the last result returned before the cookie, null for a cookie without one.
+     */
+    public static String getLastNameFromCookie(final String cookie) {
+        final int separator = cookie.indexOf(COOKIE_SEPARATOR);
+        final int nameSeparator = separator < 0 ? -1 : cookie.indexOf(COOKIE_SEPARATOR, separator + 1);
+        return nameSeparator < 0 ? null : cookie.substring(nameSeparator + 1);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
+
+/**
+ *  ListingSnapshotStore
+ *    Keeps the most recent listing snapshots until they expire or a principal is written.
+ *    Each configuration (script, admin principal, keytab and username domain) has its own store, a write
+ *    only drops the snapshots of the resource it was made on.
+ */
+public final class ListingSnapshotStore {
+
+    private static final int MAX_SNAPSHOTS = 4;
+
+    private static final ConcurrentMap<String, ListingSnapshotStore> SNAPSHOT_STORES = new ConcurrentHashMap<>();
+
+    public static ListingSnapshotStore getStore(final KerberosCmdConfiguration configuration) {
+        return SNAPSHOT_STORES.computeIfAbsent(configuration.scriptIdentity(), it -> new ListingSnapshotStore());
+    }
+
+    private final Map<String, ListingSnapshot> snapshots = new LinkedHashMap<>();
+
+    private ListingSnapshotStore() {
+    }
+
+    public synchronized ListingSnapshot getSnapshot(final String id, final String listingKey) {
+        removeExpired();
+        final ListingSnapshot snapshot = snapshots.get(id);
+        if (snapshot != null && snapshot.getListingKey().equals(listingKey)) {
+            return snapshot;
+        }
+        return null;
+    }
+
+    /**
+     * Newest live snapshot of the listing, null if there is none.
+     */
+    public synchronized ListingSnapshot getLatestSnapshot(final String listingKey) {
+        removeExpired();
+        ListingSnapshot latest = null;
+        for (final ListingSnapshot snapshot : snapshots.values()) { //oldest first
+            if (snapshot.getListingKey().equals(listingKey)) {
+                latest = snapshot;
+            }
+        }
+        return latest;
+    }
+
+    public synchronized void addSnapshot(final ListingSnapshot snapshot) {
+        removeExpired();
+        snapshots.put(snapshot.getId(), snapshot);
+
+        final Iterator<String> oldest = snapshots.keySet().iterator();
+        while (snapshots.size() > MAX_SNAPSHOTS && oldest.hasNext()) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        snapshots.clear();
+    }
+
+    private void removeExpired() {
+        snapshots.values().removeIf(ListingSnapshot::isExpired);
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
+import edu.mines.kerberos.cmd.KerberosCmdMetrics;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+
+/**
+ *  LookupBatcher
+ *    Collects the Uid/Name lookups arriving within a short window into one multi-principal lookup.
+ *    The first caller of a window waits for the window to close (or the batch to fill up) and runs the
+ *    lookup for everyone, the other callers wait for its result. A lookup arriving when no other lookup
+ *    arrived within the last window is left to a single call right away, it isn't worth waiting for.
+ *    Each configuration (script, admin principal, keytab and username domain) has its own batcher, and a script
+ *    rejecting multi-principal lookups isn't sent another one for a while.
+ */
+public final class LookupBatcher {
+
+    private static final Log LOG = Log.getLog(LookupBatcher.class);
+
+    private static final ConcurrentMap<String, LookupBatcher> LOOKUP_BATCHERS = new ConcurrentHashMap<>();
+
+    public static LookupBatcher getBatcher(final KerberosCmdConfiguration configuration) {
+        return LOOKUP_BATCHERS.computeIfAbsent(configuration.scriptIdentity(), it -> new LookupBatcher());
+    }
+
+    private long windowMillis = 0;
+
+    private int maxSize = 0;
+
+    private Batch openBatch = null;
+
+    private long lastLookupNanos = 0;
+
+    //batches are off until then, the script rejected the last one
+    private long unsupportedUntilMillis = 0;
+
+    private LookupBatcher() {
+    }
+
+    public synchronized void configure(final long windowMillis, final int maxSize) {
+        this.windowMillis = windowMillis;
+        this.maxSize = maxSize;
+        this.lastLookupNanos = 0;
+    }
+
+    public synchronized boolean isEnabled() {
+        return windowMillis > 0 && maxSize > 1 && System.currentTimeMillis() >= unsupportedUntilMillis;
+    }
+
+    /**
+     * The script rejected a multi-principal lookup, lookups run one call at a time for the given time.
+     */
+    public synchronized void markUnsupported(final long retryMillis) {
+        LOG.warn("Script rejected a multi-principal lookup, looking principals up one at a time for {0} ms", retryMillis);
+        unsupportedUntilMillis = System.currentTimeMillis() + retryMillis;
+    }
+
+    /**
+     * Looks the principal up together with the other lookups of the current window.
+     *
+     * @param username formatted principal name
+     * @param batchLookup runs the lookup for all the principal names of a batch, keyed by formatted principal name
+     * @return the principal, or null if it has to be looked up on its own: the lookup came alone or the batch
+     *         didn't return it
+     */
+    public ConnectorObject lookup(final String username, final Function<Set<String>, Map<String, ConnectorObject>> batchLookup) {
+        final Batch batch;
+        final boolean leader;
+        final long window;
+
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final boolean alone = openBatch == null
+                    && (lastLookupNanos == 0 || now - lastLookupNanos > TimeUnit.MILLISECONDS.toNanos(windowMillis));
+            lastLookupNanos = now;
+            if (alone) {
+                return null; //nothing to batch with lately, don't hold the lookup for the window
+            }
+
+            if (openBatch == null) {
+                openBatch = new Batch();
+                leader = true;
+            } else {
+                leader = false;
+            }
+
+            batch = openBatch;
+            batch.usernames.add(username);
+            if (batch.usernames.size() >= maxSize) {
+                openBatch = null; //full, the leader sends it right away
+                batch.full.countDown();
+            }
+            window = windowMillis;
+        }
+
+        if (leader) {
+            runBatch(batch, window, batchLookup);
+        }
+
+        return batch.results.join().get(username);
+    }
+
+    private void runBatch(final Batch batch, final long window, final Function<Set<String>, Map<String, ConnectorObject>> batchLookup) {
+        try {
+            batch.full.await(window, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        final Set<String> usernames;
+        synchronized (this) {
+            if (openBatch == batch) {
+                openBatch = null;
+            }
+            usernames = Collections.unmodifiableSet(new LinkedHashSet<>(batch.usernames));
+        }
+
+        try {
+            if (usernames.size() < 2) {
+                return; //nobody to batch with, a single lookup is enough
+            }
+
+            KerberosCmdMetrics.increment(KerberosCmdMetrics.LOOKUP_BATCHES);
+            KerberosCmdMetrics.add(KerberosCmdMetrics.LOOKUP_BATCHED_PRINCIPALS, usernames.size());
+            final Map<String, ConnectorObject> results = batchLookup.apply(usernames);
+            LOG.ok("Batched lookup of {0} principals returned {1}", usernames.size(), results.size());
+            batch.results.complete(results);
+        } catch (RuntimeException e) {
+            LOG.warn(e, "Batched lookup of {0} failed, looking them up one at a time", new ArrayList<>(usernames));
+        } finally {
+            batch.results.complete(Collections.emptyMap()); //no-op after a result, otherwise (errors too) the others go on alone
+        }
+    }
+
+    private static final class Batch {
+
+        private final Set<String> usernames = new LinkedHashSet<>();
+
+        private final CountDownLatch full = new CountDownLatch(1);
+
+        private final CompletableFuture<Map<String, ConnectorObject>> results = new CompletableFuture<>();
+    }
+}
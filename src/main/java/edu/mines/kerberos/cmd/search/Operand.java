@@ -15,6 +15,8 @@
  */
 package edu.mines.kerberos.cmd.search;
 
+import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
+import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.Uid;
 
 /**
@@ -63,6 +65,18 @@ public class Operand {
         return attributeName.equalsIgnoreCase(Uid.NAME);
     }
 
+    /**
+     * Whether the operand filters on the principal name (Uid, Name or the user_name attribute).
+     */
+    public final boolean isName() {
+        return isUid() || attributeName.equalsIgnoreCase(Name.NAME)
+                || attributeName.equalsIgnoreCase(KerberosCmdConfiguration.SCRIPT_USER_NAME_ATTRIBUTE_NAME);
+    }
+
+    public final boolean isComposite() {
+        return operator == Operator.AND || operator == Operator.OR;
+    }
+
     public final String getAttributeValue() {
         return attributeValue;
     }
@@ -32,6 +32,10 @@ public enum Operator {
         this.op = op;
     }
 
+    public boolean isGlob() {
+        return this == SW || this == EW || this == C;
+    }
+
     @Override
     public String toString() {
         return op;
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import edu.mines.kerberos.cmd.KerberosCmdConfiguration;
+import edu.mines.kerberos.cmd.KerberosCmdMetrics;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+
+/**
+ *  PrincipalCache
+ *    Parsed principals from listings and single lookups, indexed by principal name.
+ *    Entries expire after the TTL and the least recently used ones are evicted past the maximum size.
+ *    Each configuration (script, admin principal, keytab and username domain) has its own cache.
+ *    Principals read before the latest write are not cached, they may be older than the write.
+ */
+public final class PrincipalCache {
+
+    private static final ConcurrentMap<String, PrincipalCache> PRINCIPAL_CACHES = new ConcurrentHashMap<>();
+
+    public static PrincipalCache getCache(final KerberosCmdConfiguration configuration) {
+        return PRINCIPAL_CACHES.computeIfAbsent(configuration.scriptIdentity(), it -> new PrincipalCache());
+    }
+
+    private final Map<String, CacheEntry> entries = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> eldest) {
+            if (size() > maxEntries) {
+                KerberosCmdMetrics.increment(KerberosCmdMetrics.PRINCIPAL_CACHE_EVICTIONS);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private long ttlMillis = 0;
+
+    private int maxEntries = 0;
+
+    private long generation = 0;
+
+    private PrincipalCache() {
+    }
+
+    public synchronized void configure(final long ttlMillis, final int maxEntries) {
+        if (this.ttlMillis != ttlMillis || this.maxEntries != maxEntries) {
+            entries.clear();
+        }
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public synchronized boolean isEnabled() {
+        return ttlMillis > 0 && maxEntries > 0;
+    }
+
+    /**
+     * Returns the cached principal if it is still fresh, null otherwise.
+     */
+    public synchronized ConnectorObject get(final String name) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        final CacheEntry entry = entries.get(name);
+        if (entry != null && entry.expiresAt >= System.currentTimeMillis()) {
+            KerberosCmdMetrics.increment(KerberosCmdMetrics.PRINCIPAL_CACHE_HITS);
+            return entry.principal;
+        }
+
+        if (entry != null) {
+            entries.remove(name);
+        }
+        KerberosCmdMetrics.increment(KerberosCmdMetrics.PRINCIPAL_CACHE_MISSES);
+        return null;
+    }
+
+    /**
+     * Generation of the cache, to be read before the principals to cache are read from the script.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches the principal unless a principal was invalidated since the given generation was read.
+     */
+    public synchronized void put(final String name, final ConnectorObject principal, final long readGeneration) {
+        if (isEnabled() && name != null && principal != null && readGeneration == generation) {
+            entries.put(name, new CacheEntry(principal, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    public synchronized void invalidate(final String name) {
+        generation++;
+        if (name != null) {
+            entries.remove(name);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static final class CacheEntry {
+
+        private final ConnectorObject principal;
+
+        private final long expiresAt;
+
+        private CacheEntry(final ConnectorObject principal, final long expiresAt) {
+            this.principal = principal;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ *  SearchPlan
+ *    Picks the name operands of a filter that are sent to the script, the whole filter is still checked
+ *    by the connector on what comes back.
+ *    An OR is answered by running each of its branches, an AND by its narrowest branch, and anything
+ *    the script can't narrow down by a full listing.
+ */
+public final class SearchPlan {
+
+    private static final int LOOKUP_COST = 1;
+
+    private static final int FILTERED_LISTING_COST = 10;
+
+    /**
+     * Beyond this many lookups/filtered listings a single full listing is cheaper.
+     */
+    private static final int FULL_LISTING_COST = 100;
+
+    private final List<Operand> pushedOperands;
+
+    private final int cost;
+
+    private SearchPlan(final List<Operand> pushedOperands, final int cost) {
+        this.pushedOperands = pushedOperands;
+        this.cost = cost;
+    }
+
+    /**
+     * @param filter operand tree, null for a full listing
+     * @param pushable whether the script can answer a single non-composite operand on its own
+     */
+    public static SearchPlan create(final Operand filter, final Predicate<Operand> pushable) {
+        final SearchPlan plan = plan(filter, pushable);
+        return plan.cost < FULL_LISTING_COST ? plan : fullListing();
+    }
+
+    private static SearchPlan plan(final Operand filter, final Predicate<Operand> pushable) {
+        if (filter == null) {
+            return fullListing();
+        }
+
+        switch (filter.getOperator()) {
+            case AND: {
+                final SearchPlan first = plan(filter.getFirstOperand(), pushable);
+                final SearchPlan second = plan(filter.getSecondOperand(), pushable);
+                return first.cost <= second.cost ? first : second;
+            }
+            case OR: {
+                final SearchPlan first = plan(filter.getFirstOperand(), pushable);
+                final SearchPlan second = plan(filter.getSecondOperand(), pushable);
+                if (first.isFullListing() || second.isFullListing()) {
+                    return fullListing();
+                }
+
+                final List<Operand> operands = new ArrayList<>(first.pushedOperands);
+                operands.addAll(second.pushedOperands);
+                return new SearchPlan(operands, first.cost + second.cost);
+            }
+            default:
+                if (!pushable.test(filter)) {
+                    return fullListing();
+                }
+                return new SearchPlan(Collections.singletonList(filter), filter.getOperator() == Operator.EQ ? LOOKUP_COST : FILTERED_LISTING_COST);
+        }
+    }
+
+    private static SearchPlan fullListing() {
+        return new SearchPlan(Collections.emptyList(), FULL_LISTING_COST);
+    }
+
+    public boolean isFullListing() {
+        return pushedOperands.isEmpty();
+    }
+
+    /**
+     * Operands to send to the script one after the other, empty for a full listing.
+     */
+    public List<Operand> getPushedOperands() {
+        return pushedOperands;
+    }
+
+    /**
+     * Whether the script results are exactly the filtered principals, without any checking by the connector.
+     */
+    public boolean isExact(final Operand filter) {
+        return filter == null || (pushedOperands.size() == 1 && pushedOperands.get(0) == filter);
+    }
+
+    @Override
+    public String toString() {
+        return isFullListing() ? "SearchPlan{full listing}" : "SearchPlan{" + pushedOperands + '}';
+    }
+}
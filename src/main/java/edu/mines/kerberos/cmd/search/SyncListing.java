@@ -0,0 +1,356 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ *  SyncListing
+ *    New principal listing of a synchronization, sorted by Uid without holding it all in memory.
+ *    Principals are collected in runs, each full run is sorted and spilled to a temporary file next to the
+ *    snapshot, and the runs are merged as the listing is read. Read one principal at a time like
+ *    SyncSnapshot, a principal read back from a run is only decoded when it is asked for.
+ *    Attribute values are kept as Strings, Longs, Integers and Booleans, other values as their String.
+ */
+public final class SyncListing implements Closeable {
+
+    public static final int DEFAULT_RUN_SIZE = 10000;
+
+    private static final Comparator<Entry> UID_ORDER = Comparator.comparing(entry -> entry.uid);
+
+    private static final String NO_VALUES = "-";
+
+    private final Path directory;
+
+    private final String runPrefix;
+
+    private final ObjectClass oc;
+
+    private final int runSize;
+
+    private final List<Entry> run = new ArrayList<>();
+
+    private final List<Path> runFiles = new ArrayList<>();
+
+    private final PriorityQueue<RunReader> readers = new PriorityQueue<>(Comparator.comparing(reader -> reader.head.uid));
+
+    private Iterator<Entry> runEntries = null;
+
+    private Entry current = null;
+
+    private int size = 0;
+
+    public SyncListing(final Path snapshotPath, final ObjectClass oc, final int runSize) {
+        final Path absolutePath = snapshotPath.toAbsolutePath();
+        this.directory = absolutePath.getParent();
+        this.runPrefix = absolutePath.getFileName() + ".";
+        this.oc = oc;
+        this.runSize = Math.max(1, runSize);
+    }
+
+    public void add(final ConnectorObject principal) throws IOException {
+        run.add(new Entry(principal.getUid().getUidValue(), SyncSnapshot.hash(principal), principal, null));
+        size++;
+        if (run.size() >= runSize) {
+            spillRun();
+        }
+    }
+
+    /**
+     * Ends the listing and moves to its first principal.
+     */
+    public void sort() throws IOException {
+        if (runFiles.isEmpty()) {
+            run.sort(UID_ORDER); //small listing, nothing was spilled
+            runEntries = run.iterator();
+        } else {
+            spillRun();
+            for (final Path runFile : runFiles) {
+                final RunReader reader = new RunReader(Files.newBufferedReader(runFile, StandardCharsets.UTF_8));
+                if (reader.advance()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+        }
+        next();
+    }
+
+    /**
+     * Uid of the current principal, null once every principal was read.
+     */
+    public String getUid() {
+        return current == null ? null : current.uid;
+    }
+
+    public String getHash() {
+        return current == null ? null : current.hash;
+    }
+
+    public ConnectorObject getPrincipal() {
+        if (current != null && current.principal == null) {
+            current.principal = decode(current.line);
+        }
+        return current == null ? null : current.principal;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void next() throws IOException {
+        current = null;
+        if (runEntries != null) {
+            if (runEntries.hasNext()) {
+                current = runEntries.next();
+            }
+            return;
+        }
+
+        final RunReader reader = readers.poll();
+        if (reader == null) {
+            return;
+        }
+        current = reader.head;
+        if (reader.advance()) {
+            readers.add(reader);
+        } else {
+            reader.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final RunReader reader : readers) {
+            reader.close();
+        }
+        readers.clear();
+        for (final Path runFile : runFiles) {
+            Files.deleteIfExists(runFile);
+        }
+    }
+
+    private void spillRun() throws IOException {
+        if (run.isEmpty()) {
+            return;
+        }
+
+        run.sort(UID_ORDER);
+        final Path runFile = Files.createTempFile(directory, runPrefix, ".run");
+        runFiles.add(runFile);
+        try (BufferedWriter writer = Files.newBufferedWriter(runFile, StandardCharsets.UTF_8)) {
+            for (final Entry entry : run) {
+                writer.write(encode(entry));
+                writer.newLine();
+            }
+        }
+        run.clear();
+    }
+
+    /**
+     * One line of tab separated fields: Uid, hash, Name, then each attribute name, its value count and its values.
+     */
+    private static String encode(final Entry entry) {
+        final StringBuilder line = new StringBuilder();
+        appendField(line, entry.uid);
+        appendField(line, entry.hash);
+        appendField(line, entry.principal.getName().getNameValue());
+        for (final Attribute attribute : entry.principal.getAttributes()) {
+            if (attribute.is(Uid.NAME) || attribute.is(Name.NAME)) {
+                continue;
+            }
+
+            appendField(line, attribute.getName());
+            final List<Object> values = attribute.getValue();
+            appendField(line, values == null ? NO_VALUES : String.valueOf(values.size()));
+            if (values != null) {
+                for (final Object value : values) {
+                    appendField(line, encodeValue(value));
+                }
+            }
+        }
+        return line.toString();
+    }
+
+    private ConnectorObject decode(final String line) {
+        final String[] fields = line.split("\t", -1);
+        final ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setObjectClass(oc);
+        builder.setUid(unescape(fields[0]));
+        builder.setName(unescape(fields[2]));
+
+        int index = 3;
+        while (index < fields.length) {
+            final String name = unescape(fields[index++]);
+            final String count = fields[index++];
+            if (NO_VALUES.equals(count)) {
+                builder.addAttribute(AttributeBuilder.build(name));
+                continue;
+            }
+
+            final List<Object> values = new ArrayList<>();
+            for (int i = Integer.parseInt(count); i > 0; i--) {
+                values.add(decodeValue(unescape(fields[index++])));
+            }
+            builder.addAttribute(AttributeBuilder.build(name, values));
+        }
+        return builder.build();
+    }
+
+    private static String encodeValue(final Object value) {
+        if (value == null) {
+            return "N";
+        } else if (value instanceof Long) {
+            return "L" + value;
+        } else if (value instanceof Integer) {
+            return "I" + value;
+        } else if (value instanceof Boolean) {
+            return "B" + value;
+        }
+        return "S" + value;
+    }
+
+    private static Object decodeValue(final String value) {
+        switch (value.charAt(0)) {
+            case 'L':
+                return Long.parseLong(value.substring(1));
+            case 'I':
+                return Integer.parseInt(value.substring(1));
+            case 'B':
+                return Boolean.parseBoolean(value.substring(1));
+            case 'N':
+                return null;
+            default:
+                return value.substring(1);
+        }
+    }
+
+    private static void appendField(final StringBuilder line, final String field) {
+        if (line.length() > 0) {
+            line.append('\t');
+        }
+        for (int i = 0; i < field.length(); i++) {
+            final char c = field.charAt(i);
+            switch (c) {
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                default:
+                    line.append(c);
+            }
+        }
+    }
+
+    private static String unescape(final String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+
+        final StringBuilder unescaped = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            final char c = field.charAt(i);
+            if (c != '\\' || i + 1 == field.length()) {
+                unescaped.append(c);
+                continue;
+            }
+
+            final char escaped = field.charAt(++i);
+            unescaped.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+        }
+        return unescaped.toString();
+    }
+
+    private static final class Entry {
+
+        private final String uid;
+
+        private final String hash;
+
+        private final String line;
+
+        private ConnectorObject principal; //decoded from the line when asked for
+
+        private Entry(final String uid, final String hash, final ConnectorObject principal, final String line) {
+            this.uid = uid;
+            this.hash = hash;
+            this.principal = principal;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Reads a spilled run one entry ahead, so the runs can be merged on their next Uid.
+     */
+    private static final class RunReader implements Closeable {
+
+        private final BufferedReader reader;
+
+        private Entry head = null;
+
+        private RunReader(final BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Reads the next entry of the run, false at its end.
+         */
+        private boolean advance() throws IOException {
+            final String line = reader.readLine();
+            if (line == null) {
+                head = null;
+                return false;
+            }
+
+            final int uidEnd = line.indexOf('\t');
+            final int hashEnd = line.indexOf('\t', uidEnd + 1);
+            head = new Entry(unescape(line.substring(0, uidEnd)), unescape(line.substring(uidEnd + 1, hashEnd)), null, line);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd.search;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ *  SyncSnapshot
+ *    Principal listing of the last synchronization on disk: a generation header followed by one
+ *    "name TAB hash" line per principal, sorted by name. Read one entry at a time so it can be
+ *    merged against a new sorted listing.
+ */
+public final class SyncSnapshot implements Closeable {
+
+    private static final String GENERATION_HEADER = "#generation ";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final BufferedReader reader;
+
+    private final long generation;
+
+    private String name = null;
+
+    private String hash = null;
+
+    private SyncSnapshot(final BufferedReader reader, final long generation) throws IOException {
+        this.reader = reader;
+        this.generation = generation;
+        next();
+    }
+
+    /**
+     * Opens the snapshot, a missing snapshot is read as generation 0 without principals.
+     */
+    public static SyncSnapshot open(final Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return new SyncSnapshot(null, 0);
+        }
+
+        final BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+        final String header = reader.readLine();
+        if (header == null || !header.startsWith(GENERATION_HEADER)) {
+            reader.close();
+            throw new IOException("Sync snapshot " + path + " has no generation header");
+        }
+        return new SyncSnapshot(reader, Long.parseLong(header.substring(GENERATION_HEADER.length()).trim()));
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Name of the current principal, null once every principal was read.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void next() throws IOException {
+        name = null;
+        hash = null;
+        if (reader == null) {
+            return;
+        }
+
+        final String line = reader.readLine();
+        if (line != null) {
+            final int tab = line.indexOf('\t');
+            name = tab < 0 ? line : line.substring(0, tab);
+            hash = tab < 0 ? "" : line.substring(tab + 1);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    /**
+     * Hash of every attribute of the principal but its Uid and Name, changes when any of them changes.
+     */
+    public static String hash(final ConnectorObject principal) {
+        final TreeMap<String, List<Object>> attributes = new TreeMap<>();
+        final Set<Attribute> principalAttributes = principal.getAttributes();
+        for (final Attribute attribute : principalAttributes) {
+            if (!attribute.is(Uid.NAME) && !attribute.is(Name.NAME)) {
+                attributes.put(attribute.getName(), attribute.getValue() == null ? new ArrayList<>() : attribute.getValue());
+            }
+        }
+
+        long hash = FNV_OFFSET_BASIS;
+        for (final byte b : attributes.toString().getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return Long.toHexString(hash);
+    }
+
+    /**
+     * Writes the next snapshot next to the current one, it only replaces it on commit.
+     */
+    public static final class Writer implements Closeable {
+
+        private final Path path;
+
+        private final Path temporaryPath;
+
+        private final BufferedWriter writer;
+
+        private boolean committed = false;
+
+        public Writer(final Path path, final long generation) throws IOException {
+            this.path = path;
+            this.temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+            this.writer = Files.newBufferedWriter(temporaryPath, StandardCharsets.UTF_8);
+            writer.write(GENERATION_HEADER + generation);
+            writer.newLine();
+        }
+
+        public void write(final String name, final String hash) throws IOException {
+            writer.write(name);
+            writer.write('\t');
+            writer.write(hash);
+            writer.newLine();
+        }
+
+        public void commit() throws IOException {
+            writer.close();
+            Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                writer.close();
+                Files.deleteIfExists(temporaryPath);
+            }
+        }
+    }
+}
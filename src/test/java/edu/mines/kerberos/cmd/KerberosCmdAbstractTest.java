@@ -18,7 +18,9 @@ package edu.mines.kerberos.cmd;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.Set;
+import java.util.function.Consumer;
 import org.identityconnectors.common.CollectionUtil;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.objects.Attribute;
@@ -55,6 +57,31 @@ public class KerberosCmdAbstractTest {
         return config;
     }
 
+    /**
+     * A connector running a script with the given commands, its arguments after the admin principal and keytab
+     * start at $1. The configuration has an admin principal, a keytab and the @EXAMPLE.COM domain (not returned),
+     * settings adds the test's own before the connector is initialized.
+     */
+    protected static KerberosCmdConnector createScriptConnector(final String commands,
+                                                                final Consumer<KerberosCmdConfiguration> settings) throws IOException {
+        final File script = File.createTempFile("script", ".sh");
+        Files.writeString(script.toPath(), "#!/bin/bash\nshift 4\n" + commands);
+        script.setExecutable(true);
+
+        final KerberosCmdConfiguration config = new KerberosCmdConfiguration();
+        config.setScriptCmdPath(script.getAbsolutePath());
+        config.setTestCmdPath(script.getAbsolutePath());
+        config.setAdminPrincipal("admin");
+        config.setKeytabPath("/etc/admin.keytab");
+        config.setUsernameDomain("@EXAMPLE.COM");
+        config.setShouldReturnUsernameDomain("false");
+        settings.accept(config);
+
+        final KerberosCmdConnector connector = new KerberosCmdConnector();
+        connector.init(config);
+        return connector;
+    }
+
     protected Set<Attribute> createSetOfAttributes(final Name name, final String password, final boolean status) {
         final KerberosCmdAttributesTestValue attrs = new KerberosCmdAttributesTestValue();
         final GuardedString encPassword = password == null
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import edu.mines.kerberos.cmd.methods.KerberosCmdExec;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdAdaptiveLimitTest
+ */
+public class KerberosCmdAdaptiveLimitTest {
+
+    private static final long LATENCY = 50_000_000L;
+
+    @Test
+    public void limitGrowsWhileLatencyStaysFlat() {
+        final KerberosCmdAdaptiveLimit adaptiveLimit = new KerberosCmdAdaptiveLimit(8);
+        assertEquals(4, adaptiveLimit.getLimit());
+
+        runRound(adaptiveLimit, LATENCY, false);
+        runRound(adaptiveLimit, LATENCY, false);
+        assertEquals(6, adaptiveLimit.getLimit());
+
+        for (int i = 0; i < 5; i++) {
+            runRound(adaptiveLimit, LATENCY, false);
+        }
+        assertEquals(8, adaptiveLimit.getLimit());
+    }
+
+    @Test
+    public void limitIsCutOnErrorsAndSlowCalls() {
+        final KerberosCmdAdaptiveLimit adaptiveLimit = new KerberosCmdAdaptiveLimit(8);
+        runRound(adaptiveLimit, LATENCY, false);
+        assertEquals(5, adaptiveLimit.getLimit());
+
+        runRound(adaptiveLimit, LATENCY, true);
+        assertEquals(3, adaptiveLimit.getLimit());
+
+        runRound(adaptiveLimit, LATENCY * 20, false);
+        assertEquals(2, adaptiveLimit.getLimit());
+    }
+
+    @Test
+    public void unsetCeilingStartsAtHalfOfTheDefault() {
+        KerberosCmdLimiter.getLimiter().configure(0, 0, 0, 0, 0, true);
+        assertEquals(32, KerberosCmdMetrics.get(KerberosCmdMetrics.SCRIPT_LIMITER_LIMIT));
+
+        KerberosCmdLimiter.getLimiter().configure(200, 0, 0, 0, 0, true);
+        assertEquals(100, KerberosCmdMetrics.get(KerberosCmdMetrics.SCRIPT_LIMITER_LIMIT));
+        KerberosCmdLimiter.getLimiter().configure(0, 0, 0, 0, 0, false);
+    }
+
+    @Test
+    public void onlySinglePrincipalCallsAreSampled() {
+        assertTrue(KerberosCmdExec.isSinglePrincipalOperation(List.of(KerberosCmdConfiguration.SCRIPT_DELETE_FLAG, "user1")));
+        assertTrue(KerberosCmdExec.isSinglePrincipalOperation(List.of(KerberosCmdConfiguration.SCRIPT_CHANGE_USERNAME_FLAG,
+                "user1", "user2")));
+        assertTrue(KerberosCmdExec.isSinglePrincipalOperation(List.of(KerberosCmdConfiguration.SCRIPT_TIMESTAMPS_FLAG,
+                KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG, "user1")));
+
+        assertFalse(KerberosCmdExec.isSinglePrincipalOperation(List.of(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG,
+                "user1", "user2")));
+        assertFalse(KerberosCmdExec.isSinglePrincipalOperation(List.of(KerberosCmdConfiguration.SCRIPT_LIST_ALL_USERS_FLAG)));
+        assertFalse(KerberosCmdExec.isSinglePrincipalOperation(List.of(KerberosCmdConfiguration.SCRIPT_COMBINED_UPDATE_FLAG, "user1",
+                KerberosCmdConfiguration.SCRIPT_LOCK_FLAG, KerberosCmdConfiguration.SCRIPT_CHANGE_USERNAME_FLAG, "user2")));
+    }
+
+    private void runRound(final KerberosCmdAdaptiveLimit adaptiveLimit, final long latencyNanos, final boolean overloaded) {
+        adaptiveLimit.markSaturated();
+        final int samples = adaptiveLimit.getLimit();
+        for (int i = 0; i < samples; i++) {
+            adaptiveLimit.onSample(latencyNanos, overloaded && i == 0);
+        }
+    }
+}
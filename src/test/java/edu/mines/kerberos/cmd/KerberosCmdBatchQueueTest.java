@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static edu.mines.kerberos.cmd.KerberosCmdAbstractTest.createScriptConnector;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.identityconnectors.common.Pair;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdBatchQueueTest
+ */
+public class KerberosCmdBatchQueueTest {
+
+    private final KerberosCmdBatchQueue batchQueue = KerberosCmdBatchQueue.getQueue(createQueueConfiguration("/etc/admin.keytab"));
+
+    private final AtomicInteger batchCalls = new AtomicInteger();
+
+    @AfterEach
+    public void reset() {
+        batchQueue.configure(0, 0);
+    }
+
+    @Test
+    public void concurrentOperationsGetTheirOwnStatus() throws Exception {
+        batchQueue.configure(200, 4);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<Pair<Boolean, String>>> operations = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final List<String> operation = List.of(KerberosCmdConfiguration.SCRIPT_DELETE_FLAG, "user" + i);
+            operations.add(executor.submit(() -> batchQueue.execute(operation, this::runOperations)));
+        }
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i != 2, operations.get(i).get().getKey());
+        }
+        assertEquals(1, batchCalls.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void configurationsHaveTheirOwnQueue() throws Exception {
+        final KerberosCmdBatchQueue otherQueue = KerberosCmdBatchQueue.getQueue(createQueueConfiguration("/etc/other.keytab"));
+        assertNotSame(batchQueue, otherQueue);
+        assertSame(batchQueue, KerberosCmdBatchQueue.getQueue(createQueueConfiguration("/etc/admin.keytab")));
+
+        batchQueue.configure(200, 4);
+        assertFalse(otherQueue.isEnabled()); //configuring one resource leaves the other alone
+        otherQueue.configure(200, 4);
+        try {
+            final ExecutorService executor = Executors.newFixedThreadPool(4);
+            final List<Future<Pair<Boolean, String>>> operations = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final KerberosCmdBatchQueue queue = i % 2 == 0 ? batchQueue : otherQueue;
+                final List<String> operation = List.of(KerberosCmdConfiguration.SCRIPT_DELETE_FLAG, "user" + i);
+                operations.add(executor.submit(() -> queue.execute(operation, this::runOperations)));
+            }
+            for (final Future<Pair<Boolean, String>> operation : operations) {
+                operation.get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(2, batchCalls.get()); //one batch of two per queue
+            executor.shutdown();
+        } finally {
+            otherQueue.configure(0, 0);
+        }
+    }
+
+    @Test
+    public void manifestEscapesFields() {
+        final String manifest = new String(KerberosCmdBatchQueue.createManifest(List.of(
+                List.of(KerberosCmdConfiguration.SCRIPT_CREATE_FLAG, "user1", "pass\tword"),
+                List.of(KerberosCmdConfiguration.SCRIPT_LOCK_FLAG, "user1"))), StandardCharsets.UTF_8);
+
+        assertEquals("-a\tuser1\tpass\\tword\n-f\tuser1\n", manifest);
+        assertFalse(batchQueue.isEnabled());
+    }
+
+    @Test
+    public void everyOperationNeedsOneResult() {
+        final List<Pair<Boolean, String>> statuses = KerberosCmdBatchQueue.createStatuses(
+                List.of("OP 1 0", "OP 2 201 principal does not exist", "OP 3 0", "OP 3 0", "done"), 4, "");
+
+        assertEquals(4, statuses.size());
+        assertTrue(statuses.get(0).getKey());
+        assertFalse(statuses.get(1).getKey());
+        assertTrue(statuses.get(1).getValue().contains("principal does not exist"));
+        assertFalse(statuses.get(2).getKey()); //reported twice
+        assertFalse(statuses.get(3).getKey()); //not reported
+    }
+
+    @Test
+    public void loneOperationDoesNotWaitForTheWindow() {
+        batchQueue.configure(300, 4);
+        assertTrue(batchQueue.execute(List.of(KerberosCmdConfiguration.SCRIPT_DELETE_FLAG, "user1"),
+                this::runOperations, this::runAlone).getKey()); //first window, nobody joins it
+
+        final long start = System.nanoTime();
+        assertTrue(batchQueue.execute(List.of(KerberosCmdConfiguration.SCRIPT_DELETE_FLAG, "user2"),
+                this::runOperations, this::runAlone).getKey());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200);
+        assertEquals(0, batchCalls.get());
+    }
+
+    @Test
+    public void failingBatchCompletesEveryCaller() throws Exception {
+        batchQueue.configure(200, 2);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final List<Future<Pair<Boolean, String>>> operations = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final List<String> operation = List.of(KerberosCmdConfiguration.SCRIPT_DELETE_FLAG, "user" + i);
+            operations.add(executor.submit(() -> batchQueue.execute(operation, batch -> {
+                throw new AssertionError("batch failed");
+            })));
+        }
+
+        int failed = 0;
+        for (final Future<Pair<Boolean, String>> operation : operations) {
+            try {
+                operation.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        assertEquals(2, failed);
+        executor.shutdown();
+    }
+
+    @Test
+    public void partialBatchResultsFailTheUnreportedOperation() throws Exception {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector connector = createBatchConnector(calls, "[ $n -eq 1 ] && echo \"OP 1 0\"", 0);
+
+        final List<Boolean> deleted = deleteConcurrently(connector);
+        assertEquals(1, deleted.stream().filter(d -> d).count());
+        assertEquals(List.of("-M", "-M"), readCalls(calls)); //the probe and the batch, nothing run again on its own
+    }
+
+    @Test
+    public void failedBatchWithoutResultsIsNotRunAgain() throws Exception {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector connector = createBatchConnector(calls, ":", 1);
+
+        assertEquals(List.of(false, false), deleteConcurrently(connector));
+        assertEquals(List.of("-M", "-M"), readCalls(calls));
+        assertThrows(ConnectorException.class, () -> connector.delete(ObjectClass.ACCOUNT, new Uid("user3"), null));
+    }
+
+    @Test
+    public void failedProbeIsNotRepeatedForEveryOperation() throws Exception {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector connector = createScriptConnector("echo \"$1\" >> " + calls.getAbsolutePath() + "\n"
+                + "[ \"$1\" = \"-M\" ] && exit 1\n"
+                + "exit 0\n", config -> {
+                    config.setOperationBatchWindow("300");
+                    config.setOperationBatchMaxSize("2");
+                });
+
+        connector.delete(ObjectClass.ACCOUNT, new Uid("user1"), null);
+        connector.delete(ObjectClass.ACCOUNT, new Uid("user2"), null);
+        assertEquals(List.of("-M", "-d", "-d"), readCalls(calls));
+    }
+
+    /**
+     * A connector batching deletes with a script that answers each manifest line with the given command
+     * ($n is the line number) and exits with the given code, or 0 for the empty manifest of the probe.
+     */
+    private KerberosCmdConnector createBatchConnector(final File calls, final String lineCommand, final int exitCode) throws IOException {
+        return createScriptConnector("echo \"$1\" >> " + calls.getAbsolutePath() + "\n"
+                + "[ \"$1\" = \"-M\" ] || exit " + exitCode + "\n"
+                + "n=0\n"
+                + "while IFS= read -r line; do n=$((n+1)); " + lineCommand + "; done\n"
+                + "[ $n -eq 0 ] && exit 0\n"
+                + "exit " + exitCode + "\n", config -> {
+                    config.setOperationBatchWindow("300");
+                    config.setOperationBatchMaxSize("2");
+                });
+    }
+
+    private List<Boolean> deleteConcurrently(final KerberosCmdConnector connector) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final List<Future<?>> deletes = new ArrayList<>();
+        for (int i = 1; i <= 2; i++) {
+            final Uid uid = new Uid("user" + i);
+            deletes.add(executor.submit(() -> connector.delete(ObjectClass.ACCOUNT, uid, null)));
+        }
+
+        final List<Boolean> deleted = new ArrayList<>();
+        for (final Future<?> delete : deletes) {
+            try {
+                delete.get(10, TimeUnit.SECONDS);
+                deleted.add(true);
+            } catch (ExecutionException e) {
+                deleted.add(false);
+            }
+        }
+        executor.shutdown();
+        return deleted;
+    }
+
+    private static KerberosCmdConfiguration createQueueConfiguration(final String keytabPath) {
+        final KerberosCmdConfiguration config = new KerberosCmdConfiguration();
+        config.setScriptCmdPath("/opt/kerberos/batch.sh");
+        config.setAdminPrincipal("admin");
+        config.setKeytabPath(keytabPath);
+        return config;
+    }
+
+    private static List<String> readCalls(final File calls) throws IOException {
+        return Files.readAllLines(calls.toPath());
+    }
+
+    private Pair<Boolean, String> runAlone(final List<String> operation) {
+        return new Pair<>(true, "");
+    }
+
+    private List<Pair<Boolean, String>> runOperations(final List<List<String>> operations) {
+        batchCalls.incrementAndGet();
+        assertTrue(operations.size() > 1);
+        final List<Pair<Boolean, String>> statuses = new ArrayList<>();
+        for (final List<String> operation : operations) {
+            final boolean failed = "user2".equals(operation.get(1));
+            statuses.add(new Pair<>(!failed, failed ? "code 201" : ""));
+        }
+        return statuses;
+    }
+}
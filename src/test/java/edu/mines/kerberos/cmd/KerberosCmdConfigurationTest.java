@@ -15,8 +15,10 @@
  */
 package edu.mines.kerberos.cmd;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.fail;
+import java.util.List;
 import org.junit.jupiter.api.Test;
 
 
@@ -39,4 +41,16 @@ public class KerberosCmdConfigurationTest extends KerberosCmdAbstractTest {
             assertNotNull(e);
         }
     }
+
+    /**
+     * Tests the update step order falls back to the default order for missing and unknown steps.
+     */
+    @Test
+    public final void testUpdateStepOrder() {
+        final KerberosCmdConfiguration config = new KerberosCmdConfiguration();
+        config.setUpdateStepOrder(" rename, unknown ,lock");
+
+        assertEquals(List.of(KerberosCmdConfiguration.UPDATE_STEP_RENAME, KerberosCmdConfiguration.UPDATE_STEP_LOCK,
+                KerberosCmdConfiguration.UPDATE_STEP_PASSWORD), config.updateStepOrder());
+    }
 }
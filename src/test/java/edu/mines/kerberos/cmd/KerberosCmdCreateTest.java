@@ -15,6 +15,29 @@
  */
 package edu.mines.kerberos.cmd;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import edu.mines.kerberos.cmd.methods.KerberosCmdCreate;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
@@ -64,4 +87,117 @@ public class KerberosCmdCreateTest extends KerberosCmdAbstractTest {
                 createSetOfAttributes(name, "x1:x?x}Xxxx\\", true),
                 new OperationOptionsBuilder().build());
     }
+
+    @Test
+    public void passwordOnStdin() {
+        final KerberosCmdConfiguration config = createConfiguration();
+        config.setShouldSetPasswordsAsScriptArgument("false");
+        config.setPasswordChannel(KerberosCmdConfiguration.PASSWORD_CHANNEL_STDIN);
+
+        assertEquals(List.of(KerberosCmdConfiguration.SCRIPT_CREATE_FLAG, KerberosCmdConfiguration.SCRIPT_PASSWORD_FILE_FLAG,
+                KerberosCmdConfiguration.SCRIPT_PASSWORD_STDIN, "user@EXAMPLE.COM"),
+                new PasswordParameters(config).create("user@EXAMPLE.COM", "secret"));
+    }
+
+    @Test
+    public void uniquePasswordFiles() throws IOException {
+        final Path directory = Files.createTempDirectory("kerberos-cmd-test");
+        final KerberosCmdConfiguration config = createConfiguration();
+        config.setShouldSetPasswordsAsScriptArgument("false");
+        config.setPasswordFilePath(directory.toString());
+
+        final PasswordParameters first = new PasswordParameters(config);
+        final PasswordParameters second = new PasswordParameters(config);
+        final Path firstFile = Paths.get(first.create("user@EXAMPLE.COM", "first").get(2));
+        final Path secondFile = Paths.get(second.create("user@EXAMPLE.COM", "second").get(2));
+
+        assertNotEquals(firstFile, secondFile);
+        if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(firstFile));
+            assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(secondFile));
+        }
+        assertEquals("first", Files.readString(firstFile));
+        assertEquals("second", Files.readString(secondFile));
+
+        first.deletePasswordFiles();
+        assertFalse(Files.exists(firstFile));
+        second.deletePasswordFiles();
+        assertEquals(Collections.emptyList(), List.of(directory.toFile().list()));
+        Files.delete(directory);
+    }
+
+    @Test
+    public void passwordReachesTheScriptOnStdin() throws Exception {
+        final File received = File.createTempFile("received", ".txt");
+        final KerberosCmdConnector connector = createPasswordConnector(
+                "[ \"$1 $2 $3\" = \"-a -w -\" ] && cat > " + received.getAbsolutePath() + "\n", "0");
+
+        connector.create(ObjectClass.ACCOUNT, createUser("user1", "s3cret pass"), null);
+        assertEquals("s3cret pass\n", Files.readString(received.toPath()));
+    }
+
+    @Test
+    public void batchedPasswordGoesInTheManifest() throws Exception {
+        final File manifest = File.createTempFile("manifest", ".txt");
+        final File arguments = File.createTempFile("arguments", ".txt");
+        final KerberosCmdConnector connector = createPasswordConnector("echo \"$*\" >> " + arguments.getAbsolutePath() + "\n"
+                + "[ \"$1\" = \"-M\" ] || exit 0\n"
+                + "n=0; while IFS= read -r line; do n=$((n+1)); echo \"$line\" >> " + manifest.getAbsolutePath() + "; echo \"OP $n 0\"; done\n", "300");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final List<Future<?>> creates = new ArrayList<>();
+        for (int i = 1; i <= 2; i++) {
+            final Set<Attribute> user = createUser("user" + i, "pass" + i);
+            creates.add(executor.submit(() -> connector.create(ObjectClass.ACCOUNT, user, null)));
+        }
+        for (final Future<?> create : creates) {
+            create.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        final List<String> lines = Files.readAllLines(manifest.toPath());
+        assertEquals(2, lines.size());
+        assertTrue(lines.contains("-a\tuser1@EXAMPLE.COM\tpass1") || lines.contains("-a\tuser1\tpass1"), lines.toString());
+        assertTrue(lines.contains("-a\tuser2@EXAMPLE.COM\tpass2") || lines.contains("-a\tuser2\tpass2"), lines.toString());
+        assertFalse(Files.readString(arguments.toPath()).contains("pass1")); //never in the script arguments
+    }
+
+    /**
+     * A connector sending passwords on stdin to a script running the given commands,
+     * its arguments after the admin principal and keytab start at $1.
+     */
+    private KerberosCmdConnector createPasswordConnector(final String commands, final String batchWindow) throws IOException {
+        return createScriptConnector(commands + "exit 0\n", config -> {
+            config.setShouldSetPasswordsAsScriptArgument("false");
+            config.setPasswordChannel(KerberosCmdConfiguration.PASSWORD_CHANNEL_STDIN);
+            config.setOperationBatchWindow(batchWindow);
+            config.setOperationBatchMaxSize("2");
+        });
+    }
+
+    private static Set<Attribute> createUser(final String name, final String password) {
+        return Set.of(new Name(name), AttributeBuilder.buildPassword(new GuardedString(password.toCharArray())));
+    }
+
+    /**
+     * The create parameters for a user and password, without running the script.
+     */
+    private static final class PasswordParameters extends KerberosCmdCreate {
+
+        PasswordParameters(final KerberosCmdConfiguration config) {
+            super(ObjectClass.ACCOUNT, config, Collections.emptySet());
+        }
+
+        List<String> create(final String username, final String password) {
+            final List<String> parameters = new ArrayList<>();
+            parameters.add(KerberosCmdConfiguration.SCRIPT_CREATE_FLAG);
+            setUsernameAndPassword(username, new GuardedString(password.toCharArray()), parameters);
+            return parameters;
+        }
+
+        @Override
+        protected void deletePasswordFiles() {
+            super.deletePasswordFiles();
+        }
+    }
 }
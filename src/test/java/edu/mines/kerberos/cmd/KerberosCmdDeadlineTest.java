@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static edu.mines.kerberos.cmd.KerberosCmdAbstractTest.createScriptConnector;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdDeadlineTest
+ */
+public class KerberosCmdDeadlineTest {
+
+    @Test
+    public void scriptPastItsDeadlineIsKilledWithItsChildren() throws Exception {
+        final File childPid = File.createTempFile("child", ".pid");
+        final KerberosCmdConnector connector = createSleepingConnector(childPid, "1");
+
+        final long start = System.nanoTime();
+        assertThrows(OperationTimeoutException.class, () -> connector.delete(ObjectClass.ACCOUNT, new Uid("user1"), null));
+
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 20);
+        assertChildKilled(childPid);
+    }
+
+    @Test
+    public void interruptedScriptIsKilledAsATimeout() throws Exception {
+        final File childPid = File.createTempFile("child", ".pid");
+        final KerberosCmdConnector connector = createSleepingConnector(childPid, "0");
+
+        final Thread[] caller = new Thread[1];
+        final CompletableFuture<Void> delete = CompletableFuture.runAsync(() -> {
+            caller[0] = Thread.currentThread();
+            connector.delete(ObjectClass.ACCOUNT, new Uid("user1"), null);
+        });
+        while (childPid.length() == 0) {
+            Thread.sleep(10);
+        }
+        caller[0].interrupt();
+
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> delete.get(20, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof OperationTimeoutException);
+        assertChildKilled(childPid);
+    }
+
+    private static void assertChildKilled(final File childPid) throws IOException, InterruptedException {
+        final long pid = Long.parseLong(Files.readString(childPid.toPath()).trim());
+        for (int i = 0; i < 100 && ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false));
+    }
+
+    /**
+     * A connector with a script that starts a sleeping child, writes its pid and waits for it.
+     */
+    private static KerberosCmdConnector createSleepingConnector(final File childPid, final String writeTimeout) throws IOException {
+        return createScriptConnector("sleep 60 &\n"
+                + "echo $! > " + childPid.getAbsolutePath() + "\n"
+                + "wait\n", config -> config.setScriptWriteTimeout(writeTimeout));
+    }
+}
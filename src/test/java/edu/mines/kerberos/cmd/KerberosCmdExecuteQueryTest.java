@@ -16,14 +16,26 @@
 package edu.mines.kerberos.cmd;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import edu.mines.kerberos.cmd.search.Operand;
 import edu.mines.kerberos.cmd.search.Operator;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.Uid;
@@ -88,4 +100,108 @@ public class KerberosCmdExecuteQueryTest extends KerberosCmdAbstractTest {
     public void issueCMD8() {
         connector.executeQuery(ObjectClass.ACCOUNT, null, null, null);
     }
+
+    @Test
+    public void defaultAttributesAreParsedWithTheRequestedOnes() throws IOException {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector listingConnector = createListingConnector(calls);
+
+        final ConnectorObject nameOnly = listAlice(listingConnector, new OperationOptionsBuilder().setAttributesToGet(Name.NAME).build());
+        assertNull(nameOnly.getAttributeByName(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME));
+        assertFalse(Files.readString(calls.toPath()).contains(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG));
+
+        final ConnectorObject withDefaults = listAlice(listingConnector,
+                new OperationOptionsBuilder().setAttributesToGet(Name.NAME).setReturnDefaultAttributes(true).build());
+        assertNotNull(withDefaults.getAttributeByName(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME));
+        assertNotNull(withDefaults.getAttributeByName(KerberosCmdConfiguration.SCRIPT_USER_FLAGS_ATTRIBUTE_NAME));
+        assertTrue(Files.readString(calls.toPath()).contains(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG));
+    }
+
+    @Test
+    public void nameFiltersAreSentAsGlobs() throws IOException {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector listingConnector = createListingConnector(calls);
+
+        listingConnector.executeQuery(ObjectClass.ACCOUNT, new Operand(Operator.SW, Name.NAME, "al", false), result -> true, null);
+        listingConnector.executeQuery(ObjectClass.ACCOUNT, new Operand(Operator.EW, Name.NAME, "ice", false), result -> true, null);
+        listingConnector.executeQuery(ObjectClass.ACCOUNT, new Operand(Operator.C, Name.NAME, "lic", false), result -> true, null);
+        assertEquals(List.of("-l -s -e al*", "-l -s -e *ice", "-l -s -e *lic*"), Files.readAllLines(calls.toPath()));
+    }
+
+    @Test
+    public void globCharactersAreEscaped() throws IOException {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector listingConnector = createListingConnector(calls);
+
+        listingConnector.executeQuery(ObjectClass.ACCOUNT, new Operand(Operator.C, Name.NAME, "a*b?[c]\\d", false), result -> true, null);
+        assertEquals(List.of("-l -s -e *a\\*b\\?\\[c\\]\\\\d*"), Files.readAllLines(calls.toPath()));
+    }
+
+    @Test
+    public void resultsReachTheHandlerWhileTheScriptRuns() throws IOException {
+        final File handled = File.createTempFile("handled", ".flag");
+        handled.delete();
+        //bob once the handler has seen alice, carol if it hasn't after 10 seconds
+        final KerberosCmdConnector listingConnector = createScriptConnector("echo 'alice@EXAMPLE.COM'\n"
+                + "for i in $(seq 100); do [ -e " + handled.getAbsolutePath() + " ] && break; sleep 0.1; done\n"
+                + "[ -e " + handled.getAbsolutePath() + " ] && echo 'bob@EXAMPLE.COM' || echo 'carol@EXAMPLE.COM'\n"
+                + "exit 0\n", config -> { });
+
+        final List<String> names = new ArrayList<>();
+        listingConnector.executeQuery(ObjectClass.ACCOUNT, null, result -> {
+            names.add(result.getName().getNameValue());
+            try {
+                handled.createNewFile();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return true;
+        }, null);
+
+        assertEquals(List.of("alice", "bob"), names);
+    }
+
+    @Test
+    public void handlerStoppingTheListingKillsTheScriptAndItsChildren() throws Exception {
+        final File pids = File.createTempFile("pids", ".txt");
+        final KerberosCmdConnector listingConnector = createScriptConnector("echo $$ > " + pids.getAbsolutePath() + "\n"
+                + "sleep 30 &\n"
+                + "echo $! >> " + pids.getAbsolutePath() + "\n"
+                + "echo 'alice@EXAMPLE.COM'\n"
+                + "echo 'bob@EXAMPLE.COM'\n"
+                + "wait\n"
+                + "exit 0\n", config -> { });
+
+        final List<String> names = new ArrayList<>();
+        final long start = System.nanoTime();
+        listingConnector.executeQuery(ObjectClass.ACCOUNT, null, result -> {
+            names.add(result.getName().getNameValue());
+            return false;
+        }, null);
+
+        assertEquals(List.of("alice"), names);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10)); //didn't wait for the script
+        for (final String pid : Files.readAllLines(pids.toPath())) {
+            final Optional<ProcessHandle> process = ProcessHandle.of(Long.parseLong(pid));
+            if (process.isPresent()) {
+                process.get().onExit().get(5, TimeUnit.SECONDS); //the script and its sleep
+            }
+        }
+    }
+
+    private static ConnectorObject listAlice(final KerberosCmdConnector listingConnector, final OperationOptions options) {
+        final List<ConnectorObject> results = new ArrayList<>();
+        listingConnector.executeQuery(ObjectClass.ACCOUNT, null, results::add, options);
+        assertEquals(1, results.size());
+        return results.get(0);
+    }
+
+    /**
+     * A connector with a script logging its arguments and listing a single frozen principal.
+     */
+    private static KerberosCmdConnector createListingConnector(final File calls) throws IOException {
+        return createScriptConnector("echo \"$@\" >> " + calls.getAbsolutePath() + "\n"
+                + "echo 'alice@EXAMPLE.COM KRB5_KDB_DISALLOW_ALL_TIX'\n"
+                + "exit 0\n", config -> { });
+    }
 }
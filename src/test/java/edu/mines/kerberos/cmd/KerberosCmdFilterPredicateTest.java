@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import edu.mines.kerberos.cmd.search.FilterPredicate;
+import edu.mines.kerberos.cmd.search.Operand;
+import edu.mines.kerberos.cmd.search.Operator;
+import edu.mines.kerberos.cmd.search.SearchPlan;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdFilterPredicateTest
+ */
+public class KerberosCmdFilterPredicateTest {
+
+    private static final Predicate<Operand> NAME_ONLY = operand -> operand.isName() && !operand.isNot();
+
+    private final ConnectorObject lockedUser = createPrincipal("user1", true);
+
+    private final ConnectorObject activeUser = createPrincipal("user2", false);
+
+    @Test
+    public void compositeFilterMatches() {
+        final Operand filter = new Operand(Operator.AND,
+                new Operand(Operator.SW, Name.NAME, "user", false),
+                new Operand(Operator.OR,
+                        new Operand(Operator.EQ, KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME, "true", false),
+                        new Operand(Operator.EQ, Uid.NAME, "user2", true)));
+        final Predicate<ConnectorObject> predicate = FilterPredicate.compile(filter, UnaryOperator.identity());
+
+        assertTrue(predicate.test(lockedUser));
+        assertFalse(predicate.test(activeUser));
+    }
+
+    @Test
+    public void orOfLookupsRunsEachLookup() {
+        final Operand filter = new Operand(Operator.OR,
+                new Operand(Operator.EQ, Name.NAME, "user1", false),
+                new Operand(Operator.EQ, Uid.NAME, "user2", false));
+        final SearchPlan plan = SearchPlan.create(filter, NAME_ONLY);
+
+        assertEquals(2, plan.getPushedOperands().size());
+        assertFalse(plan.isExact(filter));
+    }
+
+    @Test
+    public void andRunsNarrowestBranch() {
+        final Operand lookup = new Operand(Operator.EQ, Name.NAME, "user1", false);
+        final Operand filter = new Operand(Operator.AND, new Operand(Operator.SW, Name.NAME, "user", false), lookup);
+        final SearchPlan plan = SearchPlan.create(filter, NAME_ONLY);
+
+        assertEquals(1, plan.getPushedOperands().size());
+        assertEquals(lookup, plan.getPushedOperands().get(0));
+    }
+
+    @Test
+    public void orWithUnpushableBranchIsFullListing() {
+        final Operand filter = new Operand(Operator.OR,
+                new Operand(Operator.EQ, Name.NAME, "user1", false),
+                new Operand(Operator.EQ, KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME, "true", false));
+
+        assertTrue(SearchPlan.create(filter, NAME_ONLY).isFullListing());
+    }
+
+    private ConnectorObject createPrincipal(final String name, final boolean locked) {
+        final ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setObjectClass(ObjectClass.ACCOUNT);
+        builder.setUid(name);
+        builder.setName(name);
+        builder.addAttribute(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME, locked);
+        return builder.build();
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdIoPumpTest
+ */
+public class KerberosCmdIoPumpTest {
+
+    private final KerberosCmdIoPump pump = KerberosCmdIoPump.getPump();
+
+    @Test
+    public void drainReadsAllLines() throws Exception {
+        final ByteArrayInputStream input = new ByteArrayInputStream("one\ntwo\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("one", "two"), pump.drain(input).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void collectReadsBothOutputsAndExitCode() throws Exception {
+        //more stderr than a pipe buffer holds, the script would block if stderr were only read after stdout
+        final Process proc = new ProcessBuilder("sh", "-c",
+                "i=0; while [ $i -lt 2000 ]; do echo 'error line with some padding text in it' >&2; i=$((i+1)); done;"
+                + " echo out; exit 3").start();
+        final KerberosCmdIoPump.ScriptOutput output = pump.collect(proc, null).get(30, TimeUnit.SECONDS);
+
+        assertEquals(3, output.getExitCode());
+        assertEquals(Collections.singletonList("out"), output.getStdOutput());
+        assertEquals(2000, output.getErrorOutput().size());
+    }
+
+    @Test
+    public void drainReadsUtf8() throws Exception {
+        final ByteArrayInputStream input = new ByteArrayInputStream("j\u00fcrgen\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Collections.singletonList("j\u00fcrgen"), pump.drain(input).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void outputHeldOpenAfterExitFailsTheCall() throws Exception {
+        final PipedOutputStream heldOutput = new PipedOutputStream(); //a child of the script still holding stdout
+        final ExitedProcess proc = new ExitedProcess(new PipedInputStream(heldOutput));
+        try {
+            final ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> pump.collect(proc, null).get(30, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof ConnectorException);
+        } finally {
+            heldOutput.close();
+        }
+    }
+
+    @Test
+    public void busyPumpRejectsDrains() throws IOException {
+        final List<PipedOutputStream> writers = new ArrayList<>();
+        try {
+            assertThrows(ConnectorException.class, () -> {
+                for (int i = 0; i < 1000; i++) { //more than the pool holds
+                    final PipedOutputStream writer = new PipedOutputStream();
+                    final PipedInputStream reader = new PipedInputStream(writer);
+                    writers.add(writer);
+                    pump.drain(reader);
+                }
+            });
+        } finally {
+            for (final PipedOutputStream writer : writers) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * A script that already exited with its stdout still open.
+     */
+    private static final class ExitedProcess extends Process {
+
+        private final InputStream stdOutput;
+
+        private ExitedProcess(final InputStream stdOutput) {
+            this.stdOutput = stdOutput;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stdOutput;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public CompletableFuture<Process> onExit() {
+            return CompletableFuture.completedFuture(this);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import edu.mines.kerberos.cmd.search.KdbFlag;
+import edu.mines.kerberos.cmd.search.KdbFlags;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdKdbFlagsTest
+ */
+public class KerberosCmdKdbFlagsTest {
+
+    @Test
+    public void parsesKnownFlagsIntoMask() {
+        final KdbFlags flags = KdbFlags.parse("  KRB5_KDB_DISALLOW_ALL_TIX KRB5_KDB_REQUIRES_PRE_AUTH ");
+
+        assertEquals(0x40 | 0x80, flags.getMask());
+        assertTrue(flags.isSet(KdbFlag.DISALLOW_ALL_TIX));
+        assertFalse(flags.isSet(KdbFlag.DISALLOW_SVR));
+        assertEquals(List.of("KRB5_KDB_DISALLOW_ALL_TIX", "KRB5_KDB_REQUIRES_PRE_AUTH"), flags.getValues()); //bit order
+    }
+
+    @Test
+    public void sameFlagsInAnyOrderGiveTheSameValues() {
+        final List<Object> first = KdbFlags.parse("KRB5_KDB_REQUIRES_PRE_AUTH KRB5_KDB_DISALLOW_SVR").getValues();
+        final List<Object> second = KdbFlags.parse(new String("KRB5_KDB_DISALLOW_SVR KRB5_KDB_REQUIRES_PRE_AUTH")).getValues();
+
+        assertEquals(first, second);
+        assertSame(KdbFlag.REQUIRES_PRE_AUTH.getToken(), second.get(0)); //known flags are returned as their constant token
+    }
+
+    @Test
+    public void keepsUnknownTokens() {
+        final KdbFlags flags = KdbFlags.parse("KRB5_KDB_SOMETHING_NEW KRB5_KDB_REQUIRES_PRE_AUTH KRB5_KDB_");
+
+        assertEquals(KdbFlag.REQUIRES_PRE_AUTH.getMask(), flags.getMask());
+        assertEquals(List.of("KRB5_KDB_REQUIRES_PRE_AUTH", "KRB5_KDB_SOMETHING_NEW", "KRB5_KDB_"), flags.getValues());
+    }
+
+    @Test
+    public void emptyFlags() {
+        assertTrue(KdbFlags.parse("   ").isEmpty());
+        assertTrue(KdbFlags.parse(null).isEmpty());
+        assertTrue(KdbFlags.parse("").getValues().isEmpty());
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdLimiterTest
+ */
+public class KerberosCmdLimiterTest {
+
+    private final KerberosCmdLimiter limiter = KerberosCmdLimiter.getLimiter();
+
+    @AfterEach
+    public void reset() {
+        limiter.configure(0, 0, 0, 0, 0, false);
+    }
+
+    @Test
+    public void writeLimitDoesNotHoldBackReads() {
+        limiter.configure(3, 0, 1, 0, 100, false);
+        final KerberosCmdLimiter.Permit write = limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, true, true);
+
+        assertThrows(ConnectorIOException.class, () -> limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, true, true));
+        final KerberosCmdLimiter.Permit read = limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, false, true);
+
+        write.release();
+        limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, true, true).release();
+        read.release();
+    }
+
+    @Test
+    public void waitingCallStartsWhenASlotIsReleased() throws Exception {
+        limiter.configure(1, 0, 0, 0, 5000, false);
+        final KerberosCmdLimiter.Permit running = limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, false, true);
+        final CompletableFuture<KerberosCmdLimiter.Permit> waiting = CompletableFuture.supplyAsync(() -> limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, true, true));
+
+        running.release();
+        running.release(); //a second release is ignored
+        final KerberosCmdLimiter.Permit started = waiting.get(5, TimeUnit.SECONDS);
+
+        limiter.configure(1, 0, 0, 0, 100, false);
+        assertThrows(ConnectorIOException.class, () -> limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, false, true));
+        started.release();
+    }
+
+    @Test
+    public void interactiveCallsGoAheadOfBulkCalls() throws Exception {
+        limiter.configure(2, 0, 0, 1, 5000, false);
+        final KerberosCmdLimiter.Permit listing = limiter.acquire(KerberosCmdLimiter.Lane.BULK, false, false);
+        final CompletableFuture<KerberosCmdLimiter.Permit> secondListing =
+                CompletableFuture.supplyAsync(() -> limiter.acquire(KerberosCmdLimiter.Lane.BULK, false, false));
+        final KerberosCmdLimiter.Permit lookup = limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, false, true);
+        assertFalse(secondListing.isDone()); //the second slot is kept for interactive calls
+
+        final CompletableFuture<KerberosCmdLimiter.Permit> freeze =
+                CompletableFuture.supplyAsync(() -> limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, true, true));
+        while (KerberosCmdMetrics.get("scriptLimiter.interactive." + KerberosCmdMetrics.LANE_QUEUED) == 0) {
+            Thread.sleep(10);
+        }
+        listing.release();
+
+        freeze.get(5, TimeUnit.SECONDS).release();
+        lookup.release();
+        secondListing.get(5, TimeUnit.SECONDS).release();
+    }
+
+    @Test
+    public void bulkCallsProgressUnderInteractiveLoad() throws Exception {
+        limiter.configure(1, 0, 0, 0, 10000, false);
+        KerberosCmdLimiter.Permit running = limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, true, true);
+        final CompletableFuture<KerberosCmdLimiter.Permit> listing =
+                CompletableFuture.supplyAsync(() -> limiter.acquire(KerberosCmdLimiter.Lane.BULK, false, false));
+        awaitQueued("scriptLimiter.bulk.");
+
+        //every released slot has an interactive call waiting for it
+        CompletableFuture<KerberosCmdLimiter.Permit> next = null;
+        for (int i = 0; i < 100 && !listing.isDone(); i++) {
+            next = CompletableFuture.supplyAsync(() -> limiter.acquire(KerberosCmdLimiter.Lane.INTERACTIVE, true, true));
+            awaitQueued("scriptLimiter.interactive.");
+            Thread.sleep(50);
+            running.release();
+            while (!listing.isDone() && !next.isDone()) {
+                Thread.sleep(5);
+            }
+            running = listing.isDone() ? null : next.get(5, TimeUnit.SECONDS);
+        }
+
+        assertTrue(listing.isDone());
+        assertFalse(next.isDone()); //the listing went ahead of the waiting interactive call
+        listing.get(5, TimeUnit.SECONDS).release();
+        next.get(5, TimeUnit.SECONDS).release();
+    }
+
+    private static void awaitQueued(final String lanePrefix) throws InterruptedException {
+        while (KerberosCmdMetrics.get(lanePrefix + KerberosCmdMetrics.LANE_QUEUED) == 0) {
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static edu.mines.kerberos.cmd.KerberosCmdAbstractTest.createScriptConnector;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import edu.mines.kerberos.cmd.methods.KerberosCmdExecuteQuery;
+import edu.mines.kerberos.cmd.search.ListingFlight;
+import edu.mines.kerberos.cmd.search.ListingFlightStore;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdListingFlightTest
+ */
+public class KerberosCmdListingFlightTest {
+
+    private final AtomicInteger listings = new AtomicInteger();
+
+    private final CountDownLatch joined = new CountDownLatch(1);
+
+    @Test
+    public void concurrentSearchesShareOneListing() throws Exception {
+        final ListingFlight first = ListingFlightStore.join("shared", this::produceListing);
+        final ListingFlight second = ListingFlightStore.join("shared", this::produceListing);
+        joined.countDown();
+
+        final List<ConnectorObject> stopped = new ArrayList<>();
+        final List<ConnectorObject> all = new ArrayList<>();
+        assertSame(first, second);
+        assertFalse(first.replay(result -> stopped.add(result) && stopped.size() < 2));
+        assertTrue(second.replay(all::add));
+
+        assertEquals(2, stopped.size());
+        assertEquals(5, all.size());
+        assertEquals(1, listings.get());
+    }
+
+    @Test
+    public void listingFailureReachesTheSearch() {
+        final ListingFlight flight = ListingFlightStore.join("failing", it -> {
+            throw new ConnectorException("Error in search");
+        });
+
+        assertThrows(ConnectorException.class, () -> flight.replay(result -> true));
+    }
+
+    @Test
+    public void listingWaitsForTheSlowestSearch() throws Exception {
+        final AtomicInteger published = new AtomicInteger();
+        final ListingFlight flight = ListingFlightStore.join("slow", it -> publish(it, 3 * ListingFlight.RING_SIZE, published));
+
+        final CountDownLatch resume = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        final CompletableFuture<Boolean> replay = CompletableFuture.supplyAsync(() -> flight.replay(result -> {
+            if (handled.incrementAndGet() == 1) {
+                await(resume);
+            }
+            return true;
+        }));
+
+        Thread.sleep(500);
+        assertTrue(published.get() <= 2 * ListingFlight.RING_SIZE); //the listing waits for the search instead of buffering it all
+        resume.countDown();
+
+        assertTrue(replay.get(10, TimeUnit.SECONDS));
+        assertEquals(3 * ListingFlight.RING_SIZE, handled.get());
+    }
+
+    @Test
+    public void lateSearchStartsItsOwnListingOnceTheRingMoved() throws Exception {
+        final CountDownLatch movedOn = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final ListingFlight first = ListingFlightStore.join("moved", it -> {
+            publish(it, ListingFlight.RING_SIZE + 1, new AtomicInteger());
+            movedOn.countDown();
+            await(finish);
+        });
+        final CompletableFuture<Boolean> replay = CompletableFuture.supplyAsync(() -> first.replay(result -> true));
+        assertTrue(movedOn.await(10, TimeUnit.SECONDS));
+
+        final ListingFlight late = ListingFlightStore.join("moved", it -> publish(it, 1, new AtomicInteger()));
+        assertNotSame(first, late); //its first principals are gone from the ring
+        final List<ConnectorObject> all = new ArrayList<>();
+        assertTrue(late.replay(all::add));
+        assertEquals(1, all.size());
+
+        finish.countDown();
+        assertTrue(replay.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void resourcesDoNotShareListings() throws Exception {
+        final KerberosCmdConfiguration first = createListingConfiguration("alice");
+        final KerberosCmdConfiguration second = createListingConfiguration("bob");
+
+        final CompletableFuture<List<ConnectorObject>> firstResults = CompletableFuture.supplyAsync(() -> list(first));
+        final CompletableFuture<List<ConnectorObject>> secondResults = CompletableFuture.supplyAsync(() -> list(second));
+        assertEquals("alice", firstResults.get(10, TimeUnit.SECONDS).get(0).getName().getNameValue());
+        assertEquals("bob", secondResults.get(10, TimeUnit.SECONDS).get(0).getName().getNameValue());
+        assertEquals(1, firstResults.get().size());
+        assertEquals(1, secondResults.get().size());
+    }
+
+    /**
+     * A coalescing configuration whose script lists the one principal after a moment, long enough for the other
+     * resource's listing to start meanwhile.
+     */
+    private static KerberosCmdConfiguration createListingConfiguration(final String principal) throws IOException {
+        return (KerberosCmdConfiguration) createScriptConnector("sleep 1\n"
+                + "echo '" + principal + "@EXAMPLE.COM KRB5_KDB_REQUIRES_PRE_AUTH'\n"
+                + "exit 0\n", config -> config.setCoalesceListings("true")).getConfiguration();
+    }
+
+    private static List<ConnectorObject> list(final KerberosCmdConfiguration configuration) {
+        final List<ConnectorObject> results = new ArrayList<>();
+        new KerberosCmdExecuteQuery(ObjectClass.ACCOUNT, configuration, null, results::add, null).execQuery();
+        return results;
+    }
+
+    private static void publish(final ListingFlight flight, final int count, final AtomicInteger published) {
+        for (int i = 0; i < count; i++) {
+            final ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+            builder.setObjectClass(ObjectClass.ACCOUNT);
+            builder.setUid("user" + i);
+            builder.setName("user" + i);
+            flight.publish(builder.build());
+            published.incrementAndGet();
+        }
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void produceListing(final ListingFlight flight) {
+        listings.incrementAndGet();
+        try {
+            joined.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        publish(flight, 5, new AtomicInteger());
+    }
+}
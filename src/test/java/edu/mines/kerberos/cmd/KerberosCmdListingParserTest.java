@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import edu.mines.kerberos.cmd.search.ByteListingParser;
+import edu.mines.kerberos.cmd.search.JsonListingParser;
+import edu.mines.kerberos.cmd.search.LineListingParser;
+import edu.mines.kerberos.cmd.search.ListingParser;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdListingParserTest
+ */
+public class KerberosCmdListingParserTest {
+
+    private static final String ERROR_RESPONSE = "ERROR:";
+
+    @Test
+    public void byteParserMatchesLineParser() throws IOException {
+        final String listing = "alice@EXAMPLE.COM KRB5_KDB_REQUIRES_PRE_AUTH\n"
+                + "bob@EXAMPLE.COM   KRB5_KDB_REQUIRES_PRE_AUTH  KRB5_KDB_DISALLOW_ALL_TIX \r\n"
+                + "carol@EXAMPLE.COM\n"
+                + "\n"
+                + "dave@EXAMPLE.COM = KRB5_KDB_DISALLOW_ALL_TIX\r"
+                + "erin@EXAMPLE.COM KRB5_KDB_REQUIRES_PRE_AUTH last_modified=1700000000 last_pwd_change=1600000000\n"
+                + "frank@EXAMPLE.COM last_modified=notanumber KRB5_KDB_DISALLOW_ALL_TIX\n"
+                + "grace@EXAMPLE.COM KRB5_KDB_REQUIRES_PRE_AUTH"; //no trailing newline
+
+        final List<ConnectorObject> expected = parse(new LineListingParser(ObjectClass.ACCOUNT, false, null, this::format), listing);
+        final List<ConnectorObject> actual = parse(new ByteListingParser(ObjectClass.ACCOUNT, false, null, this::format), listing);
+
+        assertEquals(7, expected.size());
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void byteParserHandlesLinesAcrossBuffers() throws IOException {
+        final StringBuilder listing = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            listing.append("user").append(i).append("@EXAMPLE.COM KRB5_KDB_REQUIRES_PRE_AUTH").append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+        for (int i = 0; i < 10000; i++) {
+            listing.append("long").append(i);
+        }
+        listing.append("@EXAMPLE.COM KRB5_KDB_DISALLOW_ALL_TIX\n"); //longer than the read buffer
+
+        final List<ConnectorObject> expected = parse(new LineListingParser(ObjectClass.ACCOUNT, false, null, this::format), listing.toString());
+        final List<ConnectorObject> actual = parse(new ByteListingParser(ObjectClass.ACCOUNT, false, null, this::format), listing.toString());
+
+        assertEquals(20001, actual.size());
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void errorLineStopsPublishing() throws IOException {
+        final String listing = "alice@EXAMPLE.COM KRB5_KDB_REQUIRES_PRE_AUTH\nERROR: listing failed\nbob@EXAMPLE.COM KRB5_KDB_REQUIRES_PRE_AUTH\n";
+        for (final ListingParser parser : List.of(
+                new LineListingParser(ObjectClass.ACCOUNT, false, ERROR_RESPONSE, this::format),
+                new ByteListingParser(ObjectClass.ACCOUNT, false, ERROR_RESPONSE, this::format))) {
+            final List<ConnectorObject> results = new ArrayList<>();
+            final String errorLine = parser.parse(stream(listing), results::add);
+
+            assertEquals("ERROR: listing failed", errorLine);
+            assertEquals(1, results.size());
+        }
+    }
+
+    @Test
+    public void handlerStopsTheListing() throws IOException {
+        final List<ConnectorObject> results = new ArrayList<>();
+        final String errorLine = new ByteListingParser(ObjectClass.ACCOUNT, false, ERROR_RESPONSE, this::format)
+                .parse(stream("alice@EXAMPLE.COM\nbob@EXAMPLE.COM\ncarol@EXAMPLE.COM\n"), result -> results.add(result) && results.size() < 2);
+
+        assertNull(errorLine);
+        assertEquals(2, results.size());
+    }
+
+    @Test
+    public void showOutputMatchesLineParser() throws IOException {
+        final String show = "Attributes for alice@EXAMPLE.COM\n0x00000080\nKRB5_KDB_REQUIRES_PRE_AUTH\n"
+                + "Attributes for bob@EXAMPLE.COM\n0x00000040\nKRB5_KDB_DISALLOW_ALL_TIX\n";
+
+        final List<ConnectorObject> expected = parse(new LineListingParser(ObjectClass.ACCOUNT, true, null, this::format), show);
+        final List<ConnectorObject> actual = parse(new ByteListingParser(ObjectClass.ACCOUNT, true, null, this::format), show);
+
+        assertEquals(2, actual.size());
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void nonAsciiNamesAreReadAsUtf8() throws IOException {
+        final String show = "Attributes for jos\u00e9@EXAMPLE.COM\n0x00000080\nKRB5_KDB_REQUIRES_PRE_AUTH\n";
+        final String listing = "jos\u00e9@EXAMPLE.COM KRB5_KDB_REQUIRES_PRE_AUTH\n";
+        for (final ListingParser parser : List.of(
+                new LineListingParser(ObjectClass.ACCOUNT, true, null, this::format),
+                new ByteListingParser(ObjectClass.ACCOUNT, true, null, this::format))) {
+            assertEquals("jos\u00e9", parse(parser, show).get(0).getName().getNameValue());
+        }
+        for (final ListingParser parser : List.of(
+                new LineListingParser(ObjectClass.ACCOUNT, false, null, this::format),
+                new ByteListingParser(ObjectClass.ACCOUNT, false, null, this::format))) {
+            assertEquals("jos\u00e9", parse(parser, listing).get(0).getName().getNameValue());
+        }
+    }
+
+    @Test
+    public void parsesOnlyRequestedAttributes() throws IOException {
+        final String names = "alice@EXAMPLE.COM\nbob@EXAMPLE.COM\n";
+        for (final ListingParser parser : List.of(
+                new LineListingParser(ObjectClass.ACCOUNT, false, null, this::format, Set.of(Name.NAME)),
+                new ByteListingParser(ObjectClass.ACCOUNT, false, null, this::format, Set.of(Name.NAME)))) {
+            final List<ConnectorObject> results = parse(parser, names);
+
+            assertEquals(2, results.size());
+            assertEquals("bob", results.get(1).getName().getNameValue());
+            assertEquals(2, results.get(1).getAttributes().size()); //__UID__ and __NAME__
+        }
+
+        final ConnectorObject locked = parse(new ByteListingParser(ObjectClass.ACCOUNT, false, null, this::format,
+                Set.of(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME)),
+                "bob@EXAMPLE.COM KRB5_KDB_DISALLOW_ALL_TIX\n").get(0);
+        assertEquals(Boolean.TRUE, AttributeUtil.getSingleValue(locked.getAttributeByName(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME)));
+        assertNull(locked.getAttributeByName(KerberosCmdConfiguration.SCRIPT_USER_FLAGS_ATTRIBUTE_NAME));
+    }
+
+    @Test
+    public void jsonRecordsMatchTextOutput() throws IOException {
+        final String text = "alice@EXAMPLE.COM KRB5_KDB_REQUIRES_PRE_AUTH last_modified=1700000000 last_pwd_change=1600000000\n"
+                + "bob@EXAMPLE.COM KRB5_KDB_DISALLOW_ALL_TIX KRB5_KDB_SOMETHING_NEW\n"
+                + "carol@EXAMPLE.COM\n";
+        final String json = "{\"principal\":\"alice@EXAMPLE.COM\",\"flags\":[\"KRB5_KDB_REQUIRES_PRE_AUTH\"],"
+                + "\"last_modified\":1700000000,\"last_pwd_change\":\"1600000000\"}\n"
+                + " { \"extra\" : {\"nested\": [1, \"}\", null]}, \"principal\" : \"b\\u006fb@EXAMPLE.COM\","
+                + " \"flags\" : [ \"KRB5_KDB_DISALLOW_ALL_TIX\" , \"KRB5_KDB_SOMETHING_NEW\" ], \"enabled\": true }\r\n"
+                + "carol@EXAMPLE.COM\n"; //text lines are still read
+
+        final List<ConnectorObject> expected = parse(new ByteListingParser(ObjectClass.ACCOUNT, false, null, this::format), text);
+        final List<ConnectorObject> actual = parse(new JsonListingParser(ObjectClass.ACCOUNT, false, null, this::format, null), json);
+
+        assertEquals(3, actual.size());
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void jsonShowOutput() throws IOException {
+        final String show = "Attributes for alice@EXAMPLE.COM\n0x00000080\nKRB5_KDB_REQUIRES_PRE_AUTH\n";
+        final String json = "{\"principal\":\"bob@EXAMPLE.COM\",\"flags\":[]}\n" + show;
+
+        final List<ConnectorObject> results = parse(new JsonListingParser(ObjectClass.ACCOUNT, true, null, this::format, null), json);
+
+        assertEquals(2, results.size());
+        assertEquals("bob", results.get(0).getName().getNameValue());
+        assertEquals(Boolean.FALSE, AttributeUtil.getSingleValue(results.get(0).getAttributeByName(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME)));
+        assertEquals(parse(new LineListingParser(ObjectClass.ACCOUNT, true, null, this::format), show), results.subList(1, 2));
+    }
+
+    @Test
+    public void jsonErrorRecord() throws IOException {
+        final List<ConnectorObject> results = new ArrayList<>();
+        final String errorLine = new JsonListingParser(ObjectClass.ACCOUNT, false, null, this::format, null).parse(stream(
+                "{\"principal\":\"alice@EXAMPLE.COM\"}\n{\"error\":\"kadmin: \\\"listprincs\\\" failed\"}\n{\"principal\":\"bob@EXAMPLE.COM\"}\n"),
+                results::add);
+
+        assertEquals("kadmin: \"listprincs\" failed", errorLine);
+        assertEquals(1, results.size());
+    }
+
+    @Test
+    public void malformedJsonRecordFails() {
+        final JsonListingParser parser = new JsonListingParser(ObjectClass.ACCOUNT, false, null, this::format, null);
+        assertThrows(ConnectorException.class, () -> parse(parser, "{\"principal\":\"alice@EXAMPLE.COM\"\n"));
+    }
+
+    private List<ConnectorObject> parse(final ListingParser parser, final String output) throws IOException {
+        final List<ConnectorObject> results = new ArrayList<>();
+        parser.parse(stream(output), results::add);
+        return results;
+    }
+
+    private ByteArrayInputStream stream(final String output) {
+        return new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String format(final String username) {
+        return username.trim().replace("@EXAMPLE.COM", "");
+    }
+}
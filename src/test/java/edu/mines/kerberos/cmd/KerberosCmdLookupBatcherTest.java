@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static edu.mines.kerberos.cmd.KerberosCmdAbstractTest.createScriptConnector;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import edu.mines.kerberos.cmd.search.LookupBatcher;
+import edu.mines.kerberos.cmd.search.Operand;
+import edu.mines.kerberos.cmd.search.Operator;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdLookupBatcherTest
+ */
+public class KerberosCmdLookupBatcherTest {
+
+    private final LookupBatcher batcher = LookupBatcher.getBatcher(createBatcherConfiguration("/etc/admin.keytab"));
+
+    private final AtomicInteger batchCalls = new AtomicInteger();
+
+    @AfterEach
+    public void reset() {
+        batcher.configure(0, 0);
+    }
+
+    @Test
+    public void concurrentLookupsShareOneBatch() throws Exception {
+        batcher.configure(200, 4);
+        assertNull(batcher.lookup("user9", this::showPrincipals)); //alone, the following ones come within its window
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<ConnectorObject>> lookups = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final String username = "user" + i;
+            lookups.add(executor.submit(() -> batcher.lookup(username, this::showPrincipals)));
+        }
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals("user" + i, lookups.get(i).get().getName().getNameValue());
+        }
+        assertEquals(1, batchCalls.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void loneLookupIsLeftToASingleCall() {
+        batcher.configure(10, 4);
+
+        assertNull(batcher.lookup("user1", this::showPrincipals));
+        assertEquals(0, batchCalls.get());
+    }
+
+    @Test
+    public void loneLookupDoesNotWaitForTheWindow() {
+        batcher.configure(5000, 4);
+
+        final long start = System.nanoTime();
+        assertNull(batcher.lookup("user1", this::showPrincipals));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test
+    public void errorInTheBatchReleasesTheWaitingLookups() throws Exception {
+        batcher.configure(5000, 2);
+        assertNull(batcher.lookup("user9", this::showPrincipals));
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final List<Future<ConnectorObject>> lookups = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final String username = "user" + i;
+            lookups.add(executor.submit(() -> batcher.lookup(username, usernames -> {
+                throw new OutOfMemoryError("batch");
+            })));
+        }
+
+        int failed = 0;
+        for (final Future<ConnectorObject> lookup : lookups) {
+            try {
+                assertNull(lookup.get(2, TimeUnit.SECONDS)); //the follower goes on alone
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof OutOfMemoryError); //the leader keeps the error
+                failed++;
+            }
+        }
+        assertEquals(1, failed);
+        executor.shutdown();
+    }
+
+    @Test
+    public void concurrentGetsAreBatchedAndMissingOnesLookedUpAlone() throws Exception {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector connector = createBatchingConnector(calls);
+        assertEquals(1, getPrincipals(connector, List.of("user99")).size()); //alone, the following ones come within its window
+
+        final List<String> usernames = new ArrayList<>();
+        for (int i = 0; i < 42; i++) {
+            usernames.add("user" + i);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(usernames.size());
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<List<ConnectorObject>>> gets = new ArrayList<>();
+        for (final String username : usernames) {
+            gets.add(executor.submit(() -> {
+                start.await();
+                return getPrincipals(connector, List.of(username));
+            }));
+        }
+        start.countDown();
+
+        for (int i = 0; i < gets.size(); i++) {
+            assertEquals("user" + i, gets.get(i).get(20, TimeUnit.SECONDS).get(0).getName().getNameValue());
+        }
+        final List<String> batched = new ArrayList<>();
+        final List<String> single = new ArrayList<>();
+        for (final String call : Files.readAllLines(calls.toPath())) {
+            (call.split(" ").length > 2 ? batched : single).add(call);
+        }
+        assertEquals(3, batched.size()); //16, 16 and 10 principals
+        assertEquals(List.of("-s user99"), single.subList(0, 1));
+        assertEquals(Set.of("-s user7", "-s user30"), Set.copyOf(single.subList(1, single.size())));
+        executor.shutdown();
+    }
+
+    @Test
+    public void configurationsHaveTheirOwnBatcher() {
+        final LookupBatcher otherBatcher = LookupBatcher.getBatcher(createBatcherConfiguration("/etc/other.keytab"));
+        assertNotSame(batcher, otherBatcher);
+        assertSame(batcher, LookupBatcher.getBatcher(createBatcherConfiguration("/etc/admin.keytab")));
+
+        batcher.configure(200, 4);
+        assertFalse(otherBatcher.isEnabled()); //configuring one resource leaves the other alone
+    }
+
+    @Test
+    public void rejectedMultiPrincipalLookupIsRemembered() throws Exception {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector connector = createScriptConnector("echo \"$@\" >> " + calls.getAbsolutePath() + "\n"
+                + "shift\n"
+                + "[ $# -gt 1 ] && exit 1\n"
+                + "printf 'Attributes for %s\\n0x00000000\\nKRB5_KDB_REQUIRES_PRE_AUTH\\n' \"$1\"\n"
+                + "exit 0\n", config -> {
+                    config.setLookupBatchWindow("500");
+                    config.setLookupBatchMaxSize("16");
+                });
+
+        for (int round = 0; round < 2; round++) {
+            assertEquals(1, getPrincipals(connector, List.of("user99")).size()); //alone, the following ones come within its window
+            final ExecutorService executor = Executors.newFixedThreadPool(4);
+            final List<Future<List<ConnectorObject>>> gets = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final String username = "user" + i;
+                gets.add(executor.submit(() -> getPrincipals(connector, List.of(username))));
+            }
+            for (int i = 0; i < gets.size(); i++) {
+                assertEquals("user" + i, gets.get(i).get(10, TimeUnit.SECONDS).get(0).getName().getNameValue());
+            }
+            executor.shutdown();
+        }
+
+        final long batched = Files.readAllLines(calls.toPath()).stream().filter(call -> call.split(" ").length > 2).count();
+        assertEquals(1, batched); //the second round doesn't try again
+        LookupBatcher.getBatcher((KerberosCmdConfiguration) connector.getConfiguration()).configure(0, 0);
+    }
+
+    private static KerberosCmdConfiguration createBatcherConfiguration(final String keytabPath) {
+        final KerberosCmdConfiguration config = new KerberosCmdConfiguration();
+        config.setScriptCmdPath("/opt/kerberos/lookup.sh");
+        config.setAdminPrincipal("admin");
+        config.setKeytabPath(keytabPath);
+        return config;
+    }
+
+    private static List<ConnectorObject> getPrincipals(final KerberosCmdConnector connector, final List<String> usernames) {
+        final List<ConnectorObject> results = new ArrayList<>();
+        for (final String username : usernames) {
+            connector.executeQuery(ObjectClass.ACCOUNT, new Operand(Operator.EQ, Uid.NAME, username, false), results::add, null);
+        }
+        return results;
+    }
+
+    /**
+     * A connector batching up to 16 lookups, with a script logging its arguments and showing every principal
+     * asked for, except user7 and user30 when they come in a batch.
+     */
+    private static KerberosCmdConnector createBatchingConnector(final File calls) throws IOException {
+        return createScriptConnector("echo \"$@\" >> " + calls.getAbsolutePath() + "\n"
+                + "shift\n"
+                + "for name in \"$@\"; do\n"
+                + "  [ $# -gt 1 ] && case \"$name\" in user7|user30) continue ;; esac\n"
+                + "  printf 'Attributes for %s\\n0x00000000\\nKRB5_KDB_REQUIRES_PRE_AUTH\\n' \"$name\"\n"
+                + "done\n"
+                + "exit 0\n", config -> {
+                    config.setLookupBatchWindow("1000");
+                    config.setLookupBatchMaxSize("16");
+                });
+    }
+
+    private Map<String, ConnectorObject> showPrincipals(final Set<String> usernames) {
+        batchCalls.incrementAndGet();
+        final Map<String, ConnectorObject> results = new HashMap<>();
+        for (final String username : usernames) {
+            final ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+            builder.setObjectClass(ObjectClass.ACCOUNT);
+            builder.setUid(username);
+            builder.setName(username);
+            results.put(username, builder.build());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static edu.mines.kerberos.cmd.KerberosCmdAbstractTest.createScriptConnector;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import edu.mines.kerberos.cmd.search.ListingSnapshotStore;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdPagedSearchTest
+ */
+public class KerberosCmdPagedSearchTest {
+
+    private File listing;
+
+    private File listings;
+
+    private KerberosCmdConnector connector;
+
+    private KerberosCmdConfiguration configuration;
+
+    @BeforeEach
+    public void createListingConnector() throws IOException {
+        listing = File.createTempFile("listing", ".txt");
+        listings = File.createTempFile("listings", ".log");
+        writeListing("alice", "bob", "carol", "dave");
+
+        //deletes succeed, anything else lists the principals in the listing file
+        connector = createScriptConnector("[ \"$1\" = '" + KerberosCmdConfiguration.SCRIPT_DELETE_FLAG + "' ] && exit 0\n"
+                + "echo \"$@\" >> " + listings.getAbsolutePath() + "\n"
+                + "cat " + listing.getAbsolutePath() + "\n"
+                + "exit 0\n", config -> { });
+        configuration = (KerberosCmdConfiguration) connector.getConfiguration();
+        ListingSnapshotStore.getStore(configuration).clear();
+    }
+
+    @Test
+    public void searchWithoutCookieTakesANewListing() throws IOException {
+        assertEquals(List.of("alice", "bob"), searchPage(null, null).names);
+
+        writeListing("aaron", "alice", "bob", "carol", "dave");
+        assertEquals(List.of("aaron", "alice"), searchPage(null, null).names);
+        assertEquals(2, Files.readAllLines(listings.toPath()).size());
+    }
+
+    @Test
+    public void offsetPageReusesTheLatestSnapshot() throws IOException {
+        assertEquals(List.of("alice", "bob"), searchPage(null, null).names);
+
+        writeListing("aaron", "alice", "bob", "carol", "dave");
+        assertEquals(List.of("carol", "dave"), searchPage(null, 3).names);
+        assertEquals(1, Files.readAllLines(listings.toPath()).size());
+
+        connector.delete(ObjectClass.ACCOUNT, new Uid("alice"), null);
+        assertEquals(List.of("bob", "carol"), searchPage(null, 3).names); //the write dropped it
+        assertEquals(2, Files.readAllLines(listings.toPath()).size());
+    }
+
+    @Test
+    public void writeOnlyDropsTheSnapshotsOfItsResource() throws IOException {
+        final Page first = searchPage(null, null);
+
+        final KerberosCmdConnector otherConnector = createScriptConnector("exit 0\n", config -> config.setKeytabPath("/etc/other.keytab"));
+        otherConnector.delete(ObjectClass.ACCOUNT, new Uid("alice"), null);
+        connector.init(configuration); //the connector configuration is shared by every instance
+
+        writeListing("aaron", "alice", "bob", "carol", "dave");
+        assertEquals(List.of("carol", "dave"), searchPage(first.cookie, null).names);
+        assertEquals(1, Files.readAllLines(listings.toPath()).size());
+    }
+
+    @Test
+    public void cookieReusesItsSnapshot() throws IOException {
+        final Page first = searchPage(null, null);
+        assertNotNull(first.cookie);
+
+        writeListing("aaron", "alice", "bob", "carol", "dave");
+        final Page second = searchPage(first.cookie, null);
+        assertEquals(List.of("carol", "dave"), second.names);
+        assertNull(second.cookie); //last page
+        assertEquals(1, Files.readAllLines(listings.toPath()).size());
+    }
+
+    @Test
+    public void writeDropsTheSnapshotAndTheCookieGoesOnAfterItsLastName() throws IOException {
+        final Page first = searchPage(null, null);
+        assertEquals(List.of("alice", "bob"), first.names);
+
+        writeListing("aaron", "bert", "bob", "carol", "dave");
+        connector.delete(ObjectClass.ACCOUNT, new Uid("alice"), null);
+
+        assertEquals(List.of("carol", "dave"), searchPage(first.cookie, null).names);
+        assertEquals(2, Files.readAllLines(listings.toPath()).size());
+    }
+
+    private void writeListing(final String... names) throws IOException {
+        final StringBuilder principals = new StringBuilder();
+        for (final String principal : names) {
+            principals.append(principal).append("@EXAMPLE.COM\n");
+        }
+        Files.writeString(listing.toPath(), principals);
+    }
+
+    private Page searchPage(final String cookie, final Integer offset) {
+        final Page page = new Page();
+        connector.executeQuery(ObjectClass.ACCOUNT, null, page,
+                new OperationOptionsBuilder().setAttributesToGet(Name.NAME).setPageSize(2)
+                        .setPagedResultsCookie(cookie).setPagedResultsOffset(offset).build());
+        return page;
+    }
+
+    /**
+     * Names and next cookie of one page.
+     */
+    private static final class Page implements SearchResultsHandler {
+
+        private final List<String> names = new ArrayList<>();
+
+        private String cookie;
+
+        @Override
+        public boolean handle(final ConnectorObject connectorObject) {
+            names.add(connectorObject.getName().getNameValue());
+            return true;
+        }
+
+        @Override
+        public void handleResult(final SearchResult result) {
+            cookie = result.getPagedResultsCookie();
+        }
+    }
+}
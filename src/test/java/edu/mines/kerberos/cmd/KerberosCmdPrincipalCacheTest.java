@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import edu.mines.kerberos.cmd.search.PrincipalCache;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdPrincipalCacheTest
+ */
+public class KerberosCmdPrincipalCacheTest {
+
+    private final PrincipalCache cache = PrincipalCache.getCache(createConfiguration("@EXAMPLE.COM"));
+
+    @AfterEach
+    public void reset() {
+        cache.configure(0, 0);
+        cache.clear();
+    }
+
+    @Test
+    public void disabledCacheKeepsNothing() {
+        cache.configure(0, 10);
+        cache.put("user1", createPrincipal("user1"), cache.getGeneration());
+
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get("user1"));
+    }
+
+    @Test
+    public void hitAndInvalidate() {
+        cache.configure(60000, 10);
+        cache.put("user1", createPrincipal("user1"), cache.getGeneration());
+        final long hits = KerberosCmdMetrics.get(KerberosCmdMetrics.PRINCIPAL_CACHE_HITS);
+
+        assertNotNull(cache.get("user1"));
+        assertEquals(hits + 1, KerberosCmdMetrics.get(KerberosCmdMetrics.PRINCIPAL_CACHE_HITS));
+
+        cache.invalidate("user1");
+        assertNull(cache.get("user1"));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        cache.configure(60000, 2);
+        cache.put("user1", createPrincipal("user1"), cache.getGeneration());
+        cache.put("user2", createPrincipal("user2"), cache.getGeneration());
+        cache.get("user1");
+        cache.put("user3", createPrincipal("user3"), cache.getGeneration());
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("user1"));
+        assertNull(cache.get("user2"));
+        assertNotNull(cache.get("user3"));
+    }
+
+    @Test
+    public void expiredEntryIsAMiss() throws InterruptedException {
+        cache.configure(20, 10);
+        cache.put("user1", createPrincipal("user1"), cache.getGeneration());
+        Thread.sleep(50);
+
+        assertNull(cache.get("user1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void principalReadBeforeAWriteIsNotCached() {
+        cache.configure(60000, 10);
+        final long readGeneration = cache.getGeneration(); //lookup starts
+        cache.invalidate("user1"); //write ends while the lookup runs
+        cache.put("user1", createPrincipal("user1"), readGeneration);
+
+        assertNull(cache.get("user1"));
+        cache.put("user1", createPrincipal("user1"), cache.getGeneration());
+        assertNotNull(cache.get("user1"));
+    }
+
+    @Test
+    public void configurationsHaveTheirOwnCache() {
+        cache.configure(60000, 10);
+        cache.put("user1", createPrincipal("user1"), cache.getGeneration());
+        final PrincipalCache otherRealm = PrincipalCache.getCache(createConfiguration("@OTHER.ORG"));
+        otherRealm.configure(60000, 10);
+
+        assertNotNull(cache.get("user1"));
+        assertNull(otherRealm.get("user1"));
+        assertSame(cache, PrincipalCache.getCache(createConfiguration("@EXAMPLE.COM")));
+        otherRealm.configure(0, 0);
+    }
+
+    private static KerberosCmdConfiguration createConfiguration(final String usernameDomain) {
+        final KerberosCmdConfiguration config = new KerberosCmdConfiguration();
+        config.setScriptCmdPath("/usr/local/bin/kadmin.sh");
+        config.setAdminPrincipal("admin");
+        config.setKeytabPath("/etc/admin.keytab");
+        config.setUsernameDomain(usernameDomain);
+        return config;
+    }
+
+    private ConnectorObject createPrincipal(final String name) {
+        return new ConnectorObjectBuilder().setObjectClass(ObjectClass.ACCOUNT).setName(name).setUid(name).build();
+    }
+}
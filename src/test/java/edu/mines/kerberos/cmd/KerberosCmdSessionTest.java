@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static edu.mines.kerberos.cmd.KerberosCmdAbstractTest.createScriptConnector;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdSessionTest
+ */
+public class KerberosCmdSessionTest {
+
+    private File requests;
+
+    private File starts;
+
+    private List<String> sessionCommand;
+
+    @BeforeEach
+    public void createSessionScript() throws IOException {
+        requests = File.createTempFile("requests", ".log");
+        starts = File.createTempFile("starts", ".log");
+
+        //-d answers, -e fails with code 3, -x dies mid reply, -w sleeps before answering
+        final KerberosCmdConnector connector = createScriptConnector("echo $$ >> " + starts.getAbsolutePath() + "\n"
+                + "while IFS= read -r line; do\n"
+                + "  len=${line%%$'\\t'*}\n"
+                + "  payload=''\n"
+                + "  [ \"$len\" -gt 0 ] && read -r -N \"$len\" payload\n"
+                + "  printf '%s|%s\\n' \"$line\" \"$payload\" >> " + requests.getAbsolutePath() + "\n"
+                + "  case \"${line#*$'\\t'}\" in\n"
+                + "    -d*) echo 'deleted'; echo '%%END%% 0' ;;\n"
+                + "    -e*) echo 'first'; echo 'second'; echo '%%END%% 3' ;;\n"
+                + "    -x*) echo 'partial'; exit 1 ;;\n"
+                + "    -w*) sleep 1; echo 'waited'; echo '%%END%% 0' ;;\n"
+                + "  esac\n"
+                + "done\n", config -> { }); //request logging reads the configuration
+        final KerberosCmdConfiguration config = (KerberosCmdConfiguration) connector.getConfiguration();
+        sessionCommand = List.of(config.getScriptCmdPath(), KerberosCmdConfiguration.SCRIPT_PRINCIPAL_FLAG, config.getAdminPrincipal(),
+                KerberosCmdConfiguration.SCRIPT_KEYTAB_FLAG, config.getKeytabPath(), KerberosCmdConfiguration.SCRIPT_SESSION_FLAG);
+    }
+
+    @AfterEach
+    public void closeSession() {
+        KerberosCmdSession.closeSessions();
+    }
+
+    @Test
+    public void requestIsFramedWithItsPayload() throws Exception {
+        final Process exchange = KerberosCmdSession.openSession(sessionCommand, 1).executeScriptCmd(
+                List.of("-d", "user\t1", "back\\slash"), "pw\n".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("deleted\n", readReply(exchange));
+        assertEquals(0, exchange.waitFor());
+        assertEquals("3\t-d\tuser\\t1\tback\\\\slash|pw\n\n", Files.readString(requests.toPath())); //escaped fields, then the payload
+    }
+
+    @Test
+    public void replyEndsAtTheTerminatorWithItsExitCode() throws Exception {
+        final KerberosCmdSession session = KerberosCmdSession.openSession(sessionCommand, 1);
+        final Process failed = session.executeScriptCmd(List.of("-e", "user1"), null);
+        assertEquals("first\nsecond\n", readReply(failed));
+        assertEquals(3, failed.waitFor());
+
+        final Process next = session.executeScriptCmd(List.of("-d", "user1"), null);
+        assertEquals("deleted\n", readReply(next));
+        assertEquals(1, Files.readAllLines(starts.toPath()).size()); //same session process
+    }
+
+    @Test
+    public void deadSessionIsStartedAgain() throws Exception {
+        final KerberosCmdSession session = KerberosCmdSession.openSession(sessionCommand, 1);
+        final Process died = session.executeScriptCmd(List.of("-x", "user1"), null);
+        assertEquals("partial\n", readReply(died));
+        assertEquals(1, died.waitFor());
+
+        final Process next = session.executeScriptCmd(List.of("-d", "user1"), null);
+        assertEquals("deleted\n", readReply(next));
+        assertEquals(2, Files.readAllLines(starts.toPath()).size());
+
+        final long pid = Long.parseLong(Files.readAllLines(starts.toPath()).get(1));
+        ProcessHandle.of(pid).ifPresent(p -> {
+            p.destroyForcibly(); //killed between requests
+            p.onExit().join();
+        });
+        final Process afterKill = session.executeScriptCmd(List.of("-d", "user1"), null);
+        assertEquals("deleted\n", readReply(afterKill));
+        assertEquals(3, Files.readAllLines(starts.toPath()).size());
+    }
+
+    @Test
+    public void sessionProcessesRunSideBySide() throws Exception {
+        final KerberosCmdSession session = KerberosCmdSession.openSession(sessionCommand, 2);
+        final Process slow = session.executeScriptCmd(List.of("-w", "user1"), null);
+
+        final CompletableFuture<String> fast = CompletableFuture.supplyAsync(() -> readReply(session.executeScriptCmd(List.of("-d", "user2"), null)));
+        assertEquals("deleted\n", fast.get(5, TimeUnit.SECONDS));
+        assertFalse(slow.onExit().isDone()); //answered while the first request was still running
+
+        assertEquals("waited\n", readReply(slow));
+        assertEquals(2, Files.readAllLines(starts.toPath()).size());
+    }
+
+    @Test
+    public void eachCommandKeepsItsOwnSession() throws Exception {
+        final List<String> otherCommand = new ArrayList<>(sessionCommand);
+        otherCommand.set(4, "/etc/other.keytab");
+
+        final KerberosCmdSession session = KerberosCmdSession.openSession(sessionCommand, 1);
+        assertEquals("deleted\n", readReply(session.executeScriptCmd(List.of("-d", "user1"), null)));
+        final KerberosCmdSession otherSession = KerberosCmdSession.openSession(otherCommand, 1);
+        assertEquals("deleted\n", readReply(otherSession.executeScriptCmd(List.of("-d", "user2"), null)));
+
+        assertNotSame(session, otherSession);
+        assertSame(session, KerberosCmdSession.openSession(sessionCommand, 1));
+        assertEquals("deleted\n", readReply(session.executeScriptCmd(List.of("-d", "user3"), null)));
+        assertEquals(2, Files.readAllLines(starts.toPath()).size()); //one process per command, neither restarted
+    }
+
+    @Test
+    public void closingWaitsForTheRunningRequestAndFailsWaitingOnes() throws Exception {
+        final KerberosCmdSession session = KerberosCmdSession.openSession(sessionCommand, 1);
+        final Process slow = session.executeScriptCmd(List.of("-w", "user1"), null);
+        final CompletableFuture<Void> closing = CompletableFuture.runAsync(KerberosCmdSession::closeSessions);
+        Thread.sleep(200); //the close queues for the session first
+        final CompletableFuture<Process> waiting = CompletableFuture.supplyAsync(() -> session.executeScriptCmd(List.of("-d", "user2"), null));
+
+        assertEquals("waited\n", readReply(slow));
+        assertEquals(0, slow.waitFor());
+        closing.get(10, TimeUnit.SECONDS);
+
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> waiting.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ConnectorIOException);
+        assertEquals(1, Files.readAllLines(starts.toPath()).size()); //no process started on the closed session
+    }
+
+    private static String readReply(final Process exchange) {
+        try {
+            return new String(exchange.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
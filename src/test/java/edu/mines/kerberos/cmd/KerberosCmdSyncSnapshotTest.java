@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import edu.mines.kerberos.cmd.search.SyncListing;
+import edu.mines.kerberos.cmd.search.SyncSnapshot;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdSyncSnapshotTest
+ */
+public class KerberosCmdSyncSnapshotTest {
+
+    @Test
+    public void snapshotIsReadBackInOrder() throws Exception {
+        final Path path = Files.createTempFile("kerberos-sync", ".snapshot");
+        try {
+            try (SyncSnapshot.Writer writer = new SyncSnapshot.Writer(path, 7)) {
+                writer.write("user1", "a1");
+                writer.write("user2", "b2");
+                writer.commit();
+            }
+
+            try (SyncSnapshot snapshot = SyncSnapshot.open(path)) {
+                assertEquals(7, snapshot.getGeneration());
+                assertEquals("user1", snapshot.getName());
+                assertEquals("a1", snapshot.getHash());
+                snapshot.next();
+                assertEquals("user2", snapshot.getName());
+                snapshot.next();
+                assertNull(snapshot.getName());
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void missingSnapshotIsGenerationZero() throws Exception {
+        try (SyncSnapshot snapshot = SyncSnapshot.open(Path.of("/nonexistent/kerberos-sync.snapshot"))) {
+            assertEquals(0, snapshot.getGeneration());
+            assertNull(snapshot.getName());
+        }
+    }
+
+    @Test
+    public void hashFollowsFlags() {
+        assertEquals(SyncSnapshot.hash(createPrincipal("KRB5_KDB_REQUIRES_PRE_AUTH")),
+                SyncSnapshot.hash(createPrincipal("KRB5_KDB_REQUIRES_PRE_AUTH")));
+        assertNotEquals(SyncSnapshot.hash(createPrincipal("KRB5_KDB_REQUIRES_PRE_AUTH")),
+                SyncSnapshot.hash(createPrincipal("KRB5_KDB_REQUIRES_PRE_AUTH KRB5_KDB_DISALLOW_ALL_TIX")));
+    }
+
+    @Test
+    public void spilledListingIsMergedInOrder() throws Exception {
+        final Path directory = Files.createTempDirectory("kerberos-sync");
+        final List<ConnectorObject> principals = new ArrayList<>();
+        for (final String name : List.of("user4", "user1", "user5", "user3", "user2")) {
+            principals.add(createPrincipal(name, "KRB5_KDB_REQUIRES_PRE_AUTH\tand\\back")); //escaped in the runs
+        }
+
+        final List<ConnectorObject> read = new ArrayList<>();
+        try (SyncListing listing = new SyncListing(directory.resolve("kerberos.snapshot"), ObjectClass.ACCOUNT, 2)) {
+            for (final ConnectorObject principal : principals) {
+                listing.add(principal);
+            }
+            listing.sort();
+            assertEquals(3, directory.toFile().list().length); //runs of two, spilled next to the snapshot
+
+            while (listing.getUid() != null) {
+                assertEquals(SyncSnapshot.hash(listing.getPrincipal()), listing.getHash());
+                read.add(listing.getPrincipal());
+                listing.next();
+            }
+            assertEquals(5, listing.size());
+        }
+
+        principals.sort(Comparator.comparing(principal -> principal.getUid().getUidValue()));
+        assertEquals(principals, read);
+        assertEquals(0, directory.toFile().list().length);
+        Files.delete(directory);
+    }
+
+    private ConnectorObject createPrincipal(final String flags) {
+        return createPrincipal("user1", flags);
+    }
+
+    private ConnectorObject createPrincipal(final String name, final String flags) {
+        final ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setObjectClass(ObjectClass.ACCOUNT);
+        builder.setUid(name);
+        builder.setName(name);
+        builder.addAttribute(KerberosCmdConfiguration.SCRIPT_USER_FLAGS_ATTRIBUTE_NAME, flags);
+        return builder.build();
+    }
+}
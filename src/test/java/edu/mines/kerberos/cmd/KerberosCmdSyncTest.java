@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mines.kerberos.cmd;
+
+import static edu.mines.kerberos.cmd.KerberosCmdAbstractTest.createScriptConnector;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.junit.jupiter.api.Test;
+
+
+/**
+ * KerberosCmdSyncTest
+ */
+public class KerberosCmdSyncTest {
+
+    private File listing;
+
+    @Test
+    public void timestampSyncHandsOutTheRestOfTheLatestSecond() throws Exception {
+        final KerberosCmdConnector connector = createConnector(KerberosCmdConfiguration.SYNC_STRATEGY_TIMESTAMP,
+                "alice KRB5_KDB_REQUIRES_PRE_AUTH last_modified=100 last_pwd_change=50",
+                "bob KRB5_KDB_REQUIRES_PRE_AUTH last_modified=150 last_pwd_change=200",
+                "carol KRB5_KDB_REQUIRES_PRE_AUTH");
+        final SyncToken latest = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+        assertEquals("200 bob", latest.getValue().toString());
+
+        writeListing("alice KRB5_KDB_REQUIRES_PRE_AUTH last_modified=100 last_pwd_change=50",
+                "bob KRB5_KDB_REQUIRES_PRE_AUTH last_modified=150 last_pwd_change=200",
+                "carol KRB5_KDB_REQUIRES_PRE_AUTH",
+                "erin KRB5_KDB_REQUIRES_PRE_AUTH last_modified=300",
+                "dave KRB5_KDB_REQUIRES_PRE_AUTH last_modified=200 last_pwd_change=150"); //later in the same second
+        final Deltas deltas = sync(connector, latest, -1);
+
+        assertEquals(List.of("dave", "erin"), deltas.uids);
+        assertEquals("300 erin", deltas.token.getValue().toString());
+        assertEquals(150L, AttributeUtil.getSingleValue(deltas.deltas.get(0).getObject()
+                .getAttributeByName(KerberosCmdConfiguration.SCRIPT_LAST_PASSWORD_CHANGE_ATTRIBUTE_NAME)));
+        assertEquals(List.of(), sync(connector, deltas.token, -1).uids); //the latest second isn't handed out again
+    }
+
+    @Test
+    public void timestampSyncWithoutTokenHandsOutEveryPrincipal() throws Exception {
+        final KerberosCmdConnector connector = createConnector(KerberosCmdConfiguration.SYNC_STRATEGY_TIMESTAMP,
+                "bob KRB5_KDB_REQUIRES_PRE_AUTH last_modified=100",
+                "carol KRB5_KDB_REQUIRES_PRE_AUTH",
+                "alice KRB5_KDB_REQUIRES_PRE_AUTH last_modified=100");
+        final Deltas deltas = sync(connector, null, -1);
+
+        assertEquals(List.of("bob", "carol", "alice"), deltas.uids); //as listed
+        assertEquals("100 alice bob", deltas.token.getValue().toString());
+        assertEquals(List.of(), sync(connector, deltas.token, -1).uids); //carol has no timestamp
+    }
+
+    @Test
+    public void stoppedTimestampSyncWithoutTokenStartsOver() throws Exception {
+        final KerberosCmdConnector connector = createConnector(KerberosCmdConfiguration.SYNC_STRATEGY_TIMESTAMP,
+                "bob KRB5_KDB_REQUIRES_PRE_AUTH last_modified=200",
+                "alice KRB5_KDB_REQUIRES_PRE_AUTH last_modified=100");
+        final Deltas deltas = sync(connector, null, 1);
+
+        assertEquals(List.of("bob"), deltas.uids);
+        assertEquals("", deltas.token.getValue().toString());
+        assertEquals(List.of("bob", "alice"), sync(connector, deltas.token, -1).uids);
+    }
+
+    @Test
+    public void stoppedTimestampSyncResumesAfterTheStoppedPrincipal() throws Exception {
+        final KerberosCmdConnector connector = createConnector(KerberosCmdConfiguration.SYNC_STRATEGY_TIMESTAMP,
+                "bob KRB5_KDB_REQUIRES_PRE_AUTH last_modified=100",
+                "carol KRB5_KDB_REQUIRES_PRE_AUTH last_modified=200",
+                "alice KRB5_KDB_REQUIRES_PRE_AUTH last_modified=100");
+        final Deltas deltas = sync(connector, new SyncToken(50L), 1); //a second before token, as earlier versions handed out
+
+        assertEquals(List.of("alice"), deltas.uids);
+        assertEquals("100 alice", deltas.token.getValue().toString());
+        assertEquals(List.of("bob", "carol"), sync(connector, deltas.token, -1).uids);
+    }
+
+    @Test
+    public void snapshotSyncHandsOutAddedModifiedAndDeletedPrincipals() throws Exception {
+        final KerberosCmdConnector connector = createConnector(KerberosCmdConfiguration.SYNC_STRATEGY_SNAPSHOT,
+                "carol KRB5_KDB_REQUIRES_PRE_AUTH",
+                "alice KRB5_KDB_REQUIRES_PRE_AUTH",
+                "bob KRB5_KDB_REQUIRES_PRE_AUTH");
+        final SyncToken latest = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+        writeListing("dave KRB5_KDB_REQUIRES_PRE_AUTH",
+                "bob KRB5_KDB_REQUIRES_PRE_AUTH KRB5_KDB_DISALLOW_ALL_TIX",
+                "alice KRB5_KDB_REQUIRES_PRE_AUTH");
+        final Deltas deltas = sync(connector, latest, -1);
+
+        assertEquals(List.of("bob", "carol", "dave"), deltas.uids);
+        assertEquals(List.of(SyncDeltaType.UPDATE, SyncDeltaType.DELETE, SyncDeltaType.CREATE), deltas.types);
+        assertEquals("dave", deltas.deltas.get(2).getObject().getName().getNameValue());
+        assertNull(deltas.deltas.get(1).getObject());
+        assertNotEquals(latest, deltas.token);
+        assertEquals(List.of(), sync(connector, deltas.token, -1).uids);
+    }
+
+    @Test
+    public void snapshotSyncWithoutTokenHandsOutEveryPrincipal() throws Exception {
+        final KerberosCmdConnector connector = createConnector(KerberosCmdConfiguration.SYNC_STRATEGY_SNAPSHOT,
+                "bob KRB5_KDB_REQUIRES_PRE_AUTH",
+                "alice KRB5_KDB_REQUIRES_PRE_AUTH");
+        final Deltas deltas = sync(connector, null, -1);
+
+        assertEquals(List.of("alice", "bob"), deltas.uids);
+        assertEquals(List.of(SyncDeltaType.CREATE_OR_UPDATE, SyncDeltaType.CREATE_OR_UPDATE), deltas.types);
+        assertEquals(List.of(), sync(connector, deltas.token, -1).uids);
+    }
+
+    /**
+     * A connector whose script prints the listing file for any listing.
+     */
+    private KerberosCmdConnector createConnector(final String syncStrategy, final String... principals) throws IOException {
+        listing = File.createTempFile("listing", ".txt");
+        writeListing(principals);
+
+        final File snapshot = File.createTempFile("sync", ".snapshot");
+        snapshot.delete(); //no snapshot taken yet
+
+        return createScriptConnector("for arg in \"$@\"; do [ \"$arg\" = \"-l\" ] && cat " + listing.getAbsolutePath() + "; done\n"
+                + "exit 0\n", config -> {
+                    config.setSyncStrategy(syncStrategy);
+                    config.setSyncSnapshotPath(snapshot.getAbsolutePath());
+                });
+    }
+
+    private void writeListing(final String... principals) throws IOException {
+        Files.write(listing.toPath(), List.of(principals));
+    }
+
+    /**
+     * Syncs from the token, stopping after the given number of deltas unless it is negative.
+     */
+    private Deltas sync(final KerberosCmdConnector connector, final SyncToken token, final int stopAfter) {
+        final Deltas deltas = new Deltas(stopAfter);
+        connector.sync(ObjectClass.ACCOUNT, token, deltas, null);
+        return deltas;
+    }
+
+    private static final class Deltas implements SyncTokenResultsHandler {
+
+        private final int stopAfter;
+
+        private final List<SyncDelta> deltas = new ArrayList<>();
+
+        private final List<String> uids = new ArrayList<>();
+
+        private final List<SyncDeltaType> types = new ArrayList<>();
+
+        private SyncToken token;
+
+        private Deltas(final int stopAfter) {
+            this.stopAfter = stopAfter;
+        }
+
+        @Override
+        public boolean handle(final SyncDelta delta) {
+            deltas.add(delta);
+            uids.add(delta.getUid().getUidValue());
+            types.add(delta.getDeltaType());
+            return stopAfter < 0 || deltas.size() < stopAfter;
+        }
+
+        @Override
+        public void handleResult(final SyncToken result) {
+            token = result;
+        }
+    }
+}
@@ -15,6 +15,27 @@
  */
 package edu.mines.kerberos.cmd;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+import edu.mines.kerberos.cmd.methods.KerberosCmdUpdate;
+import edu.mines.kerberos.cmd.search.PrincipalCache;
+import org.identityconnectors.common.Pair;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributeDeltaBuilder;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
@@ -55,4 +76,135 @@ public class KerberosCmdUpdateTest extends KerberosCmdAbstractTest {
         connector.update(ObjectClass.ACCOUNT, new Uid("test"),
                 createSetOfAttributes(name, attrs.getPassword(), true), new OperationOptionsBuilder().build());
     }
+
+    @Test
+    public final void testAttributesFromDeltas() {
+        final Set<Attribute> attributes = KerberosCmdUpdate.createAttributesFromDeltas(Set.of(
+                AttributeDeltaBuilder.build(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME, "true"),
+                AttributeDeltaBuilder.build(Name.NAME, List.of("newname"), null),
+                AttributeDeltaBuilder.build(KerberosCmdConfiguration.SCRIPT_USER_FLAGS_ATTRIBUTE_NAME, null, List.of())));
+
+        assertEquals(2, attributes.size());
+        assertEquals("true", AttributeUtil.getAsStringValue(
+                AttributeUtil.find(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME, attributes)));
+        assertEquals("newname", AttributeUtil.getAsStringValue(AttributeUtil.find(Name.NAME, attributes)));
+        assertNull(AttributeUtil.find(KerberosCmdConfiguration.SCRIPT_USER_FLAGS_ATTRIBUTE_NAME, attributes));
+    }
+
+    @Test
+    public final void removingValuesIsRejected() {
+        assertThrows(InvalidAttributeValueException.class, () -> KerberosCmdUpdate.createAttributesFromDeltas(Set.of(
+                AttributeDeltaBuilder.build(KerberosCmdConfiguration.SCRIPT_USER_FLAGS_ATTRIBUTE_NAME, null, List.of("DISALLOW_ALL_TIX")))));
+        assertThrows(InvalidAttributeValueException.class, () -> new KerberosCmdConnector().removeAttributeValues(ObjectClass.ACCOUNT,
+                new Uid("user1"), Set.of(AttributeBuilder.build(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME, "true")), null));
+    }
+
+    @Test
+    public final void combinedUpdateReportsTheFailingStep() {
+        final ConnectorException e = assertThrows(ConnectorException.class, () -> KerberosCmdUpdate.checkStepResults("user1", COMBINED_STEPS,
+                COMBINED_STEP_FLAGS, List.of("STEP -c 0", "STEP -f 201 principal does not exist"), new Pair<>(false, "code 201")));
+
+        assertTrue(e.getMessage().contains("thaw or freeze"));
+        assertTrue(e.getMessage().contains("after [password]"));
+        assertTrue(e.getMessage().contains("principal does not exist"));
+    }
+
+    @Test
+    public final void combinedUpdateNeedsEveryStepReported() {
+        KerberosCmdUpdate.checkStepResults("user1", COMBINED_STEPS, COMBINED_STEP_FLAGS,
+                List.of("STEP -c 0", "STEP -f 0", "STEP -r 0"), new Pair<>(true, ""));
+
+        assertThrows(ConnectorException.class, () -> KerberosCmdUpdate.checkStepResults("user1", COMBINED_STEPS, COMBINED_STEP_FLAGS,
+                List.of(), new Pair<>(true, ""))); //exit 0 without any step
+        assertThrows(ConnectorException.class, () -> KerberosCmdUpdate.checkStepResults("user1", COMBINED_STEPS, COMBINED_STEP_FLAGS,
+                List.of(), new Pair<>(false, "code 1")));
+        assertThrows(ConnectorException.class, () -> KerberosCmdUpdate.checkStepResults("user1", COMBINED_STEPS, COMBINED_STEP_FLAGS,
+                List.of("STEP -c 0", "STEP -f 0"), new Pair<>(true, "")));
+        assertThrows(ConnectorException.class, () -> KerberosCmdUpdate.checkStepResults("user1", COMBINED_STEPS, COMBINED_STEP_FLAGS,
+                List.of("STEP -c 0", "STEP -c 0", "STEP -f 0", "STEP -r 0"), new Pair<>(true, "")));
+    }
+
+    @Test
+    public final void combinedUpdatePasswordIsNotLogged() {
+        final KerberosCmdConfiguration config = new KerberosCmdConfiguration();
+        config.setLogPasswordConfig("false");
+        new KerberosCmdConnector().init(config);
+
+        final String logged = KerberosCmdConnector.logSanitizePassword(List.of(KerberosCmdConfiguration.SCRIPT_COMBINED_UPDATE_FLAG, "user1",
+                KerberosCmdConfiguration.SCRIPT_CHANGE_PASSWORD_FLAG, "s3cret", KerberosCmdConfiguration.SCRIPT_LOCK_FLAG,
+                KerberosCmdConfiguration.SCRIPT_CHANGE_USERNAME_FLAG, "user2"), null);
+        assertFalse(logged.contains("s3cret"));
+        assertTrue(logged.contains("user2"));
+
+        assertFalse(KerberosCmdConnector.logSanitizePassword(List.of(KerberosCmdConfiguration.SCRIPT_CHANGE_PASSWORD_FLAG, "user1", "s3cret"),
+                null).contains("s3cret"));
+        assertTrue(KerberosCmdConnector.logSanitizePassword(List.of(KerberosCmdConfiguration.SCRIPT_CREATE_FLAG,
+                KerberosCmdConfiguration.SCRIPT_PASSWORD_FILE_FLAG, KerberosCmdConfiguration.SCRIPT_PASSWORD_STDIN, "user1"), null).contains("user1"));
+    }
+
+    @Test
+    public final void lockStepSkippedWhenThePrincipalIsAlreadyLocked() throws IOException {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector lockConnector = createLockConnector(calls, "KRB5_KDB_DISALLOW_ALL_TIX");
+
+        lockConnector.update(ObjectClass.ACCOUNT, new Uid("alice"), lockedAttributes(), null);
+        assertEquals(List.of(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG), Files.readAllLines(calls.toPath()));
+    }
+
+    @Test
+    public final void lockStepSkippedFromTheCachedPrincipal() throws IOException {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector lockConnector = createLockConnector(calls, "KRB5_KDB_REQUIRES_PRE_AUTH");
+        final PrincipalCache cache = PrincipalCache.getCache((KerberosCmdConfiguration) lockConnector.getConfiguration());
+        cachePrincipal(cache, "alice", true, cache.getGeneration());
+
+        lockConnector.update(ObjectClass.ACCOUNT, new Uid("alice"), lockedAttributes(), null);
+        assertEquals(List.of(), Files.readAllLines(calls.toPath())); //no lookup and no freeze
+    }
+
+    @Test
+    public final void lockStepLooksUpAPrincipalReadBeforeTheLastWrite() throws IOException {
+        final File calls = File.createTempFile("calls", ".log");
+        final KerberosCmdConnector lockConnector = createLockConnector(calls, "KRB5_KDB_REQUIRES_PRE_AUTH");
+        final PrincipalCache cache = PrincipalCache.getCache((KerberosCmdConfiguration) lockConnector.getConfiguration());
+        final long readGeneration = cache.getGeneration();
+        cache.invalidate("alice"); //the principal was thawed while it was read
+        cachePrincipal(cache, "alice", true, readGeneration);
+
+        lockConnector.update(ObjectClass.ACCOUNT, new Uid("alice"), lockedAttributes(), null);
+        assertEquals(List.of(KerberosCmdConfiguration.SCRIPT_SHOW_DETAILS_FLAG, KerberosCmdConfiguration.SCRIPT_LOCK_FLAG),
+                Files.readAllLines(calls.toPath()));
+    }
+
+    /**
+     * A connector skipping unchanged lock steps, with a script logging its operation flag and showing
+     * every principal with the given flag.
+     */
+    private static KerberosCmdConnector createLockConnector(final File calls, final String flag) throws IOException {
+        return createScriptConnector("echo \"$1\" >> " + calls.getAbsolutePath() + "\n"
+                + "[ \"$1\" = \"-s\" ] && printf 'Attributes for %s\\n0x00000000\\n" + flag + "\\n' \"$2\"\n"
+                + "exit 0\n", config -> {
+                    config.setUserLockedAttributeValue("true");
+                    config.setUserUnlockedAttributeValue("false");
+                    config.setSkipUnchangedUpdateSteps("true");
+                    config.setPrincipalCacheTtl("300");
+                });
+    }
+
+    private static void cachePrincipal(final PrincipalCache cache, final String username, final boolean locked, final long readGeneration) {
+        cache.put(username, new ConnectorObjectBuilder()
+                .setUid(username).setName(username)
+                .addAttribute(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME, locked)
+                .build(), readGeneration);
+    }
+
+    private static Set<Attribute> lockedAttributes() {
+        return Set.of(AttributeBuilder.build(KerberosCmdConfiguration.SCRIPT_USER_LOCKED_ATTRIBUTE_NAME, "true"));
+    }
+
+    private static final List<String> COMBINED_STEPS = List.of(KerberosCmdConfiguration.UPDATE_STEP_PASSWORD,
+            KerberosCmdConfiguration.UPDATE_STEP_LOCK, KerberosCmdConfiguration.UPDATE_STEP_RENAME);
+
+    private static final List<String> COMBINED_STEP_FLAGS = List.of(KerberosCmdConfiguration.SCRIPT_CHANGE_PASSWORD_FLAG,
+            KerberosCmdConfiguration.SCRIPT_LOCK_FLAG, KerberosCmdConfiguration.SCRIPT_CHANGE_USERNAME_FLAG);
 }